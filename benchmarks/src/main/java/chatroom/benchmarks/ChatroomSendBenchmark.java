@@ -0,0 +1,49 @@
+package chatroom.benchmarks;
+
+import chatroom.server.Account;
+import chatroom.server.Chatroom;
+import chatroom.server.Client;
+import org.openjdk.jmh.annotations.*;
+
+import java.util.ArrayList;
+import java.util.List;
+import java.util.concurrent.TimeUnit;
+
+/**
+ * Sending one message to a chatroom, for various room sizes
+ */
+@State(Scope.Benchmark)
+@BenchmarkMode(Mode.AverageTime)
+@OutputTimeUnit(TimeUnit.MICROSECONDS)
+@Warmup(iterations = 3, time = 1)
+@Measurement(iterations = 5, time = 1)
+@Fork(1)
+public class ChatroomSendBenchmark {
+    @Param({"10", "1000", "5000"})
+    public int roomSize;
+
+    private Chatroom chatroom;
+
+    @Setup(Level.Trial)
+    public void setup() {
+        List<Client> members = new ArrayList<>();
+        for (int i = 0; i < roomSize; i++) {
+            String token = Account.getToken();
+            Client.add("member" + i, token);
+            members.add(Client.findByToken(token));
+        }
+        chatroom = new Chatroom("benchmark", members, members.get(0));
+        Chatroom.add(chatroom);
+    }
+
+    @Benchmark
+    public void send() {
+        chatroom.send("member0", "Hello, everyone in this room!");
+    }
+
+    @Benchmark
+    @Threads(4)
+    public void sendConcurrently() {
+        chatroom.send("member0", "Hello, everyone in this room!");
+    }
+}
@@ -0,0 +1,35 @@
+package chatroom.benchmarks;
+
+import chatroom.server.Account;
+import org.openjdk.jmh.annotations.*;
+
+import java.util.concurrent.TimeUnit;
+
+/**
+ * Checking a password at login: a wrong password always pays for the full hash,
+ * a correct one may be recognized from a recent login
+ */
+@State(Scope.Benchmark)
+@BenchmarkMode(Mode.AverageTime)
+@OutputTimeUnit(TimeUnit.MICROSECONDS)
+@Warmup(iterations = 3, time = 1)
+@Measurement(iterations = 5, time = 1)
+@Fork(1)
+public class CheckPasswordBenchmark {
+    private Account account;
+
+    @Setup(Level.Trial)
+    public void setup() {
+        account = new Account("benchmark", "correct password");
+    }
+
+    @Benchmark
+    public boolean correctPassword() {
+        return account.checkPassword("correct password");
+    }
+
+    @Benchmark
+    public boolean wrongPassword() {
+        return account.checkPassword("wrong password");
+    }
+}
@@ -0,0 +1,52 @@
+package chatroom.benchmarks;
+
+import chatroom.server.Account;
+import chatroom.server.Client;
+import org.openjdk.jmh.annotations.*;
+
+import java.util.concurrent.ThreadLocalRandom;
+import java.util.concurrent.TimeUnit;
+
+/**
+ * Looking up a session by token and by username, with many sessions logged in.
+ * Every request with a token starts with one of these lookups.
+ */
+@State(Scope.Benchmark)
+@BenchmarkMode(Mode.AverageTime)
+@OutputTimeUnit(TimeUnit.NANOSECONDS)
+@Warmup(iterations = 3, time = 1)
+@Measurement(iterations = 5, time = 1)
+@Fork(1)
+public class ClientLookupBenchmark {
+    @Param({"1000", "100000", "1000000"})
+    public int sessions;
+
+    private String[] tokens;
+    private String[] usernames;
+
+    @Setup(Level.Trial)
+    public void setup() {
+        tokens = new String[sessions];
+        usernames = new String[sessions];
+        for (int i = 0; i < sessions; i++) {
+            tokens[i] = Account.getToken();
+            usernames[i] = "user" + i;
+            Client.add(usernames[i], tokens[i]);
+        }
+    }
+
+    @Benchmark
+    public Client findByToken() {
+        return Client.findByToken(tokens[ThreadLocalRandom.current().nextInt(sessions)]);
+    }
+
+    @Benchmark
+    public Client findByUsername() {
+        return Client.findByUsername(usernames[ThreadLocalRandom.current().nextInt(sessions)]);
+    }
+
+    @Benchmark
+    public Client findByTokenMissing() {
+        return Client.findByToken("no such token");
+    }
+}
@@ -0,0 +1,52 @@
+package chatroom.benchmarks;
+
+import chatroom.server.Account;
+import chatroom.server.Chatroom;
+import chatroom.server.Client;
+import org.json.JSONObject;
+import org.openjdk.jmh.annotations.*;
+
+import java.util.List;
+import java.util.concurrent.TimeUnit;
+
+/**
+ * Polling: collecting and serializing the messages waiting for a client, half of
+ * them private, half of them from a chatroom
+ */
+@State(Scope.Thread)
+@BenchmarkMode(Mode.AverageTime)
+@OutputTimeUnit(TimeUnit.MICROSECONDS)
+@Warmup(iterations = 3, time = 1)
+@Measurement(iterations = 5, time = 1)
+@Fork(1)
+public class GetMessagesBenchmark {
+    @Param({"0", "10", "100"})
+    public int messages;
+
+    private Client client;
+    private Chatroom chatroom;
+
+    @Setup(Level.Trial)
+    public void setup() {
+        String token = Account.getToken();
+        Client.add("poller", token);
+        client = Client.findByToken(token);
+        chatroom = new Chatroom("benchmark", List.of(client), client);
+        Chatroom.add(chatroom);
+    }
+
+    @Setup(Level.Invocation)
+    public void fill() {
+        for (int i = 0; i < messages / 2; i++) {
+            client.send("sender", "Private message number " + i);
+            chatroom.send("sender", "Chatroom message number " + i);
+        }
+    }
+
+    @Benchmark
+    public String getMessages() {
+        JSONObject result = new JSONObject();
+        client.putMessages(result);
+        return result.toString();
+    }
+}
@@ -0,0 +1,234 @@
+package chatroom.benchmarks;
+
+import chatroom.server.Server;
+import com.sun.net.httpserver.HttpServer;
+import org.HdrHistogram.ConcurrentHistogram;
+import org.HdrHistogram.Histogram;
+import org.json.JSONArray;
+import org.json.JSONObject;
+
+import java.io.File;
+import java.io.FileNotFoundException;
+import java.io.PrintStream;
+import java.net.URI;
+import java.net.http.HttpClient;
+import java.net.http.HttpRequest;
+import java.net.http.HttpResponse;
+import java.time.Duration;
+import java.util.*;
+import java.util.concurrent.*;
+import java.util.concurrent.atomic.LongAdder;
+
+/**
+ * End-to-end load test: starts the server in-process on a loopback port, and runs a
+ * number of simulated users against its HTTP API. Each user registers, logs in and
+ * joins a chatroom (the first user of each group creates it), then sends and polls
+ * for the given duration. At the end, we report the throughput and latency of each
+ * mapping, and write the full latency distribution of each to an .hgrm file.
+ *
+ * Options (--name=value): users, duration (seconds), room-size, send-ratio (share of
+ * requests that are sends, the rest are polls), direct-ratio (share of sends that go
+ * to a user instead of the room), poll-timeout (seconds, 0 for short polls), port, out
+ * (directory for the .hgrm files). All other options are passed on to the server.
+ */
+public class LoadGenerator {
+    private static final String PASSWORD = "load-test";
+
+    private int users = 100;
+    private int duration = 30;
+    private int roomSize = 10;
+    private double sendRatio = 0.5;
+    private double directRatio = 0.2;
+    private int pollTimeout = 0;
+    private int port = 50101;
+    private String out = "loadtest-results";
+    private final List<String> serverArgs = new ArrayList<>();
+
+    private HttpClient http;
+    private final Map<String, Stats> stats = new ConcurrentSkipListMap<>();
+
+    /**
+     * The latencies and errors of one mapping
+     */
+    private static class Stats {
+        final Histogram latency = new ConcurrentHistogram(TimeUnit.SECONDS.toMicros(60), 3);
+        final LongAdder errors = new LongAdder();
+        volatile long phaseNanos; // Duration of the phase in which this mapping was used
+    }
+
+    /**
+     * One simulated user
+     */
+    private static class User {
+        final String name;
+        final int room;
+        String token;
+        int chatroomId;
+
+        User(String name, int room) {
+            this.name = name;
+            this.room = room;
+        }
+    }
+
+    public static void main(String[] args) throws Exception {
+        LoadGenerator generator = new LoadGenerator();
+        for (String arg : args) generator.setOption(arg);
+        generator.run();
+        System.exit(0); // The server's threads would keep us running
+    }
+
+    private void setOption(String arg) {
+        int pos = arg.indexOf('=');
+        String name = (pos < 0) ? arg.substring(2) : arg.substring(2, pos);
+        String value = (pos < 0) ? "" : arg.substring(pos + 1);
+        switch (name) {
+            case "users" -> users = Integer.parseInt(value);
+            case "duration" -> duration = Integer.parseInt(value);
+            case "room-size" -> roomSize = Integer.parseInt(value);
+            case "send-ratio" -> sendRatio = Double.parseDouble(value);
+            case "direct-ratio" -> directRatio = Double.parseDouble(value);
+            case "poll-timeout" -> pollTimeout = Integer.parseInt(value);
+            case "port" -> port = Integer.parseInt(value);
+            case "out" -> out = value;
+            default -> serverArgs.add(arg);
+        }
+    }
+
+    private void run() throws Exception {
+        serverArgs.add(0, Integer.toString(port));
+        HttpServer server = Server.start(serverArgs.toArray(new String[0]));
+        http = HttpClient.newBuilder().version(HttpClient.Version.HTTP_1_1).build();
+        ExecutorService pool = Executors.newFixedThreadPool(users);
+
+        List<User> population = new ArrayList<>();
+        for (int i = 0; i < users; i++) population.add(new User("load" + i, i / roomSize));
+
+        System.out.println("Setting up " + users + " users in rooms of " + roomSize);
+        runPhase(pool, population, this::login, "/user/register", "/user/login");
+        runPhase(pool, population.stream().filter(u -> isCreator(u)).toList(), this::createRoom, "/chatroom/create");
+        Map<Integer, Integer> rooms = new HashMap<>();
+        for (User u : population) if (isCreator(u)) rooms.put(u.room, u.chatroomId);
+        for (User u : population) u.chatroomId = rooms.get(u.room);
+        runPhase(pool, population.stream().filter(u -> !isCreator(u)).toList(), this::joinRoom, "/chatroom/join");
+
+        System.out.println("Running for " + duration + " seconds");
+        long end = System.nanoTime() + TimeUnit.SECONDS.toNanos(duration);
+        runPhase(pool, population, u -> chat(u, population, end), "/chat/send", "/chat/poll");
+
+        pool.shutdown();
+        server.stop(0);
+        report();
+    }
+
+    private boolean isCreator(User user) {
+        return user.name.equals("load" + (user.room * roomSize));
+    }
+
+    private interface Task {
+        void run(User user) throws Exception;
+    }
+
+    /**
+     * Run the task for all given users in parallel, and wait until all are done
+     */
+    private void runPhase(ExecutorService pool, List<User> participants, Task task, String... mappings) throws Exception {
+        long start = System.nanoTime();
+        List<Future<?>> results = new ArrayList<>();
+        for (User user : participants) {
+            results.add(pool.submit(() -> {
+                task.run(user);
+                return null;
+            }));
+        }
+        for (Future<?> result : results) result.get();
+        long elapsed = System.nanoTime() - start;
+        for (String mapping : mappings) stats(mapping).phaseNanos = elapsed;
+    }
+
+    private void login(User user) throws Exception {
+        JSONObject credentials = new JSONObject().put("username", user.name).put("password", PASSWORD);
+        JSONObject response = postUntilAccepted("/user/register", credentials);
+        response = postUntilAccepted("/user/login", credentials);
+        user.token = response.getString("token");
+    }
+
+    private void createRoom(User user) throws Exception {
+        JSONObject request = new JSONObject().put("token", user.token)
+                .put("chatroomName", "room" + user.room).put("clients", new JSONArray().put(user.name));
+        user.chatroomId = post("/chatroom/create", request).getInt("chatroomId");
+    }
+
+    private void joinRoom(User user) throws Exception {
+        post("/chatroom/join", new JSONObject().put("token", user.token).put("chatroomId", user.chatroomId));
+    }
+
+    private void chat(User user, List<User> population, long end) throws Exception {
+        ThreadLocalRandom random = ThreadLocalRandom.current();
+        int count = 0;
+        while (System.nanoTime() < end) {
+            if (random.nextDouble() < sendRatio) {
+                JSONObject request = new JSONObject().put("token", user.token)
+                        .put("message", "Message " + (count++) + " from " + user.name);
+                if (random.nextDouble() < directRatio) {
+                    request.put("username", population.get(random.nextInt(population.size())).name);
+                } else {
+                    request.put("chatroomId", user.chatroomId);
+                }
+                post("/chat/send", request);
+            } else {
+                post("/chat/poll", new JSONObject().put("token", user.token).put("timeout", pollTimeout));
+            }
+        }
+    }
+
+    /**
+     * Registration and login are refused (503) while the hashing pool is busy; retry those
+     */
+    private JSONObject postUntilAccepted(String mapping, JSONObject body) throws Exception {
+        while (true) {
+            JSONObject response = post(mapping, body);
+            if (!response.has("Error") || !response.getString("Error").startsWith("Server busy")) return response;
+            Thread.sleep(ThreadLocalRandom.current().nextInt(10, 50));
+        }
+    }
+
+    private JSONObject post(String mapping, JSONObject body) throws Exception {
+        HttpRequest request = HttpRequest.newBuilder(URI.create("http://127.0.0.1:" + port + mapping))
+                .timeout(Duration.ofSeconds(60))
+                .POST(HttpRequest.BodyPublishers.ofString(body.toString()))
+                .build();
+        Stats mappingStats = stats(mapping);
+        long start = System.nanoTime();
+        HttpResponse<String> response = http.send(request, HttpResponse.BodyHandlers.ofString());
+        mappingStats.latency.recordValue(Math.min(TimeUnit.NANOSECONDS.toMicros(System.nanoTime() - start),
+                mappingStats.latency.getHighestTrackableValue()));
+        JSONObject json = new JSONObject(response.body());
+        if (response.statusCode() != 200 || json.has("Error")) mappingStats.errors.increment();
+        return json;
+    }
+
+    private Stats stats(String mapping) {
+        return stats.computeIfAbsent(mapping, m -> new Stats());
+    }
+
+    private void report() throws FileNotFoundException {
+        File directory = new File(out);
+        directory.mkdirs();
+        System.out.printf("%n%-18s %10s %8s %10s %10s %10s %10s %10s%n",
+                "Mapping", "Requests", "Errors", "Req/s", "p50 (ms)", "p99 (ms)", "p999 (ms)", "max (ms)");
+        for (var entry : stats.entrySet()) {
+            Histogram h = entry.getValue().latency;
+            double seconds = entry.getValue().phaseNanos / 1e9;
+            System.out.printf("%-18s %10d %8d %10.0f %10.2f %10.2f %10.2f %10.2f%n", entry.getKey(),
+                    h.getTotalCount(), entry.getValue().errors.sum(), h.getTotalCount() / seconds,
+                    h.getValueAtPercentile(50) / 1000.0, h.getValueAtPercentile(99) / 1000.0,
+                    h.getValueAtPercentile(99.9) / 1000.0, h.getMaxValue() / 1000.0);
+            String fileName = entry.getKey().substring(1).replace('/', '_') + ".hgrm";
+            try (PrintStream file = new PrintStream(new File(directory, fileName))) {
+                h.outputPercentileDistribution(file, 1000.0); // In milliseconds
+            }
+        }
+        System.out.println("\nLatency distributions (ms) written to " + directory.getAbsolutePath());
+    }
+}
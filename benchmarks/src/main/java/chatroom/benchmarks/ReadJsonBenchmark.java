@@ -0,0 +1,43 @@
+package chatroom.benchmarks;
+
+import chatroom.server.handlers.Handler;
+import org.openjdk.jmh.annotations.*;
+
+import java.io.ByteArrayInputStream;
+import java.nio.charset.StandardCharsets;
+import java.util.concurrent.TimeUnit;
+
+/**
+ * Parsing the JSON body of a typical request
+ */
+@State(Scope.Thread)
+@BenchmarkMode(Mode.AverageTime)
+@OutputTimeUnit(TimeUnit.NANOSECONDS)
+@Warmup(iterations = 3, time = 1)
+@Measurement(iterations = 5, time = 1)
+@Fork(1)
+public class ReadJsonBenchmark {
+    private static final byte[] SEND = ("{\"token\":\"0123456789ABCDEF0123456789ABCDEF\",\"username\":\"bob\","
+            + "\"message\":\"Hello, Bob! How are you today?\"}").getBytes(StandardCharsets.UTF_8);
+    private static final byte[] CREATE = ("{\"token\":\"0123456789ABCDEF0123456789ABCDEF\",\"chatroomName\":\"room\","
+            + "\"clients\":[\"alice\",\"bob\",\"carol\",\"dave\",\"eve\"]}").getBytes(StandardCharsets.UTF_8);
+
+    // readRequest is protected, so we need a handler of our own; its result type is not public
+    private static class BenchmarkHandler extends Handler {
+        Object read(byte[] body) {
+            return readRequest(new ByteArrayInputStream(body));
+        }
+    }
+
+    private final BenchmarkHandler handler = new BenchmarkHandler();
+
+    @Benchmark
+    public Object readSend() {
+        return handler.read(SEND);
+    }
+
+    @Benchmark
+    public Object readCreate() {
+        return handler.read(CREATE);
+    }
+}
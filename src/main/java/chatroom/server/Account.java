@@ -1,41 +1,58 @@
 package chatroom.server;
 
-import javax.crypto.SecretKeyFactory;
-import javax.crypto.spec.PBEKeySpec;
+import chatroom.server.store.Entry;
+
 import java.io.*;
+import java.nio.charset.StandardCharsets;
+import java.security.MessageDigest;
+import java.security.NoSuchAlgorithmException;
 import java.security.SecureRandom;
 import java.time.Instant;
 import java.util.ArrayList;
 import java.util.List;
+import java.util.NavigableMap;
+import java.util.concurrent.ConcurrentSkipListMap;
 import java.util.logging.Logger;
-import java.util.stream.Collectors;
 
 /**
  * This class represents a registered client, i.e., one that has defined a
  * username and password.
- * At the class level, we maintain a list of all registered clients.
- * Passwords are hashed securely, using one of the algorithms built into Java.
- * If this algorithm somehow does not exist, this is catastrophic, and we stop the
- * server.
+ * At the class level, we maintain all registered clients, sorted by username,
+ * so that they can be listed page by page and searched by prefix.
+ * Passwords are hashed securely by the PasswordHasher.
+ *
+ * After a successful login, we remember a cheap digest of the verified password
+ * for a few minutes, so that repeated logins do not each pay for the full hash.
  */
 public class Account implements Serializable {
 	private static final Logger logger = Logger.getLogger("");
 
-	private static final ArrayList<Account> accounts = new ArrayList<>();
+	private static final ConcurrentSkipListMap<String, Account> accounts = new ConcurrentSkipListMap<>();
 	private static final SecureRandom rand = new SecureRandom();
-	private static final int iterations = 127;
+	private static final long VERIFIED_LIFETIME = 600; // seconds
+	private static final long ACCOUNT_LIFETIME = 3 * 86400 * 1000; // 3 days, in milliseconds
+	private static final ExpiryWheel<Account> expiry = new ExpiryWheel<>(60 * 1000, 4096,
+			a -> a.lastLogin.toEpochMilli() + ACCOUNT_LIFETIME, Account::expire);
+	private static final Metrics.Histogram hashTime = Metrics.histogram("chat_password_hash_seconds",
+			"Time to hash or verify a password, by operation", "operation", Metrics.LATENCY_BUCKETS);
 
 	private final String username;
 	private final byte[] salt = new byte[64];
-	private String hashedPassword;
-	private Instant lastLogin;
+	private volatile String hashedPassword; // Replaced under the account's lock
+	private volatile Instant lastLogin;
+	private transient volatile Verified verified; // Recently verified password
+	private record Verified(byte[] digest, Instant expiry) {}
 
 	/**
-	 * Add a new account to our list of valid accounts
+	 * Add a new account to our list of valid accounts. Returns false if the username is
+	 * taken, e.g. by a concurrent registration.
 	 */
-	public static void add(Account account) {
-		synchronized (accounts) {
-			accounts.add(account);
+	public static boolean add(Account account) {
+		try (Persistence.Step step = Persistence.begin()) {
+			if (accounts.putIfAbsent(account.username, account) != null) return false;
+			expiry.schedule(account);
+			step.log(account.toEntry());
+			return true;
 		}
 	}
 
@@ -43,49 +60,98 @@ public class Account implements Serializable {
 	 * Remove an account from our list of valid accounts
 	 */
 	public static void remove(Account account) {
-		synchronized (accounts) {
-			accounts.removeIf(a -> a.equals(account));
+		try (Persistence.Step step = Persistence.begin()) {
+			accounts.remove(account.username);
+			step.log(new Entry(Entry.Type.ACCOUNT_REMOVED, account.username));
 		}
 	}
 
 	/**
-	 * Return a list of all registered users
+	 * Return a page of registered users, in order: at most limit usernames that begin
+	 * with the prefix (may be empty) and come after the given username (may be null).
 	 */
-	public static List<String> listAccounts() {
-		return accounts.stream().map( a -> a.username ).collect(Collectors.toList());
+	public static List<String> listAccounts(String prefix, String after, int limit) {
+		return page(accounts, prefix, after, limit);
+	}
+
+	/**
+	 * Return a page of keys from a sorted index of usernames: at most limit keys that
+	 * begin with the prefix and come after the given key (or from the start, if null).
+	 */
+	static List<String> page(NavigableMap<String, ?> index, String prefix, String after, int limit) {
+		List<String> page = new ArrayList<>();
+		NavigableMap<String, ?> tail = (after != null && after.compareTo(prefix) >= 0)
+				? index.tailMap(after, false) : index.tailMap(prefix, true);
+		for (String key : tail.keySet()) {
+			if (!key.startsWith(prefix) || page.size() >= limit) break;
+			page.add(key);
+		}
+		return page;
 	}
 
 	/**
 	 * Find and return an existing account
 	 */
 	public static Account exists(String username) {
-		synchronized (accounts) {
-			for (Account account : accounts) {
-				if (account.username.equals(username)) return account;
-			}
+		return accounts.get(username);
+	}
+
+	/**
+	 * Expire the accounts that have not logged in for 3 days -- called by cleanup thread,
+	 * which passes the current time and how many accounts it may expire in this slice
+	 */
+	public static int expireAccounts(long now, int budget) {
+		return expiry.advance(now, budget);
+	}
+
+	// Remove an expired account, unless it has been removed or replaced already
+	private static boolean expire(Account account) {
+		try (Persistence.Step step = Persistence.begin()) {
+			if (!accounts.remove(account.username, account)) return false;
+			step.log(new Entry(Entry.Type.ACCOUNT_REMOVED, account.username));
+			return true;
 		}
-		return null;
 	}
 
 	/**
-	 * Clean up old accounts -- called by cleanup thread
+	 * Add the entries describing all accounts to the given snapshot
 	 */
-	public static void cleanupAccounts() {
-		synchronized (accounts) {
-			Instant expiry = Instant.now().minusSeconds(3 * 86400); // 3 days
-			logger.fine("Cleanup accounts: " + accounts.size() + " accounts registered");
-			accounts.removeIf(a -> a.lastLogin.isBefore(expiry));
-			logger.fine("Cleanup accounts: " + accounts.size() + " accounts registered");
+	static void snapshot(List<Entry> state) {
+		for (Account account : accounts.values()) state.add(account.toEntry());
+	}
+
+	/**
+	 * Add or replace an account, when recovering from the store
+	 */
+	static void restore(String username, String salt, String hashedPassword, long lastLogin) {
+		Account existing = accounts.get(username);
+		if (existing != null) { // Update in place, so that the account keeps its place in the expiry wheel
+			synchronized (existing) {
+				System.arraycopy(hexToBytes(salt), 0, existing.salt, 0, existing.salt.length);
+				existing.hashedPassword = hashedPassword;
+			}
+			existing.lastLogin = Instant.ofEpochMilli(lastLogin);
+		} else {
+			Account account = new Account(username, hexToBytes(salt), hashedPassword, Instant.ofEpochMilli(lastLogin));
+			accounts.put(username, account);
+			expiry.schedule(account);
 		}
 	}
 
+	static void restoreRemoved(String username) {
+		accounts.remove(username);
+	}
+
 	/**
 	 * This method is here, because we have a secure random number generator already
 	 * set up. We have a 32-character token - enough to be reasonably secure.
+	 * In a cluster, the first byte is the node that issued the token, so that any
+	 * node can route a request to the node holding the session.
 	 */
 	public static String getToken() {
 		byte[] token = new byte[16];
 		rand.nextBytes(token);
+		if (Cluster.enabled()) token[0] = (byte) Cluster.self();
 		return bytesToHex(token);
 	}
 
@@ -96,6 +162,17 @@ public class Account implements Serializable {
 		this.lastLogin = Instant.now();
 	}
 
+	private Account(String username, byte[] salt, String hashedPassword, Instant lastLogin) {
+		this.username = username;
+		System.arraycopy(salt, 0, this.salt, 0, this.salt.length);
+		this.hashedPassword = hashedPassword;
+		this.lastLogin = lastLogin;
+	}
+
+	private Entry toEntry() {
+		return new Entry(Entry.Type.ACCOUNT, username, bytesToHex(salt), hashedPassword, null, lastLogin.toEpochMilli());
+	}
+
 	@Override
 	public boolean equals(Object o) {
 		if (o == null || o.getClass() != this.getClass()) return false;
@@ -103,39 +180,73 @@ public class Account implements Serializable {
 		return ol.username.equals(this.username);
 	}
 
+	@Override
+	public int hashCode() {
+		return username.hashCode();
+	}
+
 	public boolean checkPassword(String password) {
-		String newHash = hash(password);
-		boolean success = hashedPassword.equals(newHash);
-		if (success) this.lastLogin = Instant.now();
+		String stored = hashedPassword;
+		byte[] digest = digest(password);
+		Verified v = verified;
+		boolean success = (v != null && digest.length > 0 && v.expiry.isAfter(Instant.now()) && MessageDigest.isEqual(v.digest, digest))
+				|| verify(password, stored);
+		if (success) {
+			if (PasswordHasher.needsUpgrade(stored)) upgrade(password, stored);
+			try (Persistence.Step step = Persistence.begin()) {
+				this.lastLogin = Instant.now();
+				step.log(toEntry());
+			}
+			if (v == null || v.expiry.isBefore(lastLogin)) {
+				verified = new Verified(digest, lastLogin.plusSeconds(VERIFIED_LIFETIME));
+			}
+		}
 		return success;
 	}
 
-	public void changePassword(String newPassword) {
-		rand.nextBytes(salt); // Change the salt with the password!
-		this.hashedPassword = hash(newPassword);
+	/**
+	 * Rehash a password that was verified against an outdated hash. Concurrent logins
+	 * rehash only once, and a password changed in the meantime is not overwritten.
+	 */
+	private synchronized void upgrade(String password, String verifiedHash) {
+		if (hashedPassword.equals(verifiedHash)) hashedPassword = hash(password);
+	}
+
+	public synchronized void changePassword(String newPassword) {
+		try (Persistence.Step step = Persistence.begin()) {
+			verified = null;
+			rand.nextBytes(salt); // Change the salt with the password!
+			this.hashedPassword = hash(newPassword);
+			step.log(toEntry());
+		}
 	}
 
 	public String getUsername() {
 		return username;
 	}
 
-	/**
-	 * There are many sources of info on how to securely hash passwords. I'm not a crypto expert,
-	 * so I follow the recommendations of the experts. Here are two examples:
-	 * <a href="https://crackstation.net/hashing-security.htm">...</a>
-	 * <a href="https://howtodoinjava.com/security/how-to-generate-secure-password-hash-md5-sha-pbkdf2-bcrypt-examples/">...</a>
-	 */
 	private String hash(String password) {
+		long start = System.nanoTime();
+		String hash = PasswordHasher.hash(password, salt);
+		hashTime.observeSince("hash", start);
+		return hash;
+	}
+
+	private boolean verify(String password, String hashedPassword) {
+		long start = System.nanoTime();
+		boolean success = PasswordHasher.verify(password, salt, hashedPassword);
+		hashTime.observeSince("verify", start);
+		return success;
+	}
+
+	// A fast, salted digest; only used to recognize a password that was recently verified
+	private byte[] digest(String password) {
 		try {
-			char[] chars = password.toCharArray();
-			PBEKeySpec spec = new PBEKeySpec(chars, salt, iterations, 64 * 8);
-			SecretKeyFactory skf = SecretKeyFactory.getInstance("PBKDF2WithHmacSHA1");
-			byte[] hash = skf.generateSecret(spec).getEncoded();
-			return bytesToHex(hash);
-		} catch (Exception e) {
-			logger.severe("Secure password hashing not possible - stopping server");
-			System.exit(0);
-			return null; // Will never execute, but keeps Java happy
+			MessageDigest md = MessageDigest.getInstance("SHA-256");
+			md.update(salt);
+			return md.digest(password.getBytes(StandardCharsets.UTF_8));
+		} catch (NoSuchAlgorithmException e) {
+			return new byte[0]; // Never matches a stored digest
 		}
 	}
 
@@ -153,4 +264,15 @@ public class Account implements Serializable {
 		return new String(hexChars);
 	}
 	private final static char[] hexArray = "0123456789ABCDEF".toCharArray();
+
+	/**
+	 * Convert a hex string (as produced by bytesToHex) back to a byte-array
+	 */
+	public static byte[] hexToBytes(String hex) {
+		byte[] bytes = new byte[hex.length() / 2];
+		for (int j = 0; j < bytes.length; j++) {
+			bytes[j] = (byte) Integer.parseInt(hex, j * 2, j * 2 + 2, 16);
+		}
+		return bytes;
+	}
 }
@@ -1,29 +1,64 @@
 package chatroom.server;
 
+import chatroom.server.store.Entry;
+
+import java.io.IOException;
 import java.util.ArrayList;
+import java.util.HashSet;
+import java.util.LinkedHashSet;
 import java.util.List;
+import java.util.Set;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.ConcurrentSkipListMap;
+import java.util.concurrent.atomic.AtomicInteger;
+import java.util.logging.Logger;
 
+/**
+ * A chatroom, with its members. At the class level, chatrooms are indexed by id
+ * in a concurrent sorted map, so that they can be listed page by page. Each chatroom
+ * keeps its own concurrent set of members, so activity in one room never blocks
+ * lookups or joins in another.
+ *
+ * Messages are stored once, in the room's log; each member reads the log from
+ * its own cursor, when it polls. The log also serves as the room's history.
+ *
+ * In a cluster, a chatroom belongs to the node that created it (see Cluster). Members
+ * on other nodes are known to the owner by username; each of their nodes keeps a mirror
+ * of the room, holding its local members and a copy of the log, to which the owner
+ * sends each new message. Mirrors and remote members are not persisted.
+ */
 public class Chatroom {
+    private static final Logger logger = Logger.getLogger("");
 
-    private final String chatroomName;
+    private volatile String chatroomName; // Only changes once, when a mirror learns about its room
     private final Integer chatroomId;
-    private static Integer idOfLastChatroom = 0;
-    private List<Client> clients;
-    private Client creator;
-    private static ArrayList<Chatroom> chatrooms = new ArrayList<>();
-    public record Message(String username, String message) {
-    }
+    private static final AtomicInteger idOfLastChatroom = new AtomicInteger(0);
+    private final Set<Client> clients = ConcurrentHashMap.newKeySet();
+    private final Set<String> remoteMembers = ConcurrentHashMap.newKeySet(); // Usernames on other nodes
+    private volatile Client creator;
+    private final RoomLog log = new RoomLog();
+    private static final ConcurrentSkipListMap<Integer, Chatroom> chatrooms = new ConcurrentSkipListMap<>();
+    private static final ConcurrentHashMap<Integer, Chatroom> mirrors = new ConcurrentHashMap<>();
+    private static final Metrics.Histogram fanout = Metrics.histogram("chat_room_fanout_members",
+            "Number of members notified per chatroom send", null, Metrics.SIZE_BUCKETS);
+    private static final Metrics.Histogram sendTime = Metrics.histogram("chat_room_send_seconds",
+            "Time to append a chatroom message and notify the members", null, Metrics.LATENCY_BUCKETS);
 
     /**
-     * Creates a new chatroom with auto-generated Id.
+     * Creates a new chatroom with auto-generated Id. Unknown members (null) are ignored.
+     * In a cluster, the Id also tells which node owns the room.
      */
     public Chatroom(String chatroomName, List<Client> clients, Client creator) {
+        this(idOfLastChatroom.incrementAndGet() * Cluster.size() + Cluster.self(), chatroomName, creator);
+        for (Client client : clients) {
+            if (client != null) addMember(client);
+        }
+    }
+
+    private Chatroom(int chatroomId, String chatroomName, Client creator) {
         this.chatroomName = chatroomName;
-        this.clients = clients;
         this.creator = creator;
-        synchronized (idOfLastChatroom){
-            chatroomId = ++idOfLastChatroom;
-        }
+        this.chatroomId = chatroomId;
     }
 
     public String getChatroomName() {
@@ -34,50 +69,78 @@ public class Chatroom {
         return chatroomId;
     }
 
+    /**
+     * Returns a snapshot of the current members
+     */
     public List<Client> getClients() {
-        return clients;
+        return new ArrayList<>(clients);
     }
 
     public Client getCreator() {
         return creator;
     }
 
-    public static ArrayList<Chatroom> getChatrooms() {
-        return chatrooms;
+    public RoomLog getLog() {
+        return log;
+    }
+
+    public int getMemberCount() {
+        return clients.size() + remoteMembers.size();
+    }
+
+    /**
+     * Returns a page of chatrooms, ordered by id: at most limit chatrooms whose id
+     * is greater than the given id (or from the start, if null)
+     */
+    public static List<Chatroom> getChatrooms(Integer after, int limit) {
+        List<Chatroom> page = new ArrayList<>();
+        for (Chatroom chatroom : (after == null ? chatrooms : chatrooms.tailMap(after, false)).values()) {
+            if (page.size() >= limit) break;
+            page.add(chatroom);
+        }
+        return page;
     }
 
     public static void add(Chatroom chatroom){
-        synchronized (chatrooms){
-            chatrooms.add(chatroom);
+        try (Persistence.Step step = Persistence.begin()) {
+            chatrooms.put(chatroom.chatroomId, chatroom);
+            step.log(chatroom.toEntry());
+            for (Client member : chatroom.clients) step.log(chatroom.memberEntry(member));
         }
     }
 
     /**
      * Join an existing chatroom by inserting the chatroomId and client reference.
      */
-    public static List<String> join(int chatroomId, Client client){
-        synchronized (chatrooms){
-            for (Chatroom chatroom : chatrooms){
-                if (chatroom.chatroomId == chatroomId){
-                    chatroom.clients.add(client);
-                    return chatroom.clients.stream()
-                            .map(Client::getName)
-                            .toList();
-                }
-            }
+    public static List<String> join(int chatroomId, Client client) throws IOException {
+        if (!isLocal(chatroomId)) return joinRemote(chatroomId, client);
+        Chatroom chatroom = chatrooms.get(chatroomId);
+        if (chatroom == null) return null;
+        try (Persistence.Step step = Persistence.begin()) {
+            chatroom.addMember(client);
+            step.log(chatroom.memberEntry(client));
         }
-        return null;
+        return chatroom.getMemberNames();
     }
 
     /**
      * Leave an existing chatroom. Insert chatroomId and client reference of the person leaving the chatroom.
      */
     public static void leaveChatroom(int chatroomId, Client client){
-        synchronized (chatrooms){
-            for (Chatroom chatroom : chatrooms){
-                if (chatroom.chatroomId == chatroomId){
-                    chatroom.clients.removeIf(clientToRemove ->
-                            clientToRemove.getName().equals(client.getName()));
+        if (!isLocal(chatroomId)) {
+            Chatroom mirror = mirrors.get(chatroomId);
+            if (mirror != null) mirror.removeLocalMembers(client.getName());
+            Cluster.roomLeave(Cluster.nodeOfChatroom(chatroomId), chatroomId, client.getName());
+            return;
+        }
+        Chatroom chatroom = chatrooms.get(chatroomId);
+        if (chatroom != null) {
+            try (Persistence.Step step = Persistence.begin()) {
+                for (Client member : chatroom.clients) {
+                    if (member.getName().equals(client.getName()) && chatroom.clients.remove(member)) {
+                        member.unsubscribe(chatroomId);
+                        step.log(new Entry(Entry.Type.MEMBER_REMOVED, Integer.toString(chatroomId), member.getToken(), null, null, 0));
+                    }
                 }
             }
         }
@@ -86,55 +149,307 @@ public class Chatroom {
     /**
      * Delete a chatroom only if the call comes from the creator and has a valid chatroomId.
      */
-    public static void deleteChatroom(int chatroomId, Client client){
-        synchronized (chatrooms){
-            for (Chatroom chatroom : chatrooms){
-                if (chatroom.chatroomId == chatroomId && chatroom.creator.getName().equals(client.getName())){
-                    chatrooms.removeIf(chatroomToRemove -> chatroomToRemove.chatroomId == chatroomId);
-                }
-            }
+    public static void deleteChatroom(int chatroomId, Client client) throws IOException {
+        if (isLocal(chatroomId)) {
+            receiveDelete(chatroomId, client.getName());
+        } else {
+            Cluster.roomDelete(Cluster.nodeOfChatroom(chatroomId), chatroomId, client.getName());
         }
     }
 
     /**
-     * Get an instance of the Chatroom by inserting the chatroomId.
+     * Get an instance of the Chatroom by inserting the chatroomId. In a cluster, this may
+     * be the local mirror of a room on another node.
      */
     public static Chatroom findByChatroomId(int chatroomId){
-        synchronized (chatrooms){
-            for (Chatroom chatroom : chatrooms){
-                if (chatroom.chatroomId == chatroomId) return chatroom;
-            }
-        }
-        return null;
+        Chatroom chatroom = chatrooms.get(chatroomId);
+        return (chatroom != null) ? chatroom : mirrors.get(chatroomId);
     }
 
     /**
      * Get the usernames of all members of a Chatroom.
      */
-    public static List<String> getChatroomMembers (int chatroomId){
-        synchronized (chatrooms){
-            for (Chatroom chatroom : chatrooms){
-                if (chatroom.chatroomId == chatroomId) {
-                    return chatroom.clients.stream()
-                            .map(Client::getName)
-                            .toList();
+    public static List<String> getChatroomMembers (int chatroomId) throws IOException {
+        if (!isLocal(chatroomId)) return Cluster.roomMembers(Cluster.nodeOfChatroom(chatroomId), chatroomId);
+        return receiveMembers(chatroomId);
+    }
+
+    /**
+     * Send messages from the same sender to a chatroom, wherever in the cluster it is.
+     * Returns false, if there is no such chatroom.
+     */
+    public static boolean sendTo(int chatroomId, String username, List<String> messages) throws IOException {
+        if (!isLocal(chatroomId)) return Cluster.roomSend(Cluster.nodeOfChatroom(chatroomId), chatroomId, username, messages);
+        return receiveSend(chatroomId, username, messages);
+    }
+
+    /**
+     * One page of a chatroom's history (see RoomLog.page), wherever in the cluster it is.
+     * Returns null, if there is no such chatroom.
+     */
+    public static List<RoomLog.Entry> history(int chatroomId, Long before, Long after, int limit) throws IOException {
+        if (!isLocal(chatroomId)) return Cluster.roomHistory(Cluster.nodeOfChatroom(chatroomId), chatroomId, before, after, limit);
+        return receiveHistory(chatroomId, before, after, limit);
+    }
+
+    /**
+     * Add the given users that are on other nodes of the cluster as members. Users that
+     * are not logged in, or whose node cannot be reached, are ignored.
+     */
+    public void invite(List<String> usernames) {
+        for (String username : usernames) {
+            int node = Cluster.nodeOfUsername(username);
+            if (node == Cluster.self()) continue;
+            remoteMembers.add(username);
+            try {
+                if (!Cluster.roomAdd(node, chatroomId, chatroomName, creator.getName(), log.nextId(), username)) {
+                    remoteMembers.remove(username);
                 }
+            } catch (IOException e) {
+                remoteMembers.remove(username);
+                logger.fine("Unable to add " + username + " to chatroom " + chatroomId + ": " + e);
             }
         }
-        return null;
+    }
+
+    private static boolean isLocal(int chatroomId) {
+        return Cluster.nodeOfChatroom(chatroomId) == Cluster.self();
+    }
+
+    // New members only see messages sent after they joined
+    private void addMember(Client client) {
+        client.subscribe(chatroomId, log.nextId());
+        clients.add(client);
+    }
+
+    private Entry toEntry() {
+        return new Entry(Entry.Type.ROOM, chatroomId.toString(), chatroomName, creator.getName(), creator.getToken(), 0);
+    }
+
+    private Entry memberEntry(Client member) {
+        return new Entry(Entry.Type.MEMBER, chatroomId.toString(), member.getToken(), null, null, member.getCursor(chatroomId));
     }
 
     /**
-     * Distributes the message to all clients (members).
+     * Add the entries describing all chatrooms, their messages and members to the given snapshot
+     */
+    static void snapshot(List<Entry> state) {
+        for (Chatroom chatroom : chatrooms.values()) {
+            state.add(chatroom.toEntry());
+            for (RoomLog.Entry msg : chatroom.log.readFrom(0)) {
+                state.add(new Entry(Entry.Type.ROOM_MESSAGE, chatroom.chatroomId.toString(), msg.username(), msg.message(), null, msg.id()));
+            }
+            for (Client member : chatroom.clients) state.add(chatroom.memberEntry(member));
+        }
+    }
+
+    // The following methods restore chatrooms, when recovering from the store
+    static void restore(int chatroomId, String chatroomName, String creatorName, String creatorToken) {
+        Client creator = Client.findByToken(creatorToken);
+        if (creator == null) creator = new Client(creatorName, creatorToken); // Creator is no longer logged in
+        chatrooms.put(chatroomId, new Chatroom(chatroomId, chatroomName, creator));
+        idOfLastChatroom.accumulateAndGet(chatroomId / Cluster.size(), Math::max);
+    }
+
+    static void restoreRemoved(int chatroomId) {
+        chatrooms.remove(chatroomId);
+    }
+
+    static void restoreMember(int chatroomId, String token, long nextId) {
+        Chatroom chatroom = chatrooms.get(chatroomId);
+        Client client = Client.findByToken(token);
+        if (chatroom != null && client != null) {
+            chatroom.addMember(client);
+            client.restoreCursor(chatroomId, nextId);
+        }
+    }
+
+    /**
+     * Remove one session from a chatroom, when it has logged out or expired
+     */
+    static void removeMember(int chatroomId, Client client, Persistence.Step step) {
+        Chatroom chatroom = chatrooms.get(chatroomId);
+        if (chatroom != null && chatroom.clients.remove(client)) {
+            step.log(new Entry(Entry.Type.MEMBER_REMOVED, Integer.toString(chatroomId), client.getToken(), null, null, 0));
+        }
+        // In a mirror, the user leaves the room with their last session on this node
+        Chatroom mirror = mirrors.get(chatroomId);
+        if (mirror != null && mirror.clients.remove(client)
+                && mirror.clients.stream().noneMatch(c -> c.getName().equals(client.getName()))) {
+            Cluster.roomLeave(Cluster.nodeOfChatroom(chatroomId), chatroomId, client.getName());
+        }
+    }
+
+    static void restoreMemberRemoved(int chatroomId, String token) {
+        Chatroom chatroom = chatrooms.get(chatroomId);
+        Client client = Client.findByToken(token);
+        if (chatroom != null && client != null) {
+            chatroom.clients.remove(client);
+            client.unsubscribe(chatroomId);
+        }
+    }
+
+    static void restoreMessage(int chatroomId, long id, String username, String message) {
+        Chatroom chatroom = chatrooms.get(chatroomId);
+        if (chatroom != null) chatroom.log.restore(new RoomLog.Entry(id, username, message));
+    }
+
+    private List<String> getMemberNames() {
+        Set<String> names = new LinkedHashSet<>(); // A member may have several sessions
+        for (Client client : clients) names.add(client.getName());
+        names.addAll(remoteMembers);
+        return new ArrayList<>(names);
+    }
+
+    private void removeLocalMembers(String username) {
+        for (Client member : clients) {
+            if (member.getName().equals(username) && clients.remove(member)) member.unsubscribe(chatroomId);
+        }
+    }
+
+    /**
+     * Distributes the message to all clients (members). The message is appended once to
+     * the room's log; members are only notified, so that waiting polls and streams wake up.
      */
     public void send(String username, String message){
-        //synchronized (messages){
-        //    messages.add(new Message(username, message));
-        //}
-        synchronized (clients){
-            for (Client client : clients){
-                client.addChatroomMessage(chatroomId, username, message);
+        long start = System.nanoTime();
+        try (Persistence.Step step = Persistence.begin()) {
+            synchronized (log) { // Mirrors must receive the entries in order
+                RoomLog.Entry entry = log.append(username, message);
+                step.log(new Entry(Entry.Type.ROOM_MESSAGE, chatroomId.toString(), username, message, null, entry.id()));
+                if (!remoteMembers.isEmpty()) replicate(List.of(entry));
             }
         }
+        notifyMembers(start);
+    }
+
+    /**
+     * Distributes several messages from the same sender. They are appended to the log
+     * together, and the members are notified only once.
+     */
+    public void send(String username, List<String> messages){
+        long start = System.nanoTime();
+        try (Persistence.Step step = Persistence.begin()) {
+            synchronized (log) {
+                List<RoomLog.Entry> entries = new ArrayList<>(messages.size());
+                for (String message : messages) {
+                    RoomLog.Entry entry = log.append(username, message);
+                    step.log(new Entry(Entry.Type.ROOM_MESSAGE, chatroomId.toString(), username, message, null, entry.id()));
+                    entries.add(entry);
+                }
+                if (!remoteMembers.isEmpty()) replicate(entries);
+            }
+        }
+        notifyMembers(start);
+    }
+
+    // Send new entries to each node with members; called holding the log's lock
+    private void replicate(List<RoomLog.Entry> entries) {
+        Set<Integer> nodes = new HashSet<>();
+        for (String username : remoteMembers) nodes.add(Cluster.nodeOfUsername(username));
+        for (int node : nodes) Cluster.roomEntries(node, chatroomId, entries);
+    }
+
+    private void notifyMembers(long start) {
+        int notified = 0;
+        for (Client client : clients){
+            client.roomMessageAvailable();
+            notified++;
+        }
+        fanout.observe(notified);
+        sendTime.observeSince(start);
+    }
+
+    // ----- Cluster: the owner's side, handling requests from other nodes -----
+
+    static boolean receiveSend(int chatroomId, String username, List<String> messages) {
+        Chatroom chatroom = chatrooms.get(chatroomId);
+        if (chatroom == null) return false;
+        chatroom.send(username, messages);
+        return true;
+    }
+
+    static Cluster.RoomInfo receiveJoin(int chatroomId, String username) {
+        Chatroom chatroom = chatrooms.get(chatroomId);
+        if (chatroom == null) return null;
+        chatroom.remoteMembers.add(username);
+        return new Cluster.RoomInfo(chatroom.chatroomName, chatroom.creator.getName(), chatroom.log.nextId(), chatroom.getMemberNames());
+    }
+
+    static void receiveLeave(int chatroomId, String username) {
+        Chatroom chatroom = chatrooms.get(chatroomId);
+        if (chatroom != null) chatroom.remoteMembers.remove(username);
+    }
+
+    /**
+     * Delete a chatroom, if the user is its creator; the mirrors on other nodes are removed
+     */
+    static boolean receiveDelete(int chatroomId, String username) {
+        Chatroom chatroom = chatrooms.get(chatroomId);
+        if (chatroom == null || !chatroom.creator.getName().equals(username)) return false;
+        try (Persistence.Step step = Persistence.begin()) {
+            if (!chatrooms.remove(chatroomId, chatroom)) return false;
+            step.log(new Entry(Entry.Type.ROOM_REMOVED, Integer.toString(chatroomId)));
+        }
+        Cluster.roomRemoved(chatroomId);
+        return true;
+    }
+
+    static List<String> receiveMembers(int chatroomId) {
+        Chatroom chatroom = chatrooms.get(chatroomId);
+        return (chatroom == null) ? null : chatroom.getMemberNames();
+    }
+
+    static List<RoomLog.Entry> receiveHistory(int chatroomId, Long before, Long after, int limit) {
+        Chatroom chatroom = chatrooms.get(chatroomId);
+        return (chatroom == null) ? null : chatroom.log.page(before, after, limit);
+    }
+
+    // ----- Cluster: the mirror's side -----
+
+    /**
+     * Join a chatroom on another node. The mirror is created before asking the owner, so
+     * that messages sent right after the join are not lost.
+     */
+    private static List<String> joinRemote(int chatroomId, Client client) throws IOException {
+        Chatroom mirror = mirrors.computeIfAbsent(chatroomId, id -> new Chatroom(id, null, null));
+        Cluster.RoomInfo info = Cluster.roomJoin(Cluster.nodeOfChatroom(chatroomId), chatroomId, client.getName());
+        if (info == null) {
+            if (mirror.clients.isEmpty()) mirrors.remove(chatroomId, mirror);
+            return null;
+        }
+        mirror.describe(info.chatroomName(), info.creatorName());
+        client.subscribe(chatroomId, info.nextId());
+        mirror.clients.add(client);
+        return info.members();
+    }
+
+    static boolean receiveAdd(int chatroomId, String chatroomName, String creatorName, long nextId, String username) {
+        Set<Client> sessions = Client.findAllByUsername(username);
+        if (sessions.isEmpty()) return false;
+        Chatroom mirror = mirrors.computeIfAbsent(chatroomId, id -> new Chatroom(id, null, null));
+        mirror.describe(chatroomName, creatorName);
+        for (Client client : sessions) {
+            client.subscribe(chatroomId, nextId);
+            mirror.clients.add(client);
+        }
+        return true;
+    }
+
+    static void receiveEntries(int chatroomId, List<RoomLog.Entry> entries) {
+        Chatroom mirror = mirrors.get(chatroomId);
+        if (mirror == null) return;
+        for (RoomLog.Entry entry : entries) mirror.log.restore(entry);
+        for (Client client : mirror.clients) client.roomMessageAvailable();
+    }
+
+    static void receiveRemoved(int chatroomId) {
+        mirrors.remove(chatroomId);
+    }
+
+    private void describe(String chatroomName, String creatorName) {
+        if (this.chatroomName != null) return;
+        this.creator = new Client(creatorName, null); // The creator's session is on another node
+        this.chatroomName = chatroomName;
     }
 }
@@ -2,8 +2,20 @@ package chatroom.server;
 
 import java.util.logging.Logger;
 
+/**
+ * Expires idle sessions and accounts continuously: once per second, the sessions and
+ * accounts whose time has come are removed, at most a few thousand per slice, so that
+ * no request ever waits for a sweep over everything. Every 5 minutes, the persistent
+ * store is compacted and the status is logged.
+ */
 public class CleanupThread extends Thread {
 	private static Logger logger = Logger.getLogger("");
+	private static final Metrics.Histogram pause = Metrics.histogram("chat_cleanup_seconds",
+			"Duration of each cleanup slice", null, Metrics.LATENCY_BUCKETS);
+	private static final Metrics.Counter expired = Metrics.counter("chat_expired_total",
+			"Sessions and accounts expired, by kind", "kind");
+	private static final int SLICE_BUDGET = 2000; // Items expired per slice, at most
+	private static final long STATUS_INTERVAL = 300000; // Every 5 minutes
 
 	public CleanupThread() {
 		super();
@@ -12,25 +24,34 @@ public class CleanupThread extends Thread {
 
 	@Override
 	public void run() {
+		long nextStatus = System.currentTimeMillis() + STATUS_INTERVAL;
 		while (true) {
-			logger.info("Cleanup process triggered");
-
-			// Clean up clients
-			Client.cleanupClients();
-
-			// Clean up accounts
-			Account.cleanupAccounts();
-
-			System.gc();
-
-			// Log status
-			long freeMemory = Runtime.getRuntime().freeMemory();
-			freeMemory /= (1024 * 1024);
-			logger.info("Cleanup process complete; " + freeMemory + "MB available, " +
-						Thread.activeCount() + " threads running");
+			long start = System.nanoTime();
+			long now = System.currentTimeMillis();
+
+			// Expire idle clients, then old accounts
+			int clients = Client.expireClients(now, SLICE_BUDGET);
+			int accounts = Account.expireAccounts(now, SLICE_BUDGET - clients);
+			expired.add("session", clients);
+			expired.add("account", accounts);
+			pause.observeSince(start);
+
+			if (now >= nextStatus) {
+				nextStatus = now + STATUS_INTERVAL;
+
+				// Compact the persistent store, if there is one
+				Persistence.snapshot();
+
+				// Log status
+				long freeMemory = Runtime.getRuntime().freeMemory();
+				freeMemory /= (1024 * 1024);
+				logger.info("Cleanup status: " + freeMemory + "MB available, " +
+							Thread.activeCount() + " threads running, " + Client.countSessions() + " sessions, " +
+							Client.totalQueueDepth() + " messages queued, " + Client.totalDropped() + " dropped");
+			}
 
 			try {
-				Thread.sleep(300000); // Every 5 minutes
+				Thread.sleep(1000);
 			} catch (InterruptedException e) {
 			}
 		}
@@ -1,90 +1,310 @@
 package chatroom.server;
 
+import chatroom.server.store.Entry;
 import org.json.JSONArray;
 import org.json.JSONObject;
 
+import java.io.IOException;
 import java.time.Instant;
 import java.util.ArrayList;
+import java.util.Collections;
+import java.util.HashMap;
+import java.util.Iterator;
 import java.util.List;
+import java.util.Map;
+import java.util.Set;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.ConcurrentSkipListMap;
+import java.util.concurrent.atomic.AtomicLong;
+import java.util.concurrent.atomic.AtomicReference;
 import java.util.logging.Logger;
-import java.util.stream.Collectors;
 
 /**
  * This class represents a client, from the perspective of the server. A client
- * is a user with a currently valid token. We record here the username, the token
- * and an array of messages that need to be sent to the user.
+ * is a user with a currently valid token. We record here the username, the token,
+ * a mailbox of private messages that need to be sent to the user, and for each
+ * chatroom, the id of the next message in the room's log that the user has not read.
+ *
+ * Clients are indexed both by token and by username. A user may be logged in
+ * more than once, so the username index maps to the set of all their sessions.
+ * Both indexes are concurrent maps, so lookups never take a global lock. The names
+ * of all online users are also kept sorted, so that they can be listed page by page.
  */
 public class Client {
 	private static final Logger logger = Logger.getLogger("");
-	private static final ArrayList<Client> clients = new ArrayList<>();
+	private static final ConcurrentHashMap<String, Client> clientsByToken = new ConcurrentHashMap<>();
+	private static final ConcurrentHashMap<String, Set<Client>> clientsByUsername = new ConcurrentHashMap<>();
+	private static final ConcurrentSkipListMap<String, Boolean> onlineUsernames = new ConcurrentSkipListMap<>();
+	private static final long SESSION_LIFETIME = 3600 * 1000; // Expiry one hour, in milliseconds
+	private static final ExpiryWheel<Client> expiry = new ExpiryWheel<>(1000, 4096,
+			c -> c.lastUsage.toEpochMilli() + SESSION_LIFETIME, Client::expire);
 
 	private final String username;
 	private final String token;
-	private final List<Message> messages = new ArrayList<>();
-	private final List<ChatroomMessage> chatroomMessages = new ArrayList<>();
-	private Instant lastUsage = Instant.now();
-	private record Message(String username, String message) {}
-	private record ChatroomMessage(Integer chatroomId, String username, String message) {}
+	private final Mailbox mailbox = new Mailbox();
+	private final ConcurrentHashMap<Integer, Long> roomCursors = new ConcurrentHashMap<>();
+	private final AtomicLong missed = new AtomicLong(0); // Room messages overwritten before they were read
+	private volatile Instant lastUsage = Instant.now();
+	private final AtomicReference<MessageListener> waiter = new AtomicReference<>();
+	private final AtomicReference<MessageListener> stream = new AtomicReference<>();
+
+	/**
+	 * Where a stream writes the client's messages, together with the number of chatroom
+	 * messages that were overwritten before the client read them. If writing fails, the
+	 * messages remain with the client.
+	 */
+	public interface MessageSink {
+		void write(JSONArray messages, long missed) throws IOException;
+	}
 
 	/**
 	 * Add a new client to our list of active clients.
 	 */
 	public static void add(String username, String token) {
-		synchronized (clients) {
-			clients.add(new Client(username, token));
+		try (Persistence.Step step = Persistence.begin()) {
+			Client client = new Client(username, token);
+			addSession(client);
+			step.log(client.toEntry());
 		}
 	}
 
+	private static void addSession(Client client) {
+		long[] cursor = { 0 };
+		clientsByUsername.compute(client.username, (name, sessions) -> {
+			if (sessions == null) {
+				sessions = ConcurrentHashMap.newKeySet();
+				onlineUsernames.put(name, Boolean.TRUE);
+				cursor[0] = Presence.reserve();
+			}
+			sessions.add(client);
+			return sessions;
+		});
+		if (cursor[0] != 0) Presence.changed(cursor[0], client.username, true);
+		clientsByToken.put(client.token, client);
+		expiry.schedule(client);
+	}
+
 	/**
 	 * Remove a client (e.g., when they logout)
 	 */
 	public static void remove(String token) {
-		synchronized (clients) {
-			clients.removeIf(c -> c.token.equals(token));
+		try (Persistence.Step step = Persistence.begin()) {
+			Client client = clientsByToken.remove(token);
+			if (client != null) {
+				expiry.cancel(client);
+				close(client, step);
+			}
+		}
+	}
+
+	/**
+	 * A session has been removed: remove it from the username index and from its chatrooms,
+	 * and wake up anything waiting for it
+	 */
+	private static void close(Client client, Persistence.Step step) {
+		removeSession(client);
+		for (Integer chatroomId : client.roomCursors.keySet()) {
+			Chatroom.removeMember(chatroomId, client, step);
 		}
+		client.closed();
+		step.log(new Entry(Entry.Type.SESSION_REMOVED, client.token));
+	}
+
+	/**
+	 * Remove a session from the username index; the username disappears with its last session
+	 */
+	private static void removeSession(Client client) {
+		long[] cursor = { 0 };
+		clientsByUsername.computeIfPresent(client.username, (name, sessions) -> {
+			if (!sessions.remove(client) || !sessions.isEmpty()) return sessions;
+			onlineUsernames.remove(name);
+			cursor[0] = Presence.reserve();
+			return null;
+		});
+		if (cursor[0] != 0) Presence.changed(cursor[0], client.username, false);
 	}
 
 	/**
-	 * Returns a client, found by username
+	 * Returns a client, found by username. If the user has several sessions,
+	 * any one of them is returned.
 	 */
 	public static Client findByUsername(String username) {
-		synchronized (clients) {
-			for (Client c : clients) {
-				if (c.username.equals(username)) return c;
-			}
+		Set<Client> sessions = clientsByUsername.get(username);
+		if (sessions != null) {
+			Iterator<Client> i = sessions.iterator();
+			if (i.hasNext()) return i.next();
 		}
 		return null;
 	}
 
+	/**
+	 * Is the user logged in, with at least one session? In a cluster, this includes
+	 * the users of the other nodes, as far as they have told us.
+	 */
+	public static boolean isOnline(String username) {
+		return onlineUsernames.containsKey(username);
+	}
+
+	/**
+	 * The result of delivering a private message
+	 */
+	public enum Delivery { DELIVERED, INVALID_USERNAME, MAILBOX_FULL }
+
+	/**
+	 * Deliver private messages to all sessions of a user, wherever in the cluster the
+	 * user is. Returns the result for each message.
+	 */
+	public static List<Delivery> deliver(String username, String sender, List<String> messages) throws IOException {
+		int node = Cluster.nodeOfUsername(username);
+		if (node != Cluster.self()) return Cluster.deliver(node, username, sender, messages);
+		return deliverLocal(username, sender, messages);
+	}
+
+	static List<Delivery> deliverLocal(String username, String sender, List<String> messages) {
+		Set<Client> recipients = findAllByUsername(username);
+		List<Delivery> results = new ArrayList<>(messages.size());
+		for (String message : messages) {
+			if (recipients.isEmpty()) {
+				results.add(Delivery.INVALID_USERNAME);
+			} else {
+				boolean accepted = true;
+				for (Client recipient : recipients) accepted &= recipient.send(sender, message);
+				results.add(accepted ? Delivery.DELIVERED : Delivery.MAILBOX_FULL);
+			}
+		}
+		return results;
+	}
+
+	/**
+	 * Another node reports that one of its users came online or went offline. The user has
+	 * no sessions here, but its (absent) entry in the username index still orders the changes.
+	 */
+	static void remotePresence(String username, boolean online) {
+		long[] cursor = { 0 };
+		clientsByUsername.compute(username, (name, sessions) -> {
+			if (online ? onlineUsernames.put(name, Boolean.TRUE) == null : onlineUsernames.remove(name) != null) {
+				cursor[0] = Presence.reserve();
+			}
+			return sessions;
+		});
+		if (cursor[0] != 0) Presence.remoteChanged(cursor[0], username, online);
+	}
+
+	/**
+	 * We lost the connection to a node: until it reconnects, its users count as offline
+	 */
+	static void dropRemotePresence(int node) {
+		for (String username : onlineUsernames.keySet()) {
+			if (Cluster.nodeOfUsername(username) == node) remotePresence(username, false);
+		}
+	}
+
+	/**
+	 * The names of the users logged in on this node
+	 */
+	static List<String> localUsernames() {
+		return new ArrayList<>(clientsByUsername.keySet());
+	}
+
+	/**
+	 * Returns all sessions of a user; empty, if the user is not logged in
+	 */
+	public static Set<Client> findAllByUsername(String username) {
+		Set<Client> sessions = clientsByUsername.get(username);
+		return (sessions == null) ? Collections.emptySet() : Collections.unmodifiableSet(sessions);
+	}
+
 	/**
 	 * Returns a client, found by token
 	 */
 	public static Client findByToken(String token) {
-		synchronized (clients) {
-			for (Client c : clients) {
-				if (c.token.equals(token)) return c;
+		return clientsByToken.get(token);
+	}
+
+	/**
+	 * Expire the sessions that have been idle for an hour -- called by cleanup thread, which
+	 * passes the current time and how many sessions it may expire in this slice
+	 */
+	public static int expireClients(long now, int budget) {
+		return expiry.advance(now, budget);
+	}
+
+	// Remove an expired session, unless it has been removed already
+	private static boolean expire(Client c) {
+		try (Persistence.Step step = Persistence.begin()) {
+			if (!clientsByToken.remove(c.token, c)) return false;
+			close(c, step);
+			return true;
+		}
+	}
+
+	/**
+	 * Add the entries describing all clients and their private messages to the given snapshot.
+	 * Chatroom cursors are part of the chatroom's snapshot. Messages of the given generation
+	 * (or later) are logged after the snapshot's segment roll, so they are left out. Each
+	 * mailbox is read under its client's lock, so that messages that are just being delivered
+	 * are either back in the mailbox, or their delivery is logged after the roll.
+	 */
+	static void snapshot(List<Entry> state, long generation) {
+		for (Client c : clientsByToken.values()) {
+			state.add(c.toEntry());
+			List<Mailbox.Message> messages;
+			synchronized (c) {
+				messages = c.mailbox.peek();
+			}
+			for (Mailbox.Message msg : messages) {
+				if (msg.generation() < generation) state.add(c.toEntry(msg));
 			}
 		}
-		return null;
 	}
 
 	/**
-	 * Clean up old clients -- called by cleanup thread
+	 * Add a client, when recovering from the store
 	 */
-	public static void cleanupClients() {
-		synchronized (clients) {
-			Instant expiry = Instant.now().minusSeconds(3600); // Expiry one hour
-			logger.fine("Cleanup clients: " + clients.size() + " clients registered");
-			clients.removeIf(c -> c.lastUsage.isBefore(expiry));
-			logger.fine("Cleanup clients: " + clients.size() + " clients registered");
+	static void restore(String username, String token, long lastUsage) {
+		Client existing = clientsByToken.get(token);
+		if (existing != null) { // Both in the snapshot and in the log after it
+			existing.lastUsage = Instant.ofEpochMilli(lastUsage);
+			return;
 		}
+		Client client = new Client(username, token);
+		client.lastUsage = Instant.ofEpochMilli(lastUsage);
+		addSession(client);
+	}
+
+	/**
+	 * Return a page of online users, in order (each username once, even with several
+	 * sessions): at most limit usernames that begin with the prefix (may be empty) and
+	 * come after the given username (may be null).
+	 */
+	public static List<String> listClients(String prefix, String after, int limit) {
+		return Account.page(onlineUsernames, prefix, after, limit);
+	}
+
+	/**
+	 * Number of sessions, i.e., valid tokens
+	 */
+	public static int countSessions() {
+		return clientsByToken.size();
+	}
+
+	/**
+	 * Total number of messages waiting in all mailboxes
+	 */
+	public static long totalQueueDepth() {
+		long depth = 0;
+		for (Client c : clientsByToken.values()) depth += c.mailbox.depth();
+		return depth;
 	}
 
 	/**
-	 * Return a list of all clients
+	 * Total number of messages lost by current clients: dropped or rejected by their mailboxes,
+	 * or overwritten in a chatroom's log before they read them
 	 */
-	public static List<String> listClients() {
-		return clients.stream().map(c -> c.username).collect(Collectors.toList());
+	public static long totalDropped() {
+		long dropped = 0;
+		for (Client c : clientsByToken.values()) dropped += c.getDroppedMessages();
+		return dropped;
 	}
 
 	/**
@@ -108,49 +328,266 @@ public class Client {
 		return lastUsage;
 	}
 
+	private Entry toEntry() {
+		return new Entry(Entry.Type.SESSION, token, username, null, null, lastUsage.toEpochMilli());
+	}
+
+	private Entry toEntry(Mailbox.Message msg) {
+		return new Entry(Entry.Type.MESSAGE, token, msg.username(), msg.message(), null,
+				msg.chatroomId() == null ? -1 : msg.chatroomId());
+	}
+
 	// Called when the client takes an action
 	private void updateLastUsage() {
 		this.lastUsage = Instant.now();
 	}
 
 	/**
-	 * Send a message to this client.
+	 * Number of messages waiting for this client
 	 */
-	public void send(String username, String message) {
-		synchronized (messages) {
-			messages.add(new Message(username, message));
+	public int getQueueDepth() {
+		return mailbox.depth();
+	}
+
+	/**
+	 * Number of messages for this client that were lost: dropped or rejected, because the mailbox
+	 * was full, or overwritten in a chatroom's log before the client read them
+	 */
+	public long getDroppedMessages() {
+		return mailbox.dropped() + missed.get();
+	}
+
+	/**
+	 * Send a message to this client. Returns false, if the mailbox is full and rejected the message.
+	 */
+	public boolean send(String username, String message) {
+		boolean accepted;
+		try (Persistence.Step step = Persistence.begin()) {
+			Mailbox.Message msg = new Mailbox.Message(null, username, message, Persistence.generation());
+			accepted = mailbox.offer(msg);
+			if (accepted) step.log(toEntry(msg));
+		}
+		if (accepted) notifyWaiter();
+		return accepted;
+	}
+
+	/**
+	 * Are there any messages waiting for this client?
+	 */
+	public boolean hasMessages() {
+		if (!mailbox.isEmpty()) return true;
+		for (var cursor : roomCursors.entrySet()) {
+			Chatroom chatroom = Chatroom.findByChatroomId(cursor.getKey());
+			if (chatroom != null && chatroom.getLog().nextId() > cursor.getValue()) return true;
+		}
+		return false;
+	}
+
+	/**
+	 * Start reading a chatroom's log at the given message id
+	 */
+	void subscribe(int chatroomId, long nextId) {
+		roomCursors.putIfAbsent(chatroomId, nextId);
+	}
+
+	void unsubscribe(int chatroomId) {
+		roomCursors.remove(chatroomId);
+	}
+
+	/**
+	 * Is this client a member of the given chatroom (on this node or another)?
+	 */
+	public boolean isMemberOf(int chatroomId) {
+		return roomCursors.containsKey(chatroomId);
+	}
+
+	/**
+	 * The id of the next unread message in the given chatroom
+	 */
+	long getCursor(int chatroomId) {
+		return roomCursors.getOrDefault(chatroomId, 0L);
+	}
+
+	// The following methods restore this client's state, when recovering from the store
+	void restoreMessage(int chatroomId, String username, String message) {
+		mailbox.offer(new Mailbox.Message(chatroomId < 0 ? null : chatroomId, username, message, 0));
+	}
+
+	void restoreDrained(int count) {
+		List<Mailbox.Message> messages = mailbox.drain();
+		if (count > 0 && count < messages.size()) mailbox.requeue(messages.subList(count, messages.size()));
+	}
+
+	void restoreCursor(int chatroomId, long nextId) {
+		roomCursors.replace(chatroomId, nextId);
+	}
+
+	/**
+	 * Called by a chatroom, after it has appended a message to its log
+	 */
+	void roomMessageAvailable() {
+		notifyWaiter();
+	}
+
+	/**
+	 * Register a listener to be called once, when the next message arrives. If messages
+	 * are already waiting, the listener is called immediately. Only one listener can wait
+	 * at a time; a new listener replaces the old one.
+	 */
+	public void awaitMessages(MessageListener listener) {
+		waiter.set(listener);
+		if (hasMessages()) notifyWaiter();
+	}
+
+	/**
+	 * Remove a listener that is no longer waiting (e.g., because it timed out)
+	 */
+	public void cancelAwait(MessageListener listener) {
+		waiter.compareAndSet(listener, null);
+	}
+
+	/**
+	 * Attach a listener that is called every time a message arrives, until it is detached.
+	 * Only one stream can be attached at a time; a new stream replaces the old one, which
+	 * is told that it is closed.
+	 */
+	public void attachStream(MessageListener listener) {
+		MessageListener old = stream.getAndSet(listener);
+		if (old != null && old != listener) old.clientClosed(this);
+		if (hasMessages()) listener.messagesAvailable(this);
+	}
+
+	/**
+	 * Detach a stream, if it is still attached
+	 */
+	public void detachStream(MessageListener listener) {
+		stream.compareAndSet(listener, null);
+	}
+
+	private void notifyWaiter() {
+		MessageListener listener = stream.get();
+		if (listener != null) listener.messagesAvailable(this);
+		listener = waiter.getAndSet(null);
+		if (listener != null) listener.messagesAvailable(this);
+	}
+
+	// Called when the client logs out or expires
+	private void closed() {
+		mailbox.close();
+		MessageListener listener = stream.getAndSet(null);
+		if (listener != null) listener.clientClosed(this);
+		listener = waiter.getAndSet(null);
+		if (listener != null) listener.clientClosed(this);
+	}
+
+	/**
+	 * Retrieve messages for this client into the response: first the private messages,
+	 * then the unread messages of each chatroom, as "messages". If chatroom messages were
+	 * overwritten before the client could read them, their number is given as "missed".
+	 */
+	public void putMessages(JSONObject response) {
+		response.put("messages", new JSONArray());
+		Persistence.Step step;
+		synchronized (this) {
+			try {
+				step = takeMessages((messages, missed) -> {
+					response.put("messages", messages);
+					if (missed > 0) response.put("missed", missed);
+				});
+			} catch (IOException e) {
+				throw new IllegalStateException(e); // Not from this sink
+			}
 		}
+		step.awaitDurable(); // Not holding the lock, so that others may go on meanwhile
 	}
 
 	/**
-	 * Retrieve messages for this client
+	 * Write the client's messages to the sink, and remove them only if that succeeds.
+	 * Returns false if the sink failed; the messages are then still waiting.
 	 */
-	public synchronized JSONArray getMessages() {
+	public boolean deliverMessages(MessageSink sink) {
+		Persistence.Step step;
+		synchronized (this) {
+			try {
+				step = takeMessages(sink);
+			} catch (IOException e) {
+				return false;
+			}
+		}
+		step.awaitDurable();
+		return true;
+	}
+
+	// Must hold this client's lock; the only thread that removes messages. Returns the
+	// step that logged the removal, ended: the caller waits for it after releasing the lock.
+	private Persistence.Step takeMessages(MessageSink sink) throws IOException {
 		JSONArray jsonMessages = new JSONArray();
-		for (Message msg : messages) {
+		List<Mailbox.Message> messages = mailbox.drain();
+		for (Mailbox.Message msg : messages) {
 			JSONObject jsonMsg = (new JSONObject())
-					.put("username", msg.username);
-			jsonMsg.put("message", msg.message);
+					.put("username", msg.username());
+			if (msg.chatroomId() != null) {
+				Chatroom chatroom = Chatroom.findByChatroomId(msg.chatroomId());
+				if (chatroom != null) jsonMsg.put("chatroomName", chatroom.getChatroomName());
+			}
+			jsonMsg.put("message", msg.message());
 			jsonMessages.put(jsonMsg);
 		}
-		messages.clear();
 
-		for (ChatroomMessage chatroomMessage : chatroomMessages){
-			JSONObject jsonMsg = (new JSONObject())
-					.put("username", chatroomMessage.username);
-			jsonMsg.put("chatroomName", Chatroom.findByChatroomId(chatroomMessage.chatroomId).getChatroomName());
-			jsonMsg.put("message", chatroomMessage.message);
-			jsonMessages.put(jsonMsg);
+		Map<Integer, Long> nextIds = new HashMap<>();
+		long missedNow = 0;
+		for (var cursor : roomCursors.entrySet()) {
+			Chatroom chatroom = Chatroom.findByChatroomId(cursor.getKey());
+			if (chatroom == null) { // Chatroom has been deleted
+				roomCursors.remove(cursor.getKey());
+				continue;
+			}
+			long nextId = cursor.getValue();
+			for (RoomLog.Entry entry : chatroom.getLog().readFrom(nextId)) {
+				missedNow += entry.id() - nextId; // Overwritten before we got to them
+				JSONObject jsonMsg = (new JSONObject())
+						.put("username", entry.username());
+				jsonMsg.put("chatroomName", chatroom.getChatroomName());
+				jsonMsg.put("chatroomId", chatroom.getChatroomId());
+				jsonMsg.put("messageId", entry.id());
+				jsonMsg.put("message", entry.message());
+				jsonMessages.put(jsonMsg);
+				nextId = entry.id() + 1;
+			}
+			long oldestId = chatroom.getLog().oldestId();
+			if (nextId < oldestId) {
+				missedNow += oldestId - nextId;
+				nextId = oldestId;
+			}
+			if (nextId != cursor.getValue()) nextIds.put(cursor.getKey(), nextId);
 		}
-		chatroomMessages.clear();
 
-		updateLastUsage();
-		return jsonMessages;
-	}
+		if (!jsonMessages.isEmpty() || missedNow > 0) {
+			try {
+				sink.write(jsonMessages, missedNow);
+			} catch (IOException e) {
+				// Put the private messages back; the room cursors have not moved. A snapshot
+				// waits for this client's lock, so it still finds them in the mailbox.
+				mailbox.requeue(messages);
+				throw e;
+			}
+		}
 
-	public void addChatroomMessage (Integer chatroomId, String username, String message) {
-		synchronized (chatroomMessages){
-			chatroomMessages.add(new ChatroomMessage(chatroomId, username, message));
+		Persistence.Step step = Persistence.begin();
+		try {
+			if (!messages.isEmpty()) step.log(new Entry(Entry.Type.MAILBOX_DRAINED, token, null, null, null, messages.size()));
+			for (Map.Entry<Integer, Long> next : nextIds.entrySet()) {
+				Long previous = roomCursors.get(next.getKey());
+				if (previous != null && previous < next.getValue() && roomCursors.replace(next.getKey(), previous, next.getValue())) {
+					step.log(new Entry(Entry.Type.CURSOR, next.getKey().toString(), token, null, null, next.getValue()));
+				}
+			}
+		} finally {
+			step.end();
 		}
+
+		missed.addAndGet(missedNow);
+		updateLastUsage();
+		return step;
 	}
 }
@@ -0,0 +1,686 @@
+package chatroom.server;
+
+import chatroom.server.handlers.ForwardedExchange;
+import com.sun.net.httpserver.HttpHandler;
+import com.sun.net.httpserver.HttpServer;
+
+import java.io.DataInputStream;
+import java.io.DataOutputStream;
+import java.io.IOException;
+import java.net.InetSocketAddress;
+import java.nio.charset.StandardCharsets;
+import java.net.ServerSocket;
+import java.net.Socket;
+import java.net.URI;
+import java.util.ArrayList;
+import java.util.LinkedHashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.concurrent.ArrayBlockingQueue;
+import java.util.concurrent.CompletableFuture;
+import java.util.concurrent.ExecutionException;
+import java.util.concurrent.Executor;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.RejectedExecutionException;
+import java.util.concurrent.Executors;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.ThreadPoolExecutor;
+import java.util.concurrent.TimeoutException;
+import java.util.concurrent.atomic.AtomicBoolean;
+import java.util.concurrent.atomic.AtomicReferenceArray;
+import java.util.logging.Logger;
+
+import static chatroom.server.ClusterLink.readString;
+import static chatroom.server.ClusterLink.writeString;
+
+/**
+ * Cluster mode: several servers share the load, each holding part of the state.
+ *
+ * - Users belong to the node given by the hash of their username. Their account and all
+ *   their sessions live there, and their tokens begin with the number of that node.
+ * - Chatrooms belong to the node that created them; the node is the chatroomId modulo
+ *   the number of nodes. Other nodes with members keep a mirror of the room, which
+ *   receives the room's messages, so that members can poll them locally.
+ *
+ * Any node accepts any request: a request for another node's user is forwarded there
+ * as a whole. Messages to users and chatrooms on other nodes are sent directly. The
+ * nodes talk over ClusterLinks: each node listens on its HTTP address, with the port
+ * plus 1000, and calls each other node over its own connection. One-way messages (room
+ * messages, presence) are sent in order by a single thread, so that callers never wait
+ * for them.
+ *
+ * The nodes authenticate each other with a shared secret, and then trust each other's
+ * requests as far as the requesting node is entitled to them: a node speaks for its own
+ * users and its own chatrooms, but not for those of other nodes.
+ */
+public class Cluster {
+	private static final Logger logger = Logger.getLogger("");
+	public static final int LINK_PORT_OFFSET = 1000;
+	private static final long CALL_TIMEOUT = 5; // seconds
+	private static final long FORWARD_TIMEOUT = 120; // seconds; a forwarded long-poll may wait
+
+	// Operations
+	private static final byte FORWARD = 1;
+	private static final byte DELIVER = 2;
+	private static final byte PRESENCE = 3;
+	private static final byte PRESENCE_SYNC = 4;
+	private static final byte ROOM_SEND = 10;
+	private static final byte ROOM_ENTRIES = 11;
+	private static final byte ROOM_JOIN = 12;
+	private static final byte ROOM_LEAVE = 13;
+	private static final byte ROOM_ADD = 14;
+	private static final byte ROOM_DELETE = 15;
+	private static final byte ROOM_REMOVED = 16;
+	private static final byte ROOM_MEMBERS = 17;
+	private static final byte ROOM_HISTORY = 18;
+	private static final int HANDSHAKE_THREADS = 4;
+	private static final int HANDSHAKE_QUEUE = 16;
+
+	private static List<InetSocketAddress> nodes = List.of(); // HTTP addresses; empty, if not clustered
+	private static int self = 0;
+	private static byte[] secret;
+	private static AtomicReferenceArray<ClusterLink> links;
+	private static Object[] connectLocks; // One per node, held while connecting to it
+	private static long[] nextConnect; // When to try again to connect to a node that was down; guarded by its connect lock
+	private static Executor executor;
+	private static Map<String, ForwardedExchange.Context> contexts;
+	private static final ExecutorService sender = Executors.newSingleThreadExecutor(r -> {
+		Thread t = new Thread(r, "ClusterSender");
+		t.setDaemon(true);
+		return t;
+	});
+	// Authenticates the connections of other nodes; when it is busy, further connections are refused
+	private static final ThreadPoolExecutor handshakes = new ThreadPoolExecutor(HANDSHAKE_THREADS, HANDSHAKE_THREADS,
+			60, TimeUnit.SECONDS, new ArrayBlockingQueue<>(HANDSHAKE_QUEUE), r -> {
+		Thread t = new Thread(r, "ClusterHandshake");
+		t.setDaemon(true);
+		return t;
+	});
+
+	static {
+		handshakes.allowCoreThreadTimeOut(true);
+	}
+
+	/**
+	 * The result of a forwarded request
+	 */
+	public record Reply(int statusCode, byte[] body) {}
+
+	/**
+	 * What a node learns about a chatroom when it joins it
+	 */
+	record RoomInfo(String chatroomName, String creatorName, long nextId, List<String> members) {}
+
+	/**
+	 * Configure the cluster from a comma-separated list of the nodes' HTTP addresses
+	 * (host:port), the same on all nodes, the index of this node in the list, and the
+	 * secret shared by all nodes
+	 */
+	public static void configure(String nodeList, int self, String secret) {
+		List<InetSocketAddress> addresses = new ArrayList<>();
+		for (String node : nodeList.split(",")) {
+			int pos = node.lastIndexOf(':');
+			addresses.add(new InetSocketAddress(node.substring(0, pos).trim(), Integer.parseInt(node.substring(pos + 1).trim())));
+		}
+		if (self < 0 || self >= addresses.size()) throw new IllegalArgumentException("Invalid node " + self);
+		if (addresses.size() > 1 && (secret == null || secret.isEmpty())) throw new IllegalArgumentException("A cluster requires a secret");
+		Cluster.nodes = addresses;
+		Cluster.self = self;
+		Cluster.secret = (secret == null) ? null : secret.getBytes(StandardCharsets.UTF_8);
+		links = new AtomicReferenceArray<>(addresses.size());
+		connectLocks = new Object[addresses.size()];
+		for (int node = 0; node < addresses.size(); node++) connectLocks[node] = new Object();
+		nextConnect = new long[addresses.size()];
+	}
+
+	public static boolean enabled() {
+		return nodes.size() > 1;
+	}
+
+	public static int self() {
+		return self;
+	}
+
+	public static int size() {
+		return enabled() ? nodes.size() : 1;
+	}
+
+	public static InetSocketAddress httpAddress(int node) {
+		return nodes.get(node);
+	}
+
+	public static Executor executor() {
+		return executor;
+	}
+
+	public static int nodeOfUsername(String username) {
+		return enabled() ? Math.floorMod(username.hashCode(), nodes.size()) : self;
+	}
+
+	/**
+	 * The first byte of a token is the node that issued it
+	 */
+	public static int nodeOfToken(String token) {
+		if (!enabled() || token.length() < 2) return self;
+		try {
+			int node = Integer.parseInt(token, 0, 2, 16);
+			return (node < nodes.size()) ? node : self;
+		} catch (NumberFormatException e) {
+			return self;
+		}
+	}
+
+	public static int nodeOfChatroom(int chatroomId) {
+		return enabled() ? Math.floorMod(chatroomId, nodes.size()) : self;
+	}
+
+	/**
+	 * Start accepting connections from the other nodes, and connect to them. Forwarded
+	 * requests are handled by the handler of the matching context, on the given executor.
+	 */
+	public static void start(HttpServer server, Executor executor, Map<String, HttpHandler> handlers) throws IOException {
+		Cluster.executor = executor;
+		Map<String, ForwardedExchange.Context> contexts = new LinkedHashMap<>();
+		handlers.forEach((path, handler) -> contexts.put(path, new ForwardedExchange.Context(path, handler, server)));
+		Cluster.contexts = contexts;
+		InetSocketAddress http = nodes.get(self);
+		ServerSocket listener = new ServerSocket();
+		listener.bind(new InetSocketAddress(http.getAddress(), http.getPort() + LINK_PORT_OFFSET));
+		Thread acceptor = new Thread(() -> {
+			while (true) {
+				try {
+					Socket socket = listener.accept();
+					try {
+						handshakes.execute(() -> accept(socket));
+					} catch (RejectedExecutionException e) {
+						logger.warning("Cluster connection from " + socket.getRemoteSocketAddress() + " refused: too many handshakes");
+						socket.close();
+					}
+				} catch (IOException e) {
+					logger.warning("Cluster listener: " + e);
+				}
+			}
+		}, "ClusterAcceptor");
+		acceptor.setDaemon(true);
+		acceptor.start();
+		logger.info("Cluster node " + self + " of " + nodes.size() + ", listening on " + listener.getLocalSocketAddress());
+
+		// Connect to the other nodes as soon as they are up, so that we learn who is online
+		for (int node = 0; node < nodes.size(); node++) {
+			if (node != self) {
+				int n = node;
+				sender.execute(() -> connectEventually(n));
+			}
+		}
+	}
+
+	// Authenticate a node that connected to us, and start handling its requests. The handshake
+	// must be over in time as a whole, so that a peer sending slowly cannot hold up a thread.
+	private static void accept(Socket socket) {
+		AtomicBoolean over = new AtomicBoolean();
+		CompletableFuture.delayedExecutor(ClusterLink.HANDSHAKE_TIMEOUT, TimeUnit.MILLISECONDS).execute(() -> {
+			if (over.compareAndSet(false, true)) {
+				try {
+					socket.close();
+				} catch (IOException ignored) {
+					// Closing anyway
+				}
+			}
+		});
+		try {
+			ClusterLink link = new ClusterLink(socket, Cluster::dispatch);
+			int node = link.accept(self, nodes.size(), secret);
+			if (!over.compareAndSet(false, true)) throw new IOException("Handshake timed out");
+			link.start("ClusterLink-in-" + node, () -> {});
+		} catch (IOException e) {
+			logger.warning("Cluster connection from " + socket.getRemoteSocketAddress() + " refused: " + e);
+			try {
+				socket.close();
+			} catch (IOException ignored) {
+				// Closing anyway
+			}
+		}
+	}
+
+	private static void connectEventually(int node) {
+		try {
+			link(node);
+		} catch (IOException e) {
+			CompletableFuture.delayedExecutor(1, TimeUnit.SECONDS, sender).execute(() -> connectEventually(node));
+		}
+	}
+
+	/**
+	 * Our connection to a node; connect, if there is none. After a failed attempt, we
+	 * wait a second before trying again, so that a node that is down does not slow us down.
+	 * Only callers for the same node wait while we connect.
+	 */
+	private static ClusterLink link(int node) throws IOException {
+		ClusterLink link = links.get(node);
+		if (link != null && !link.isClosed()) return link;
+		synchronized (connectLocks[node]) {
+			link = links.get(node);
+			if (link != null && !link.isClosed()) return link;
+			if (System.currentTimeMillis() < nextConnect[node]) throw new IOException("Node " + node + " unavailable");
+			InetSocketAddress http = nodes.get(node);
+			Socket socket = new Socket();
+			try {
+				socket.connect(new InetSocketAddress(http.getHostString(), http.getPort() + LINK_PORT_OFFSET), 1000);
+				link = new ClusterLink(socket, Cluster::dispatch);
+				link.connect(self, node, secret);
+			} catch (IOException e) {
+				socket.close();
+				nextConnect[node] = System.currentTimeMillis() + 1000;
+				throw e;
+			}
+			ClusterLink connected = link;
+			links.set(node, link);
+			link.start("ClusterLink-" + node, () -> disconnected(node, connected));
+			logger.info("Connected to cluster node " + node + " at " + socket.getRemoteSocketAddress());
+		}
+		syncPresence(node, link);
+		return link;
+	}
+
+	private static void disconnected(int node, ClusterLink link) {
+		links.compareAndSet(node, link, null);
+		Client.dropRemotePresence(node);
+		sender.execute(() -> connectEventually(node));
+	}
+
+	/**
+	 * Call a node and wait for the reply
+	 */
+	private static DataInputStream call(int node, byte op, ClusterLink.Payload payload) throws IOException {
+		try {
+			return link(node).call(op, payload).get(CALL_TIMEOUT, TimeUnit.SECONDS);
+		} catch (ExecutionException | TimeoutException e) {
+			throw new IOException("Node " + node + " unavailable");
+		} catch (InterruptedException e) {
+			Thread.currentThread().interrupt();
+			throw new IOException("Interrupted");
+		}
+	}
+
+	/**
+	 * Send a one-way message, in order with all other one-way messages
+	 */
+	private static void send(int node, byte op, ClusterLink.Payload payload) {
+		sender.execute(() -> {
+			try {
+				link(node).send(op, payload);
+			} catch (IOException e) {
+				logger.fine("Message to node " + node + " lost: " + e);
+			}
+		});
+	}
+
+	// ----- Requests -----
+
+	/**
+	 * Forward an HTTP request to the node that owns its user
+	 */
+	public static CompletableFuture<Reply> forward(int node, String method, String uri, byte[] body, InetSocketAddress client) {
+		try {
+			return link(node).call(FORWARD, out -> {
+				writeString(out, method);
+				writeString(out, uri);
+				ClusterLink.writeBytes(out, body);
+				writeString(out, client.getHostString());
+				out.writeInt(client.getPort());
+			}).thenApply(in -> {
+				try {
+					return new Reply(in.readInt(), ClusterLink.readBytes(in));
+				} catch (IOException e) {
+					throw new IllegalStateException(e);
+				}
+			}).orTimeout(FORWARD_TIMEOUT, TimeUnit.SECONDS);
+		} catch (IOException e) {
+			return CompletableFuture.failedFuture(e);
+		}
+	}
+
+	static List<Client.Delivery> deliver(int node, String username, String sender, List<String> messages) throws IOException {
+		DataInputStream in = call(node, DELIVER, out -> {
+			writeString(out, username);
+			writeString(out, sender);
+			out.writeInt(messages.size());
+			for (String message : messages) writeString(out, message);
+		});
+		List<Client.Delivery> results = new ArrayList<>();
+		for (int i = in.readInt(); i > 0; i--) results.add(Client.Delivery.values()[in.readByte()]);
+		return results;
+	}
+
+	// Tell the other nodes that a local user came online or went offline. The presence is read
+	// when the message is written: the sender writes in order, so the last message is right.
+	static void presence(String username) {
+		if (!enabled()) return;
+		for (int node = 0; node < nodes.size(); node++) {
+			if (node != self) send(node, PRESENCE, out -> {
+				writeString(out, username);
+				out.writeBoolean(Client.isOnline(username));
+			});
+		}
+	}
+
+	// Ask a node, to which we just connected, who is online there
+	private static void syncPresence(int node, ClusterLink link) {
+		link.call(PRESENCE_SYNC, out -> {}).thenAccept(in -> {
+			try {
+				for (String username : readStrings(in)) {
+					if (nodeOfUsername(username) == node) Client.remotePresence(username, true);
+				}
+			} catch (IOException e) {
+				logger.fine("Presence sync with node " + node + " failed: " + e);
+			}
+		});
+	}
+
+	static boolean roomSend(int node, int chatroomId, String sender, List<String> messages) throws IOException {
+		return call(node, ROOM_SEND, out -> {
+			out.writeInt(chatroomId);
+			writeString(out, sender);
+			out.writeInt(messages.size());
+			for (String message : messages) writeString(out, message);
+		}).readBoolean();
+	}
+
+	static void roomEntries(int node, int chatroomId, List<RoomLog.Entry> entries) {
+		send(node, ROOM_ENTRIES, out -> {
+			out.writeInt(chatroomId);
+			writeEntries(out, entries);
+		});
+	}
+
+	static RoomInfo roomJoin(int node, int chatroomId, String username) throws IOException {
+		DataInputStream in = call(node, ROOM_JOIN, out -> {
+			out.writeInt(chatroomId);
+			writeString(out, username);
+		});
+		if (!in.readBoolean()) return null;
+		return new RoomInfo(readString(in), readString(in), in.readLong(), readStrings(in));
+	}
+
+	static void roomLeave(int node, int chatroomId, String username) {
+		send(node, ROOM_LEAVE, out -> {
+			out.writeInt(chatroomId);
+			writeString(out, username);
+		});
+	}
+
+	static boolean roomAdd(int node, int chatroomId, String chatroomName, String creatorName, long nextId, String username) throws IOException {
+		return call(node, ROOM_ADD, out -> {
+			out.writeInt(chatroomId);
+			writeString(out, chatroomName);
+			writeString(out, creatorName);
+			out.writeLong(nextId);
+			writeString(out, username);
+		}).readBoolean();
+	}
+
+	static boolean roomDelete(int node, int chatroomId, String username) throws IOException {
+		return call(node, ROOM_DELETE, out -> {
+			out.writeInt(chatroomId);
+			writeString(out, username);
+		}).readBoolean();
+	}
+
+	/**
+	 * Tell all other nodes that a chatroom has been deleted, so that they drop their mirrors
+	 */
+	static void roomRemoved(int chatroomId) {
+		if (!enabled()) return;
+		for (int node = 0; node < nodes.size(); node++) {
+			if (node != self) send(node, ROOM_REMOVED, out -> out.writeInt(chatroomId));
+		}
+	}
+
+	static List<String> roomMembers(int node, int chatroomId) throws IOException {
+		DataInputStream in = call(node, ROOM_MEMBERS, out -> out.writeInt(chatroomId));
+		return in.readBoolean() ? readStrings(in) : null;
+	}
+
+	static List<RoomLog.Entry> roomHistory(int node, int chatroomId, Long before, Long after, int limit) throws IOException {
+		DataInputStream in = call(node, ROOM_HISTORY, out -> {
+			out.writeInt(chatroomId);
+			out.writeLong(before == null ? -1 : before);
+			out.writeLong(after == null ? -1 : after);
+			out.writeInt(limit);
+		});
+		return in.readBoolean() ? readEntries(in) : null;
+	}
+
+	// ----- Handling requests from other nodes -----
+
+	/**
+	 * Handle a frame from another node. Forwarded requests, and deliveries (which may wait
+	 * for a chatroom or for the store), run on the executor; everything else is handled
+	 * right here, on the link's thread, so that one-way messages are processed in order,
+	 * and none of this waits for another node. A request that the node is not entitled to
+	 * closes the link.
+	 */
+	private static void dispatch(ClusterLink link, byte op, long callId, DataInputStream in) throws IOException {
+		int peer = link.peer();
+		switch (op) {
+			case FORWARD -> {
+				String method = readString(in);
+				String uriString = readString(in);
+				byte[] body = ClusterLink.readBytes(in);
+				InetSocketAddress client = InetSocketAddress.createUnresolved(readString(in), in.readInt());
+				ForwardedExchange.Completion completion = (status, response) -> {
+					try {
+						link.reply(callId, out -> {
+							out.writeInt(status);
+							ClusterLink.writeBytes(out, response);
+						});
+					} catch (IOException e) {
+						logger.fine("Forwarded response lost: " + e);
+					}
+				};
+				URI uri;
+				try {
+					uri = URI.create(uriString);
+				} catch (IllegalArgumentException e) {
+					completion.completed(400, new byte[0]);
+					return;
+				}
+				ForwardedExchange.Context context = findContext(uri.getPath());
+				ForwardedExchange exchange = new ForwardedExchange(method, uri, body, context, client, nodes.get(self), completion);
+				if (context == null) {
+					exchange.fail(404, "No such mapping");
+					return;
+				}
+				try {
+					executor.execute(() -> {
+						try {
+							context.getHandler().handle(exchange);
+						} catch (Exception e) {
+							logger.warning("Forwarded request failed: " + e);
+							exchange.fail(500, "Internal error");
+						}
+					});
+				} catch (RejectedExecutionException e) {
+					exchange.fail(503, "Server busy");
+				}
+			}
+			case DELIVER -> {
+				String username = readString(in);
+				String sender = readString(in);
+				requireUser(peer, sender);
+				List<String> messages = readStrings(in);
+				runOnExecutor(link, callId, () -> {
+					List<Client.Delivery> results = Client.deliverLocal(username, sender, messages);
+					return out -> {
+						out.writeInt(results.size());
+						for (Client.Delivery result : results) out.writeByte(result.ordinal());
+					};
+				});
+			}
+			case PRESENCE -> {
+				String username = readString(in);
+				requireUser(peer, username);
+				Client.remotePresence(username, in.readBoolean());
+			}
+			case PRESENCE_SYNC -> {
+				List<String> usernames = Client.localUsernames();
+				link.reply(callId, out -> writeStrings(out, usernames));
+			}
+			case ROOM_SEND -> {
+				int chatroomId = in.readInt();
+				String sender = readString(in);
+				requireUser(peer, sender);
+				List<String> messages = readStrings(in);
+				runOnExecutor(link, callId, () -> {
+					boolean found = Chatroom.receiveSend(chatroomId, sender, messages);
+					return out -> out.writeBoolean(found);
+				});
+			}
+			case ROOM_ENTRIES -> {
+				int chatroomId = in.readInt();
+				requireChatroom(peer, chatroomId);
+				Chatroom.receiveEntries(chatroomId, readEntries(in));
+			}
+			case ROOM_JOIN -> {
+				int chatroomId = in.readInt();
+				String username = readString(in);
+				requireUser(peer, username);
+				runOnExecutor(link, callId, () -> {
+					RoomInfo info = Chatroom.receiveJoin(chatroomId, username);
+					return out -> {
+						out.writeBoolean(info != null);
+						if (info != null) {
+							writeString(out, info.chatroomName());
+							writeString(out, info.creatorName());
+							out.writeLong(info.nextId());
+							writeStrings(out, info.members());
+						}
+					};
+				});
+			}
+			case ROOM_LEAVE -> {
+				int chatroomId = in.readInt();
+				String username = readString(in);
+				requireUser(peer, username);
+				Chatroom.receiveLeave(chatroomId, username);
+			}
+			case ROOM_ADD -> {
+				int chatroomId = in.readInt();
+				requireChatroom(peer, chatroomId);
+				String chatroomName = readString(in);
+				String creatorName = readString(in);
+				long nextId = in.readLong();
+				String username = readString(in);
+				runOnExecutor(link, callId, () -> {
+					boolean added = Chatroom.receiveAdd(chatroomId, chatroomName, creatorName, nextId, username);
+					return out -> out.writeBoolean(added);
+				});
+			}
+			case ROOM_DELETE -> {
+				int chatroomId = in.readInt();
+				String username = readString(in);
+				requireUser(peer, username);
+				runOnExecutor(link, callId, () -> {
+					boolean deleted = Chatroom.receiveDelete(chatroomId, username);
+					return out -> out.writeBoolean(deleted);
+				});
+			}
+			case ROOM_REMOVED -> {
+				int chatroomId = in.readInt();
+				requireChatroom(peer, chatroomId);
+				Chatroom.receiveRemoved(chatroomId);
+			}
+			case ROOM_MEMBERS -> {
+				List<String> members = Chatroom.receiveMembers(in.readInt());
+				link.reply(callId, out -> {
+					out.writeBoolean(members != null);
+					if (members != null) writeStrings(out, members);
+				});
+			}
+			case ROOM_HISTORY -> {
+				int chatroomId = in.readInt();
+				long before = in.readLong();
+				long after = in.readLong();
+				int limit = in.readInt();
+				List<RoomLog.Entry> history = Chatroom.receiveHistory(chatroomId,
+						before < 0 ? null : before, after < 0 ? null : after, limit);
+				link.reply(callId, out -> {
+					out.writeBoolean(history != null);
+					if (history != null) writeEntries(out, history);
+				});
+			}
+			default -> throw new IOException("Unknown operation " + op);
+		}
+	}
+
+	private interface Request {
+		ClusterLink.Payload handle();
+	}
+
+	// Handle a call on the executor, and reply from there; if the executor is overloaded, an empty reply fails the call
+	private static void runOnExecutor(ClusterLink link, long callId, Request request) throws IOException {
+		try {
+			executor.execute(() -> {
+				try {
+					link.reply(callId, request.handle());
+				} catch (IOException e) {
+					logger.fine("Reply to node " + link.peer() + " lost: " + e);
+				} catch (RuntimeException e) {
+					logger.warning("Request from node " + link.peer() + " failed: " + e);
+					try {
+						link.reply(callId, out -> {});
+					} catch (IOException ignored) {
+						// The call fails by timeout
+					}
+				}
+			});
+		} catch (RejectedExecutionException e) {
+			link.reply(callId, out -> {});
+		}
+	}
+
+	// A node speaks for its own users only
+	private static void requireUser(int node, String username) throws IOException {
+		if (username == null || nodeOfUsername(username) != node) throw new IOException("Node " + node + " may not act for user " + username);
+	}
+
+	// A node speaks for its own chatrooms only
+	private static void requireChatroom(int node, int chatroomId) throws IOException {
+		if (nodeOfChatroom(chatroomId) != node) throw new IOException("Node " + node + " may not act for chatroom " + chatroomId);
+	}
+
+	// The context with the longest path that matches, as in HttpServer
+	private static ForwardedExchange.Context findContext(String path) {
+		String best = null;
+		for (String context : contexts.keySet()) {
+			if (path.startsWith(context) && (best == null || context.length() > best.length())) best = context;
+		}
+		return (best == null) ? null : contexts.get(best);
+	}
+
+	private static void writeStrings(DataOutputStream out, List<String> strings) throws IOException {
+		out.writeInt(strings.size());
+		for (String s : strings) writeString(out, s);
+	}
+
+	private static List<String> readStrings(DataInputStream in) throws IOException {
+		List<String> strings = new ArrayList<>();
+		for (int i = in.readInt(); i > 0; i--) strings.add(readString(in));
+		return strings;
+	}
+
+	private static void writeEntries(DataOutputStream out, List<RoomLog.Entry> entries) throws IOException {
+		out.writeInt(entries.size());
+		for (RoomLog.Entry entry : entries) {
+			out.writeLong(entry.id());
+			writeString(out, entry.username());
+			writeString(out, entry.message());
+		}
+	}
+
+	private static List<RoomLog.Entry> readEntries(DataInputStream in) throws IOException {
+		List<RoomLog.Entry> entries = new ArrayList<>();
+		for (int i = in.readInt(); i > 0; i--) entries.add(new RoomLog.Entry(in.readLong(), readString(in), readString(in)));
+		return entries;
+	}
+}
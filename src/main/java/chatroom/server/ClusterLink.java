@@ -0,0 +1,274 @@
+package chatroom.server;
+
+import javax.crypto.Mac;
+import javax.crypto.spec.SecretKeySpec;
+import java.io.*;
+import java.net.Socket;
+import java.nio.charset.StandardCharsets;
+import java.security.GeneralSecurityException;
+import java.security.MessageDigest;
+import java.security.SecureRandom;
+import java.util.concurrent.CompletableFuture;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.atomic.AtomicLong;
+import java.util.logging.Logger;
+
+/**
+ * One TCP connection between two nodes of the cluster. Every frame is
+ *
+ *   [int length][byte op][long callId][payload]
+ *
+ * where length counts op, callId and payload. A call has a callId greater than zero,
+ * and is answered by a REPLY frame with the same callId; one-way messages have callId
+ * zero. Payloads are written with DataOutputStream; strings are written as their length
+ * in bytes and their UTF-8 bytes, so that they are not limited to 64KB.
+ *
+ * Before any frame, both sides prove that they know the cluster's shared secret: each
+ * sends a random nonce, and answers the other's nonce with an HMAC over both nonces, its
+ * role, and the numbers of both nodes. This also tells the accepting side which node
+ * connected, so that requests can be checked against what that node may ask for. The
+ * frames themselves are not encrypted or signed; the links belong on a private network.
+ *
+ * Frames are read by one thread per connection, which hands requests to the dispatcher
+ * and completes the futures of calls when their replies arrive.
+ */
+class ClusterLink {
+	private static final Logger logger = Logger.getLogger("");
+	static final byte REPLY = 0;
+	private static final int MAX_FRAME = 16 * 1024 * 1024;
+	private static final int MAGIC = 0x43484154; // "CHAT"
+	private static final int NONCE_LENGTH = 32;
+	private static final int MAC_LENGTH = 32; // HMAC-SHA256
+	static final int HANDSHAKE_TIMEOUT = 5000; // ms
+	private static final byte ACCEPTING = 'A', CONNECTING = 'C';
+	private static final SecureRandom random = new SecureRandom();
+
+	interface Payload {
+		void write(DataOutputStream out) throws IOException;
+	}
+
+	interface Dispatcher {
+		void dispatch(ClusterLink link, byte op, long callId, DataInputStream in) throws IOException;
+	}
+
+	private final Socket socket;
+	private final DataOutputStream out;
+	private final DataInputStream in;
+	private final Dispatcher dispatcher;
+	private final ConcurrentHashMap<Long, CompletableFuture<DataInputStream>> pending = new ConcurrentHashMap<>();
+	private final AtomicLong callIds = new AtomicLong(0);
+	private volatile boolean closed = false;
+	private volatile int peer = -1; // The node at the other end, once authenticated
+	private Runnable onClose = () -> {};
+
+	ClusterLink(Socket socket, Dispatcher dispatcher) throws IOException {
+		this.socket = socket;
+		socket.setTcpNoDelay(true);
+		this.out = new DataOutputStream(new BufferedOutputStream(socket.getOutputStream(), 8192));
+		this.in = new DataInputStream(new BufferedInputStream(socket.getInputStream(), 8192));
+		this.dispatcher = dispatcher;
+	}
+
+	/**
+	 * Authenticate the connection, as the side that connected to the given node
+	 */
+	void connect(int self, int node, byte[] secret) throws IOException {
+		socket.setSoTimeout(HANDSHAKE_TIMEOUT);
+		byte[] nonce = nonce();
+		out.writeInt(MAGIC);
+		out.writeInt(self);
+		out.write(nonce);
+		out.flush();
+		byte[] peerNonce = readFully(NONCE_LENGTH);
+		if (!MessageDigest.isEqual(readFully(MAC_LENGTH), mac(secret, ACCEPTING, node, self, nonce, peerNonce))) {
+			throw new IOException("Node " + node + " failed to authenticate");
+		}
+		out.write(mac(secret, CONNECTING, self, node, peerNonce, nonce));
+		out.flush();
+		socket.setSoTimeout(0);
+		peer = node;
+	}
+
+	/**
+	 * Authenticate the connection, as the side that accepted it; returns the node that connected
+	 */
+	int accept(int self, int nodes, byte[] secret) throws IOException {
+		socket.setSoTimeout(HANDSHAKE_TIMEOUT);
+		if (in.readInt() != MAGIC) throw new IOException("Not a cluster node");
+		int node = in.readInt();
+		if (node < 0 || node >= nodes || node == self) throw new IOException("Invalid node " + node);
+		byte[] peerNonce = readFully(NONCE_LENGTH);
+		byte[] nonce = nonce();
+		out.write(nonce);
+		out.write(mac(secret, ACCEPTING, self, node, peerNonce, nonce));
+		out.flush();
+		if (!MessageDigest.isEqual(readFully(MAC_LENGTH), mac(secret, CONNECTING, node, self, nonce, peerNonce))) {
+			throw new IOException("Node " + node + " failed to authenticate");
+		}
+		socket.setSoTimeout(0);
+		peer = node;
+		return node;
+	}
+
+	/**
+	 * The node at the other end of the link
+	 */
+	int peer() {
+		return peer;
+	}
+
+	private byte[] readFully(int length) throws IOException {
+		byte[] bytes = new byte[length];
+		in.readFully(bytes);
+		return bytes;
+	}
+
+	private static byte[] nonce() {
+		byte[] nonce = new byte[NONCE_LENGTH];
+		random.nextBytes(nonce);
+		return nonce;
+	}
+
+	// The proof of the given side: an HMAC-SHA256 over its role, both nodes (from, to), and both nonces
+	private static byte[] mac(byte[] secret, byte role, int from, int to, byte[] nonce1, byte[] nonce2) {
+		try {
+			Mac mac = Mac.getInstance("HmacSHA256");
+			mac.init(new SecretKeySpec(secret, "HmacSHA256"));
+			mac.update(role);
+			mac.update(new byte[] { (byte) (from >>> 24), (byte) (from >>> 16), (byte) (from >>> 8), (byte) from });
+			mac.update(new byte[] { (byte) (to >>> 24), (byte) (to >>> 16), (byte) (to >>> 8), (byte) to });
+			mac.update(nonce1);
+			return mac.doFinal(nonce2);
+		} catch (GeneralSecurityException e) {
+			throw new IllegalStateException(e); // HmacSHA256 is always available
+		}
+	}
+
+	/**
+	 * Start reading frames; onClose runs once, when the connection fails or is closed
+	 */
+	void start(String name, Runnable onClose) {
+		this.onClose = onClose;
+		Thread reader = new Thread(this::read, name);
+		reader.setDaemon(true);
+		reader.start();
+	}
+
+	boolean isClosed() {
+		return closed;
+	}
+
+	/**
+	 * Send a request, and return the future reply
+	 */
+	CompletableFuture<DataInputStream> call(byte op, Payload payload) {
+		long callId = callIds.incrementAndGet();
+		CompletableFuture<DataInputStream> reply = new CompletableFuture<>();
+		pending.put(callId, reply);
+		try {
+			write(op, callId, payload);
+			if (closed) fail(); // Closed while we were registering the call
+		} catch (IOException e) {
+			pending.remove(callId);
+			reply.completeExceptionally(e);
+		}
+		return reply;
+	}
+
+	/**
+	 * Send a one-way message
+	 */
+	void send(byte op, Payload payload) throws IOException {
+		write(op, 0, payload);
+	}
+
+	void reply(long callId, Payload payload) throws IOException {
+		write(REPLY, callId, payload);
+	}
+
+	private void write(byte op, long callId, Payload payload) throws IOException {
+		if (closed) throw new IOException("Link closed");
+		ByteArrayOutputStream bytes = new ByteArrayOutputStream(256);
+		DataOutputStream frame = new DataOutputStream(bytes);
+		frame.writeByte(op);
+		frame.writeLong(callId);
+		payload.write(frame);
+		synchronized (out) {
+			out.writeInt(bytes.size());
+			bytes.writeTo(out);
+			out.flush();
+		}
+	}
+
+	private void read() {
+		try {
+			while (true) {
+				int length = in.readInt();
+				if (length < 9 || length > MAX_FRAME) throw new IOException("Invalid frame length " + length);
+				byte[] frame = new byte[length];
+				in.readFully(frame);
+				DataInputStream data = new DataInputStream(new ByteArrayInputStream(frame));
+				byte op = data.readByte();
+				long callId = data.readLong();
+				if (op == REPLY) {
+					CompletableFuture<DataInputStream> reply = pending.remove(callId);
+					if (reply != null) reply.complete(data);
+				} else {
+					dispatcher.dispatch(this, op, callId, data);
+				}
+			}
+		} catch (IOException e) {
+			if (!closed) logger.info("Cluster link " + socket.getRemoteSocketAddress() + " closed: " + e);
+		} finally {
+			close();
+		}
+	}
+
+	void close() {
+		if (closed) return;
+		closed = true;
+		try {
+			socket.close();
+		} catch (IOException e) {
+			// Closing anyway
+		}
+		fail();
+		onClose.run();
+	}
+
+	private void fail() {
+		for (Long callId : pending.keySet()) {
+			CompletableFuture<DataInputStream> reply = pending.remove(callId);
+			if (reply != null) reply.completeExceptionally(new IOException("Link closed"));
+		}
+	}
+
+	static void writeString(DataOutputStream out, String s) throws IOException {
+		if (s == null) {
+			out.writeInt(-1);
+		} else {
+			byte[] bytes = s.getBytes(StandardCharsets.UTF_8);
+			out.writeInt(bytes.length);
+			out.write(bytes);
+		}
+	}
+
+	static String readString(DataInputStream in) throws IOException {
+		int length = in.readInt();
+		if (length < 0) return null;
+		byte[] bytes = new byte[length];
+		in.readFully(bytes);
+		return new String(bytes, StandardCharsets.UTF_8);
+	}
+
+	static void writeBytes(DataOutputStream out, byte[] bytes) throws IOException {
+		out.writeInt(bytes.length);
+		out.write(bytes);
+	}
+
+	static byte[] readBytes(DataInputStream in) throws IOException {
+		byte[] bytes = new byte[in.readInt()];
+		in.readFully(bytes);
+		return bytes;
+	}
+}
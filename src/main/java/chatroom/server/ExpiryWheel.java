@@ -0,0 +1,104 @@
+package chatroom.server;
+
+import java.util.Map;
+import java.util.Queue;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.ConcurrentLinkedQueue;
+import java.util.function.Predicate;
+import java.util.function.ToLongFunction;
+
+/**
+ * A timing wheel for expiring items (sessions, accounts) a few at a time, instead of
+ * sweeping over all of them. Each item is placed in the slot of its deadline; as time
+ * passes, the cleanup thread visits the slots that have become due.
+ *
+ * Items do not have to be rescheduled when their deadline moves later (e.g., when a
+ * client polls): when the slot comes due, the deadline is checked again, and an item
+ * that is not yet due simply moves on to its new slot. Deadlines beyond one turn of the
+ * wheel work the same way. Items that disappear by other means (e.g., logout) are
+ * cancelled: each item is placed in its slot wrapped in an entry of its own, and the
+ * map of current entries tells whether an entry is still valid. Cancelling removes the
+ * item from the map, in constant time, and its stale entry is dropped when the slot
+ * comes due; the item itself is no longer referenced. The expire function must still
+ * ignore items that are already gone, since a cancel may race with the cleanup thread.
+ *
+ * Any thread may schedule items; only the cleanup thread advances the wheel.
+ */
+class ExpiryWheel<T> {
+	private final long tickMillis;
+	private final Queue<Scheduled<T>>[] slots;
+	private final Map<T, Scheduled<T>> current = new ConcurrentHashMap<>(); // The valid entry of each scheduled item
+	private final ToLongFunction<T> deadline; // in epoch milliseconds
+	private final Predicate<T> expire; // true, if the item was actually removed
+	private volatile long currentTick; // All ticks before this one have been processed
+
+	// An item's entry in a slot; compared by identity. Cleared when cancelled, so that a
+	// stale entry does not keep its item alive.
+	private static final class Scheduled<T> {
+		volatile T item;
+
+		Scheduled(T item) {
+			this.item = item;
+		}
+	}
+
+	@SuppressWarnings("unchecked")
+	ExpiryWheel(long tickMillis, int numSlots, ToLongFunction<T> deadline, Predicate<T> expire) {
+		this.tickMillis = tickMillis;
+		this.slots = (Queue<Scheduled<T>>[]) new Queue<?>[numSlots];
+		for (int i = 0; i < numSlots; i++) slots[i] = new ConcurrentLinkedQueue<>();
+		this.deadline = deadline;
+		this.expire = expire;
+		this.currentTick = System.currentTimeMillis() / tickMillis;
+	}
+
+	/**
+	 * Place an item in the slot of its current deadline. An item that is already due goes
+	 * into the current slot (if the wheel moves on at the same moment, it is found one
+	 * turn later).
+	 */
+	void schedule(T item) {
+		long tick = Math.max(deadline.applyAsLong(item) / tickMillis, currentTick);
+		Scheduled<T> entry = new Scheduled<>(item);
+		current.put(item, entry); // Any earlier entry of the item is stale now
+		slots[(int) (tick % slots.length)].add(entry);
+	}
+
+	/**
+	 * Remove an item that is gone by other means, so that it is not kept until its deadline
+	 */
+	void cancel(T item) {
+		Scheduled<T> entry = current.remove(item);
+		if (entry != null) entry.item = null;
+	}
+
+	/**
+	 * Visit the slots that are due at the given time, expiring at most budget items. If
+	 * the budget is used up, the rest is left for the next call. Returns the number of
+	 * items expired.
+	 */
+	int advance(long now, int budget) {
+		int expired = 0;
+		long nowTick = now / tickMillis;
+		while (currentTick <= nowTick) {
+			Queue<Scheduled<T>> slot = slots[(int) (currentTick % slots.length)];
+			int size = slot.size(); // Items rescheduled into this same slot wait for its next turn
+			for (int i = 0; i < size; i++) {
+				if (budget-- <= 0) return expired;
+				Scheduled<T> entry = slot.poll();
+				if (entry == null) break;
+				T item = entry.item;
+				if (item == null || current.get(item) != entry) continue; // Cancelled or rescheduled
+				if (deadline.applyAsLong(item) <= now) {
+					if (!current.remove(item, entry)) continue; // Cancelled just now
+					if (expire.test(item)) expired++;
+				} else {
+					schedule(item);
+				}
+			}
+			if (currentTick == nowTick) break; // The current slot stays open for new deadlines
+			currentTick++;
+		}
+		return expired;
+	}
+}
@@ -0,0 +1,281 @@
+package chatroom.server;
+
+import java.io.*;
+import java.nio.charset.StandardCharsets;
+import java.nio.file.Files;
+import java.util.ArrayList;
+import java.util.List;
+import java.util.Set;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.ConcurrentLinkedDeque;
+import java.util.concurrent.atomic.AtomicInteger;
+import java.util.concurrent.atomic.AtomicLong;
+import java.util.logging.Logger;
+
+/**
+ * The queue of messages waiting for one client. Any number of threads may add
+ * messages, but only one thread at a time removes them (the client's poll).
+ * Adding a message never takes a lock, unless the mailbox is spilling to disk.
+ *
+ * The mailbox has a fixed capacity. When it is full, the overflow policy decides
+ * what happens: drop the oldest message, reject the new one, or spill further
+ * messages to a temporary file until the client polls again. A spill file is limited
+ * in size too; beyond the limit, new messages are rejected.
+ */
+public class Mailbox {
+	private static final Logger logger = Logger.getLogger("");
+
+	public enum Overflow { DROP_OLDEST, REJECT, SPILL }
+
+	/**
+	 * A queued message; the chatroomId is null for private messages. The generation is
+	 * the persistence generation in which the message was logged (see Persistence).
+	 */
+	public record Message(Integer chatroomId, String username, String message, long generation) {}
+
+	private static int defaultCapacity = 1000;
+	private static Overflow defaultOverflow = Overflow.DROP_OLDEST;
+	private static long defaultSpillLimit = 16 * 1024 * 1024; // bytes
+
+	// The spill files in use, deleted on shutdown. (File.deleteOnExit would remember every
+	// file ever created, until the end.)
+	private static final Set<File> spillFiles = ConcurrentHashMap.newKeySet();
+	static {
+		Runtime.getRuntime().addShutdownHook(new Thread(() -> spillFiles.forEach(File::delete)));
+	}
+
+	private final int capacity;
+	private final Overflow overflow;
+	private final long spillLimit;
+	private final ConcurrentLinkedDeque<Message> queue = new ConcurrentLinkedDeque<>();
+	private final AtomicInteger size = new AtomicInteger(0);
+	private final AtomicLong dropped = new AtomicLong(0);
+
+	// Spilling is the slow path, so it is simply synchronized
+	private final Object spillLock = new Object();
+	private volatile boolean spilling = false;
+	private File spillFile;
+	private DataOutputStream spillOut;
+	private volatile int spilled = 0; // Read without the lock by depth()
+	private long spillBytes = 0;
+
+	/**
+	 * Set capacity, overflow policy and spill limit (in bytes) for all mailboxes created from now on
+	 */
+	public static void configure(int capacity, Overflow overflow, long spillLimit) {
+		defaultCapacity = capacity;
+		defaultOverflow = overflow;
+		defaultSpillLimit = spillLimit;
+	}
+
+	public Mailbox() {
+		this(defaultCapacity, defaultOverflow, defaultSpillLimit);
+	}
+
+	public Mailbox(int capacity, Overflow overflow, long spillLimit) {
+		this.capacity = capacity;
+		this.overflow = overflow;
+		this.spillLimit = spillLimit;
+	}
+
+	/**
+	 * Add a message. Returns false, if the message was rejected because the mailbox is full.
+	 */
+	public boolean offer(Message msg) {
+		// Once we spill, all messages must go to disk until the client has polled, to keep their order
+		if (spilling) {
+			synchronized (spillLock) {
+				if (spilling) return spill(msg);
+			}
+		}
+		while (true) {
+			int current = size.get();
+			if (current < capacity) {
+				if (size.compareAndSet(current, current + 1)) {
+					queue.add(msg);
+					return true;
+				}
+			} else if (overflow == Overflow.DROP_OLDEST) {
+				if (queue.poll() != null) {
+					size.decrementAndGet();
+					dropped.incrementAndGet();
+				} else {
+					// Full only on paper: another thread is between its size update and its add, or
+					// the poller between its poll and its size update. Rather than spin until they
+					// are done, go over the capacity by one.
+					size.incrementAndGet();
+					queue.add(msg);
+					return true;
+				}
+			} else if (overflow == Overflow.REJECT) {
+				dropped.incrementAndGet();
+				return false;
+			} else { // SPILL
+				synchronized (spillLock) {
+					spilling = true;
+					return spill(msg);
+				}
+			}
+		}
+	}
+
+	/**
+	 * Remove and return all messages, oldest first
+	 */
+	public List<Message> drain() {
+		List<Message> messages = new ArrayList<>();
+		Message msg;
+		while ((msg = queue.poll()) != null) {
+			size.decrementAndGet();
+			messages.add(msg);
+		}
+		if (spilling) {
+			synchronized (spillLock) {
+				readSpill(messages);
+			}
+		}
+		return messages;
+	}
+
+	/**
+	 * Put drained messages back in front, because they could not be delivered. They are
+	 * older than anything queued since, including any spilled messages. Until the next
+	 * drain, the mailbox may hold more than its capacity.
+	 */
+	public void requeue(List<Message> messages) {
+		for (int i = messages.size() - 1; i >= 0; i--) queue.addFirst(messages.get(i));
+		size.addAndGet(messages.size());
+	}
+
+	/**
+	 * Return all messages, oldest first, without removing them
+	 */
+	public List<Message> peek() {
+		List<Message> messages = new ArrayList<>(queue);
+		synchronized (spillLock) {
+			if (spillOut != null) {
+				try {
+					spillOut.flush();
+					try (DataInputStream in = new DataInputStream(new BufferedInputStream(new FileInputStream(spillFile)))) {
+						for (int i = 0; i < spilled; i++) messages.add(readMessage(in));
+					}
+				} catch (IOException e) {
+					logger.warning("Mailbox spill could not be read: " + e);
+				}
+			}
+		}
+		return messages;
+	}
+
+	public boolean isEmpty() {
+		return size.get() == 0 && !spilling;
+	}
+
+	/**
+	 * Number of messages waiting, including any spilled to disk
+	 */
+	public int depth() {
+		return size.get() + spilled;
+	}
+
+	/**
+	 * Number of messages lost, either dropped or rejected
+	 */
+	public long dropped() {
+		return dropped.get();
+	}
+
+	/**
+	 * Discard any spilled messages; called when the client goes away
+	 */
+	public void close() {
+		synchronized (spillLock) {
+			deleteSpill();
+		}
+	}
+
+	// Must hold spillLock
+	private boolean spill(Message msg) {
+		try {
+			byte[] username = msg.username.getBytes(StandardCharsets.UTF_8);
+			byte[] message = msg.message.getBytes(StandardCharsets.UTF_8);
+			long length = 20 + username.length + message.length;
+			if (spillBytes + length > spillLimit) {
+				dropped.incrementAndGet();
+				return false;
+			}
+			if (spillOut == null) {
+				// Deleted by deleteSpill, when the client polls or goes away
+				spillFile = Files.createTempFile("mailbox", ".spill").toFile();
+				spillFiles.add(spillFile);
+				spillOut = new DataOutputStream(new BufferedOutputStream(new FileOutputStream(spillFile)));
+			}
+			spillOut.writeInt(msg.chatroomId == null ? -1 : msg.chatroomId);
+			writeBytes(spillOut, username);
+			writeBytes(spillOut, message);
+			spillOut.writeLong(msg.generation);
+			spillBytes += length;
+			spilled++;
+			return true;
+		} catch (IOException e) {
+			logger.warning("Mailbox spill failed: " + e);
+			dropped.incrementAndGet();
+			return false;
+		}
+	}
+
+	// Must hold spillLock
+	private void readSpill(List<Message> messages) {
+		if (spillOut == null) {
+			spilling = false;
+			return;
+		}
+		try {
+			spillOut.close();
+			try (DataInputStream in = new DataInputStream(new BufferedInputStream(new FileInputStream(spillFile)))) {
+				for (int i = 0; i < spilled; i++) messages.add(readMessage(in));
+			}
+		} catch (IOException e) {
+			logger.warning("Mailbox spill could not be read: " + e);
+			dropped.addAndGet(spilled);
+		}
+		deleteSpill();
+	}
+
+	// Must hold spillLock
+	private void deleteSpill() {
+		if (spillOut != null) {
+			try {
+				spillOut.close();
+			} catch (IOException e) {
+				// Ignore, we are deleting the file anyway
+			}
+			spillFile.delete();
+			spillFiles.remove(spillFile);
+		}
+		spillOut = null;
+		spillFile = null;
+		spilled = 0;
+		spillBytes = 0;
+		spilling = false;
+	}
+
+	private static Message readMessage(DataInputStream in) throws IOException {
+		int chatroomId = in.readInt();
+		String username = readString(in);
+		String message = readString(in);
+		return new Message(chatroomId < 0 ? null : chatroomId, username, message, in.readLong());
+	}
+
+	// DataOutputStream.writeUTF is limited to 64KB, messages may be longer
+	private static void writeBytes(DataOutputStream out, byte[] bytes) throws IOException {
+		out.writeInt(bytes.length);
+		out.write(bytes);
+	}
+
+	private static String readString(DataInputStream in) throws IOException {
+		byte[] bytes = new byte[in.readInt()];
+		in.readFully(bytes);
+		return new String(bytes, StandardCharsets.UTF_8);
+	}
+}
@@ -0,0 +1,20 @@
+package chatroom.server;
+
+/**
+ * Callback for code that waits for messages to arrive for a client, rather than
+ * polling for them. Listeners are called on the thread that queued the message,
+ * so implementations must hand off any real work (e.g., writing a response) to
+ * another thread.
+ */
+public interface MessageListener {
+	/**
+	 * New messages have been queued for the client
+	 */
+	void messagesAvailable(Client client);
+
+	/**
+	 * The client has logged out or expired, or another stream has replaced this one; no
+	 * more messages will arrive
+	 */
+	void clientClosed(Client client);
+}
@@ -0,0 +1,292 @@
+package chatroom.server;
+
+import javax.management.Attribute;
+import javax.management.AttributeList;
+import javax.management.AttributeNotFoundException;
+import javax.management.DynamicMBean;
+import javax.management.JMException;
+import javax.management.MBeanAttributeInfo;
+import javax.management.MBeanInfo;
+import javax.management.ObjectName;
+import javax.management.ReflectionException;
+import java.lang.management.ManagementFactory;
+import java.math.BigDecimal;
+import java.util.LinkedHashMap;
+import java.util.Map;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.ConcurrentSkipListMap;
+import java.util.concurrent.atomic.DoubleAdder;
+import java.util.concurrent.atomic.LongAdder;
+import java.util.function.DoubleSupplier;
+import java.util.function.Function;
+import java.util.logging.Logger;
+
+/**
+ * A small registry of metrics: counters, histograms and gauges. Counters and histograms
+ * may have one label (e.g., the mapping of a request). The metrics are published in the
+ * Prometheus text format on /metrics, and as the attributes of the MBean
+ * chatroom.server:type=Metrics.
+ *
+ * Recording never takes a lock, so that it can be done on every request. To keep the
+ * number of series bounded, a label takes at most 100 values; further values are
+ * counted as "other".
+ */
+public class Metrics {
+	private static final Logger logger = Logger.getLogger("");
+	private static final int MAX_LABEL_VALUES = 100;
+
+	public static final double[] LATENCY_BUCKETS = { 0.0005, 0.001, 0.0025, 0.005, 0.01, 0.025, 0.05, 0.1, 0.25, 0.5, 1, 2.5, 5, 10, 30 };
+	public static final double[] SIZE_BUCKETS = { 1, 2, 5, 10, 20, 50, 100, 200, 500, 1000, 10000 };
+
+	private static final ConcurrentSkipListMap<String, Family> families = new ConcurrentSkipListMap<>();
+
+	/**
+	 * Register (or find) a counter; labelName may be null, for a counter without label
+	 */
+	public static Counter counter(String name, String help, String labelName) {
+		return register(new Counter(name, help, labelName));
+	}
+
+	/**
+	 * Register (or find) a histogram with the given (ascending) bucket bounds; labelName may be null
+	 */
+	public static Histogram histogram(String name, String help, String labelName, double[] buckets) {
+		return register(new Histogram(name, help, labelName, buckets));
+	}
+
+	/**
+	 * Register a gauge, whose value is read whenever the metrics are published
+	 */
+	public static void gauge(String name, String help, DoubleSupplier value) {
+		families.put(name, new Gauge(name, help, value));
+	}
+
+	@SuppressWarnings("unchecked")
+	private static <F extends Family> F register(F family) {
+		Family existing = families.putIfAbsent(family.name, family);
+		return (existing == null) ? family : (F) existing;
+	}
+
+	/**
+	 * Write all metrics in the Prometheus text format (version 0.0.4)
+	 */
+	public static String toPrometheus() {
+		StringBuilder out = new StringBuilder();
+		for (Family family : families.values()) {
+			out.append("# HELP ").append(family.name).append(' ').append(family.help).append('\n');
+			out.append("# TYPE ").append(family.name).append(' ').append(family.type).append('\n');
+			family.collect((name, labels, value) -> {
+				out.append(name).append(labels).append(' ');
+				if (value == Math.rint(value) && !Double.isInfinite(value)) {
+					out.append((long) value);
+				} else {
+					out.append(value);
+				}
+				out.append('\n');
+			});
+		}
+		return out.toString();
+	}
+
+	/**
+	 * Make the metrics available through JMX
+	 */
+	public static void registerMBean() {
+		try {
+			ManagementFactory.getPlatformMBeanServer().registerMBean(new MetricsMBean(), new ObjectName("chatroom.server:type=Metrics"));
+		} catch (JMException e) {
+			logger.warning("Unable to register metrics MBean: " + e);
+		}
+	}
+
+	private interface Sample {
+		void add(String name, String labels, double value);
+	}
+
+	private static abstract class Family {
+		final String name;
+		final String help;
+		final String type;
+		final String labelName; // null, if there is no label
+
+		Family(String name, String help, String type, String labelName) {
+			this.name = name;
+			this.help = help;
+			this.type = type;
+			this.labelName = labelName;
+		}
+
+		abstract void collect(Sample sample);
+
+		// Find the series for a label value, creating it if necessary
+		<T> T series(ConcurrentHashMap<String, T> series, String labelValue, Function<String, T> create) {
+			T s = series.get(labelValue);
+			if (s == null) {
+				if (series.size() >= MAX_LABEL_VALUES) labelValue = "other";
+				s = series.computeIfAbsent(labelValue, create);
+			}
+			return s;
+		}
+
+		String labels(String labelValue, String extra) {
+			StringBuilder sb = new StringBuilder();
+			if (labelName != null) sb.append(labelName).append("=\"").append(escape(labelValue)).append('"');
+			if (extra != null) sb.append(sb.length() > 0 ? "," : "").append(extra);
+			return (sb.length() == 0) ? "" : "{" + sb + "}";
+		}
+
+		private static String escape(String value) {
+			return value.replace("\\", "\\\\").replace("\"", "\\\"").replace("\n", "\\n");
+		}
+	}
+
+	public static class Counter extends Family {
+		private final ConcurrentHashMap<String, LongAdder> series = new ConcurrentHashMap<>();
+
+		private Counter(String name, String help, String labelName) {
+			super(name, help, "counter", labelName);
+		}
+
+		public void inc() {
+			inc("");
+		}
+
+		public void inc(String labelValue) {
+			series(series, labelValue, v -> new LongAdder()).increment();
+		}
+
+		public void add(String labelValue, long n) {
+			series(series, labelValue, v -> new LongAdder()).add(n);
+		}
+
+		@Override
+		void collect(Sample sample) {
+			series.forEach((labelValue, count) -> sample.add(name, labels(labelValue, null), count.sum()));
+		}
+	}
+
+	public static class Histogram extends Family {
+		private final double[] bounds;
+		private final String[] le; // The bounds, as written in the labels
+		private final ConcurrentHashMap<String, Series> series = new ConcurrentHashMap<>();
+
+		private class Series {
+			final LongAdder[] buckets = new LongAdder[bounds.length + 1]; // Not cumulative; the last is +Inf
+			final DoubleAdder sum = new DoubleAdder();
+
+			Series() {
+				for (int i = 0; i < buckets.length; i++) buckets[i] = new LongAdder();
+			}
+		}
+
+		private Histogram(String name, String help, String labelName, double[] bounds) {
+			super(name, help, "histogram", labelName);
+			this.bounds = bounds;
+			this.le = new String[bounds.length + 1];
+			for (int i = 0; i < bounds.length; i++) le[i] = BigDecimal.valueOf(bounds[i]).stripTrailingZeros().toPlainString();
+			le[bounds.length] = "+Inf";
+		}
+
+		public void observe(double value) {
+			observe("", value);
+		}
+
+		public void observe(String labelValue, double value) {
+			Series s = series(series, labelValue, v -> new Series());
+			int i = 0;
+			while (i < bounds.length && value > bounds[i]) i++;
+			s.buckets[i].increment();
+			s.sum.add(value);
+		}
+
+		/**
+		 * Record the time since start (from System.nanoTime) in seconds
+		 */
+		public void observeSince(String labelValue, long start) {
+			observe(labelValue, (System.nanoTime() - start) / 1e9);
+		}
+
+		public void observeSince(long start) {
+			observeSince("", start);
+		}
+
+		@Override
+		void collect(Sample sample) {
+			series.forEach((labelValue, s) -> {
+				long cumulative = 0;
+				for (int i = 0; i < s.buckets.length; i++) {
+					cumulative += s.buckets[i].sum();
+					sample.add(name + "_bucket", labels(labelValue, "le=\"" + le[i] + "\""), cumulative);
+				}
+				sample.add(name + "_sum", labels(labelValue, null), s.sum.sum());
+				sample.add(name + "_count", labels(labelValue, null), cumulative);
+			});
+		}
+	}
+
+	private static class Gauge extends Family {
+		private final DoubleSupplier value;
+
+		Gauge(String name, String help, DoubleSupplier value) {
+			super(name, help, "gauge", null);
+			this.value = value;
+		}
+
+		@Override
+		void collect(Sample sample) {
+			sample.add(name, "", value.getAsDouble());
+		}
+	}
+
+	/**
+	 * Every sample is a read-only attribute, named as in the Prometheus format. Histograms
+	 * are included with their buckets, sum and count.
+	 */
+	private static class MetricsMBean implements DynamicMBean {
+		private Map<String, Double> samples() {
+			Map<String, Double> samples = new LinkedHashMap<>();
+			for (Family family : families.values()) family.collect((name, labels, value) -> samples.put(name + labels, value));
+			return samples;
+		}
+
+		@Override
+		public Object getAttribute(String attribute) throws AttributeNotFoundException {
+			Double value = samples().get(attribute);
+			if (value == null) throw new AttributeNotFoundException(attribute);
+			return value;
+		}
+
+		@Override
+		public AttributeList getAttributes(String[] attributes) {
+			Map<String, Double> samples = samples();
+			AttributeList list = new AttributeList();
+			for (String attribute : attributes) {
+				if (samples.containsKey(attribute)) list.add(new Attribute(attribute, samples.get(attribute)));
+			}
+			return list;
+		}
+
+		@Override
+		public void setAttribute(Attribute attribute) throws AttributeNotFoundException {
+			throw new AttributeNotFoundException("Metrics are read-only");
+		}
+
+		@Override
+		public AttributeList setAttributes(AttributeList attributes) {
+			return new AttributeList();
+		}
+
+		@Override
+		public Object invoke(String actionName, Object[] params, String[] signature) throws ReflectionException {
+			throw new ReflectionException(new NoSuchMethodException(actionName));
+		}
+
+		@Override
+		public MBeanInfo getMBeanInfo() {
+			MBeanAttributeInfo[] attributes = samples().keySet().stream()
+					.map(name -> new MBeanAttributeInfo(name, "double", name, true, false, false))
+					.toArray(MBeanAttributeInfo[]::new);
+			return new MBeanInfo(Metrics.class.getName(), "Chatroom server metrics", attributes, null, null, null);
+		}
+	}
+}
@@ -0,0 +1,139 @@
+package chatroom.server;
+
+import javax.crypto.SecretKeyFactory;
+import javax.crypto.spec.PBEKeySpec;
+import java.security.GeneralSecurityException;
+import java.security.NoSuchAlgorithmException;
+import java.util.HashMap;
+import java.util.Map;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.RejectedExecutionException;
+import java.util.concurrent.Semaphore;
+import java.util.logging.Logger;
+
+/**
+ * Password hashing, and the thread pool that it runs on. Hashing is deliberately
+ * expensive, so registration and login run on their own pool, rather than on the
+ * threads that serve chat requests. Admission is limited: if too many hashing
+ * tasks are already waiting, new ones are rejected instead of queued.
+ *
+ * Hashes record the parameters used to create them ("algorithm$iterations$hash"),
+ * so that the parameters can be changed later; old hashes are upgraded when the
+ * user next logs in. Hashes without parameters date from before this format, and
+ * use the original algorithm and iteration count.
+ */
+public class PasswordHasher {
+	private static final Logger logger = Logger.getLogger("");
+	private static final String LEGACY_ALGORITHM = "PBKDF2WithHmacSHA1";
+	private static final int LEGACY_ITERATIONS = 127;
+	private static final int KEY_LENGTH = 64 * 8;
+
+	private static String algorithm = LEGACY_ALGORITHM;
+	private static int iterations = LEGACY_ITERATIONS;
+	private static ExecutorService pool = newPool(Runtime.getRuntime().availableProcessors());
+	private static Semaphore admission = new Semaphore(64);
+
+	// Creating a SecretKeyFactory is expensive, so each thread keeps its own
+	private static final ThreadLocal<Map<String, SecretKeyFactory>> factories = ThreadLocal.withInitial(HashMap::new);
+
+	/**
+	 * Set the hashing parameters for new hashes, the number of hashing threads, and how
+	 * many hashing tasks may be running or waiting at once. Throws IllegalArgumentException
+	 * if the algorithm is not available, so that the server does not start without it.
+	 */
+	public static void configure(String newAlgorithm, int newIterations, int threads, int maxTasks) {
+		try {
+			SecretKeyFactory.getInstance(newAlgorithm);
+		} catch (NoSuchAlgorithmException e) {
+			throw new IllegalArgumentException("Password hashing algorithm not available: " + newAlgorithm, e);
+		}
+		if (newIterations < 1) throw new IllegalArgumentException("Invalid hash iterations: " + newIterations);
+		algorithm = newAlgorithm;
+		iterations = newIterations;
+		pool.shutdown();
+		pool = newPool(threads);
+		admission = new Semaphore(maxTasks);
+	}
+
+	/**
+	 * Run a task on the hashing pool. Throws RejectedExecutionException, if too many tasks
+	 * are already running or waiting.
+	 */
+	public static void execute(Runnable task) {
+		Semaphore permits = admission;
+		if (!permits.tryAcquire()) throw new RejectedExecutionException("Too many hashing tasks");
+		try {
+			pool.execute(() -> {
+				try {
+					task.run();
+				} finally {
+					permits.release();
+				}
+			});
+		} catch (RejectedExecutionException e) {
+			permits.release();
+			throw e;
+		}
+	}
+
+	/**
+	 * Hash a password with the current parameters
+	 */
+	public static String hash(String password, byte[] salt) {
+		return algorithm + "$" + iterations + "$" + Account.bytesToHex(hash(password, salt, algorithm, iterations));
+	}
+
+	/**
+	 * Check a password against a stored hash, using the parameters recorded in the hash
+	 */
+	public static boolean verify(String password, byte[] salt, String storedHash) {
+		String[] parts = storedHash.split("\\$");
+		String newHash;
+		if (parts.length == 3) {
+			newHash = Account.bytesToHex(hash(password, salt, parts[0], Integer.parseInt(parts[1])));
+		} else {
+			newHash = Account.bytesToHex(hash(password, salt, LEGACY_ALGORITHM, LEGACY_ITERATIONS));
+		}
+		return newHash.equals(parts[parts.length - 1]);
+	}
+
+	/**
+	 * Was the stored hash created with other parameters than the current ones?
+	 */
+	public static boolean needsUpgrade(String storedHash) {
+		return !storedHash.startsWith(algorithm + "$" + iterations + "$");
+	}
+
+	/**
+	 * There are many sources of info on how to securely hash passwords. I'm not a crypto expert,
+	 * so I follow the recommendations of the experts. Here are two examples:
+	 * <a href="https://crackstation.net/hashing-security.htm">...</a>
+	 * <a href="https://howtodoinjava.com/security/how-to-generate-secure-password-hash-md5-sha-pbkdf2-bcrypt-examples/">...</a>
+	 *
+	 * The configured algorithm has been checked at startup; an older hash may name one that
+	 * is not available (anymore), which fails just that check.
+	 */
+	private static byte[] hash(String password, byte[] salt, String algorithm, int iterations) {
+		try {
+			SecretKeyFactory skf = factories.get().get(algorithm);
+			if (skf == null) {
+				skf = SecretKeyFactory.getInstance(algorithm);
+				factories.get().put(algorithm, skf);
+			}
+			PBEKeySpec spec = new PBEKeySpec(password.toCharArray(), salt, iterations, KEY_LENGTH);
+			return skf.generateSecret(spec).getEncoded();
+		} catch (GeneralSecurityException e) {
+			logger.severe("Password hashing with " + algorithm + " failed: " + e);
+			throw new IllegalStateException("Password hashing with " + algorithm + " failed", e);
+		}
+	}
+
+	private static ExecutorService newPool(int threads) {
+		return Executors.newFixedThreadPool(threads, r -> {
+			Thread t = new Thread(r, "PasswordHasher");
+			t.setDaemon(true);
+			return t;
+		});
+	}
+}
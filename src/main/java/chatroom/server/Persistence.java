@@ -0,0 +1,158 @@
+package chatroom.server;
+
+import chatroom.server.store.Entry;
+import chatroom.server.store.Store;
+
+import java.io.IOException;
+import java.util.ArrayList;
+import java.util.List;
+import java.util.concurrent.locks.ReentrantReadWriteLock;
+import java.util.logging.Logger;
+
+/**
+ * Connects the server's state (accounts, clients, chatrooms) to a store. By default,
+ * there is no store, and nothing is persisted.
+ *
+ * Every change to the state is made in a step: the change itself, plus the entries
+ * describing it. Steps share a read lock; a snapshot takes the write lock only to
+ * roll the log to a new segment, so that every change is either complete before the
+ * roll (and its entries in the older segments) or logged in the new segment. Once the
+ * step is complete, the thread waits until its entries are durable.
+ *
+ * The state is then copied while changes go on, so the snapshot may already contain
+ * some changes that are also in the new segment. Replaying an entry over a state that
+ * already has it changes nothing; the exception, messages in mailboxes, carry the
+ * generation in which they were logged, and the snapshot leaves out the newer ones.
+ */
+public class Persistence {
+	private static final Logger logger = Logger.getLogger("");
+	private static final ReentrantReadWriteLock lock = new ReentrantReadWriteLock();
+	private static final Step NO_STEP = new Step();
+	private static volatile Store store = null;
+	private static volatile long generation = 0; // Number of snapshots taken
+
+	/**
+	 * Recover the state from the store, then persist all further changes to it
+	 */
+	public static void open(Store newStore) throws IOException {
+		newStore.recover(Persistence::replay);
+		store = newStore;
+		snapshot(); // Compact right away, so that the next recovery is quick
+	}
+
+	/**
+	 * Begin a step; use with try-with-resources
+	 */
+	static Step begin() {
+		if (store == null) return NO_STEP;
+		lock.readLock().lock();
+		return new Step();
+	}
+
+	/**
+	 * Changes whenever a snapshot is taken; read it within a step
+	 */
+	static long generation() {
+		return generation;
+	}
+
+	/**
+	 * Write a snapshot of the complete state, and discard older log segments. Called
+	 * periodically by the cleanup thread.
+	 */
+	public static void snapshot() {
+		if (store == null) return;
+		try {
+			long segment;
+			lock.writeLock().lock();
+			try {
+				segment = store.rollSegment();
+				generation++;
+			} finally {
+				lock.writeLock().unlock();
+			}
+			List<Entry> state = new ArrayList<>();
+			Account.snapshot(state);
+			Client.snapshot(state, generation);
+			Chatroom.snapshot(state);
+			store.writeSnapshot(segment, state);
+		} catch (IOException e) {
+			logger.severe("Snapshot failed: " + e);
+		}
+	}
+
+	/**
+	 * Apply one recovered entry to the state
+	 */
+	private static void replay(Entry entry) {
+		switch (entry.type()) {
+			case ACCOUNT -> Account.restore(entry.key(), entry.a(), entry.b(), entry.n());
+			case ACCOUNT_REMOVED -> Account.restoreRemoved(entry.key());
+			case SESSION -> Client.restore(entry.a(), entry.key(), entry.n());
+			case SESSION_REMOVED -> Client.remove(entry.key());
+			case MESSAGE -> {
+				Client client = Client.findByToken(entry.key());
+				if (client != null) client.restoreMessage((int) entry.n(), entry.a(), entry.b());
+			}
+			case MAILBOX_DRAINED -> {
+				Client client = Client.findByToken(entry.key());
+				if (client != null) client.restoreDrained((int) entry.n());
+			}
+			case ROOM -> Chatroom.restore(Integer.parseInt(entry.key()), entry.a(), entry.b(), entry.c());
+			case ROOM_REMOVED -> Chatroom.restoreRemoved(Integer.parseInt(entry.key()));
+			case MEMBER -> Chatroom.restoreMember(Integer.parseInt(entry.key()), entry.a(), entry.n());
+			case MEMBER_REMOVED -> Chatroom.restoreMemberRemoved(Integer.parseInt(entry.key()), entry.a());
+			case ROOM_MESSAGE -> Chatroom.restoreMessage(Integer.parseInt(entry.key()), entry.n(), entry.a(), entry.b());
+			case CURSOR -> {
+				Client client = Client.findByToken(entry.a());
+				if (client != null) client.restoreCursor(Integer.parseInt(entry.key()), entry.n());
+			}
+		}
+	}
+
+	/**
+	 * One change to the state. Entries are logged as the change is made; closing the step
+	 * releases the lock and waits until they are durable. A thread that holds a lock of its
+	 * own may instead end the step while it holds that lock, and wait for durability after
+	 * releasing it, so that others do not wait for the sync as well.
+	 */
+	static class Step implements AutoCloseable {
+		private long sequence = 0;
+
+		void log(Entry entry) {
+			if (store == null) return;
+			try {
+				sequence = store.append(entry);
+			} catch (IOException e) {
+				logger.severe("Unable to persist " + entry.type() + ": " + e);
+			}
+		}
+
+		/**
+		 * Release the lock, without waiting; call awaitDurable() afterwards
+		 */
+		void end() {
+			if (this == NO_STEP) return;
+			lock.readLock().unlock();
+		}
+
+		/**
+		 * Wait until the entries of an ended step are durable
+		 */
+		void awaitDurable() {
+			if (sequence > 0) {
+				try {
+					store.awaitDurable(sequence);
+				} catch (IOException e) {
+					logger.severe("Unable to persist changes: " + e);
+				}
+			}
+		}
+
+		@Override
+		public void close() {
+			end();
+			awaitDurable();
+		}
+	}
+}
@@ -0,0 +1,109 @@
+package chatroom.server;
+
+import java.util.ArrayList;
+import java.util.LinkedHashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.Set;
+import java.util.concurrent.atomic.AtomicLong;
+import java.util.concurrent.atomic.AtomicReferenceArray;
+
+/**
+ * Presence: which users are online. A user comes online with their first session, and
+ * goes offline when their last session logs out or expires. Client notices the change
+ * while it updates the username's entry in its index, and reserves a cursor for it there;
+ * as the entry is updated atomically, the cursors of the changes of a user are in the
+ * order of the changes. The change itself is recorded afterwards, without any lock.
+ *
+ * The changes are kept in a ring of fixed size, so that clients can keep a buddy list up
+ * to date by asking for the changes since their last cursor, instead of listing all online
+ * users again. A client whose cursor has fallen out of the ring must query the presence of
+ * its users again.
+ *
+ * In a cluster, each node records the changes of all users, so a client sees every
+ * change through its own node; cursors are only valid on that node.
+ */
+public class Presence {
+    public record Change(long cursor, String username, boolean online) {
+    }
+
+    /**
+     * A page of changes, and the cursor to continue from. If reset is set, the changes
+     * following the cursor asked for are no longer available (and the page is empty): the
+     * client must query the presence of its users again, and continue from the cursor given.
+     */
+    public record Page(List<Change> changes, long cursor, boolean reset) {
+    }
+
+    private static final AtomicReferenceArray<Change> changes = new AtomicReferenceArray<>(65536);
+    private static final AtomicLong nextCursor = new AtomicLong(1);
+
+    /**
+     * Reserve the cursor of a change; the change must be recorded with it right afterwards,
+     * as readers wait for the changes in the order of their cursors
+     */
+    static long reserve() {
+        return nextCursor.getAndIncrement();
+    }
+
+    /**
+     * A local user came online or went offline; in a cluster, the other nodes are told
+     * about it as well
+     */
+    static void changed(long cursor, String username, boolean online) {
+        changes.set(index(cursor), new Change(cursor, username, online));
+        Cluster.presence(username);
+    }
+
+    /**
+     * A user of another node came online or went offline
+     */
+    static void remoteChanged(long cursor, String username, boolean online) {
+        changes.set(index(cursor), new Change(cursor, username, online));
+    }
+
+    /**
+     * The presence of each of the given users. To follow the changes afterwards, read the
+     * cursor before calling this method: later changes may then be reported twice, but none
+     * are missed.
+     */
+    public static Map<String, Boolean> query(List<String> usernames) {
+        Map<String, Boolean> presence = new LinkedHashMap<>();
+        for (String username : usernames) presence.put(username, Client.isOnline(username));
+        return presence;
+    }
+
+    /**
+     * The cursor of the latest change
+     */
+    public static long cursor() {
+        return nextCursor.get() - 1;
+    }
+
+    /**
+     * Return at most limit changes following the cursor "after", oldest first; if usernames
+     * is not null, only changes for these users are included (but all changes count towards
+     * the limit, and the cursor returned follows the last change read). A change reserved
+     * but not recorded yet ends the page, so that no change is skipped. If any of the changes
+     * following the cursor has already been overwritten, or the cursor is not one of ours,
+     * the page is a reset.
+     */
+    public static Page changesAfter(long after, Set<String> usernames, int limit) {
+        long end = nextCursor.get();
+        if (after < end - 1 - changes.length() || after >= end) return new Page(List.of(), end - 1, true);
+        List<Change> result = new ArrayList<>();
+        long cursor = after;
+        while (cursor + 1 < end && cursor - after < limit) {
+            Change change = changes.get(index(cursor + 1));
+            if (change == null || change.cursor() < cursor + 1) break; // Not recorded yet
+            if (change.cursor() > cursor + 1) return new Page(List.of(), end - 1, true); // Overwritten while we read
+            if (usernames == null || usernames.contains(change.username())) result.add(change);
+            cursor++;
+        }
+        return new Page(result, cursor, false);
+    }
+
+    private static int index(long cursor) {
+        return (int) (cursor % changes.length());
+    }
+}
@@ -0,0 +1,115 @@
+package chatroom.server;
+
+import java.util.ArrayList;
+import java.util.List;
+import java.util.concurrent.atomic.AtomicReferenceArray;
+
+/**
+ * The messages of one chatroom, shared by all members. Each message is stored
+ * once, as an immutable entry with an increasing id; members only remember the
+ * id of the next entry they have not yet read.
+ *
+ * The log is a ring buffer with a fixed capacity: once it is full, each new
+ * entry overwrites the oldest one. Appending is synchronized on the log (i.e.,
+ * per room), reading never takes a lock.
+ */
+public class RoomLog {
+    public record Entry(long id, String username, String message) {
+    }
+
+    private static int defaultCapacity = 1024;
+
+    private final AtomicReferenceArray<Entry> entries;
+    private volatile long nextId = 1;
+
+    /**
+     * Set the capacity for all logs created from now on
+     */
+    public static void setDefaultCapacity(int capacity) {
+        defaultCapacity = capacity;
+    }
+
+    public RoomLog() {
+        this(defaultCapacity);
+    }
+
+    public RoomLog(int capacity) {
+        entries = new AtomicReferenceArray<>(capacity);
+    }
+
+    /**
+     * Append a message, returning the new entry
+     */
+    public synchronized Entry append(String username, String message) {
+        Entry entry = new Entry(nextId, username, message);
+        entries.set(index(entry.id), entry);
+        nextId = entry.id + 1; // Publish only after the entry is in place
+        return entry;
+    }
+
+    /**
+     * Put an entry back in place, when recovering from the store
+     */
+    synchronized void restore(Entry entry) {
+        if (entry.id < nextId) return; // Already there
+        entries.set(index(entry.id), entry);
+        nextId = entry.id + 1;
+    }
+
+    /**
+     * The id that the next appended entry will receive
+     */
+    public long nextId() {
+        return nextId;
+    }
+
+    /**
+     * The id of the oldest entry that may still be in the log
+     */
+    public long oldestId() {
+        return Math.max(1, nextId - entries.length());
+    }
+
+    /**
+     * Return all entries with an id of at least "from", oldest first. Entries that have
+     * already been overwritten are missing from the result.
+     */
+    public List<Entry> readFrom(long from) {
+        long end = nextId;
+        long start = Math.max(from, end - entries.length());
+        List<Entry> result = new ArrayList<>((int) Math.max(0, end - start));
+        for (long id = start; id < end; id++) {
+            Entry entry = entries.get(index(id));
+            if (entry != null && entry.id == id) result.add(entry);
+        }
+        return result;
+    }
+
+    /**
+     * Return one page of the history, oldest first. With "after", the page holds the entries
+     * following that id; otherwise, it holds the entries preceding "before" (or the latest
+     * entries, if "before" is also null).
+     */
+    public List<Entry> page(Long before, Long after, int limit) {
+        long end = nextId;
+        long oldest = Math.max(1, end - entries.length());
+        List<Entry> result = new ArrayList<>();
+        if (after != null) {
+            for (long id = Math.max(after + 1, oldest); id < end && result.size() < limit; id++) {
+                Entry entry = entries.get(index(id));
+                if (entry != null && entry.id == id) result.add(entry);
+            }
+        } else {
+            long last = (before == null) ? end - 1 : Math.min(before - 1, end - 1);
+            for (long id = last; id >= oldest && result.size() < limit; id--) {
+                Entry entry = entries.get(index(id));
+                if (entry != null && entry.id == id) result.add(0, entry);
+            }
+        }
+        return result;
+    }
+
+    private int index(long id) {
+        return (int) (id % entries.length());
+    }
+}
@@ -1,11 +1,22 @@
 package chatroom.server;
 
 import chatroom.server.handlers.*;
+import chatroom.server.nio.NioHttpServer;
+import chatroom.server.store.LogStore;
+import chatroom.server.websocket.WebSocketServer;
+import com.sun.net.httpserver.HttpHandler;
 import com.sun.net.httpserver.HttpServer;
 
 import java.io.IOException;
+import java.lang.reflect.Method;
 import java.net.InetSocketAddress;
+import java.nio.file.Path;
+import java.util.LinkedHashMap;
+import java.util.Map;
+import java.util.concurrent.ExecutorService;
 import java.util.concurrent.Executors;
+import java.util.concurrent.ForkJoinPool;
+import java.util.concurrent.ThreadPoolExecutor;
 import java.util.logging.FileHandler;
 import java.util.logging.Level;
 import java.util.logging.Logger;
@@ -14,40 +25,217 @@ import java.util.logging.SimpleFormatter;
 public class Server {
 	private static final Logger logger = Logger.getLogger("");
 	private static int port = 50001;
+	private static String executor = "fixed"; // fixed, work-stealing or virtual
+	private static int poolSize = 4;
+	private static int mailboxCapacity = 1000;
+	private static Mailbox.Overflow mailboxOverflow = Mailbox.Overflow.DROP_OLDEST;
+	private static long mailboxSpillLimit = 16 * 1024 * 1024;
+	private static String dataDirectory = null; // No persistence
+	private static String hashAlgorithm = "PBKDF2WithHmacSHA1";
+	private static int hashIterations = 127;
+	private static int hashThreads = Runtime.getRuntime().availableProcessors();
+	private static int hashQueue = 64;
+	private static String clusterNodes = null; // host:port of each node; not clustered, if null
+	private static int clusterNode = 0; // Our index in clusterNodes
+	private static String clusterSecret = System.getenv("CHAT_CLUSTER_SECRET");
+	private static int websocketPort = 0; // No WebSocket endpoint
+	private static int websocketMaxConnections = 10000;
+	private static int websocketAuthTimeout = 10; // Seconds
+	private static int websocketIdleTimeout = 300; // Seconds
+	private static String frontEnd = "jdk"; // jdk (com.sun.net.httpserver) or nio
+	private static int reactors = Runtime.getRuntime().availableProcessors(); // For the nio front end
+	private static int backlog = 1024; // Pending connections
+	private static String tlsKeystore = null; // Plain HTTP, if null
+	private static String tlsKeystorePassword = System.getenv("CHAT_TLS_KEYSTORE_PASSWORD");
+	private static String tlsKeystoreType = "PKCS12";
+	private static String tlsProtocols = "TLSv1.3";
+	private static int tlsSessionCache = 20000;
+	private static int tlsSessionTimeout = 86400; // Seconds
+	private static int tlsHandshakeThreads = Runtime.getRuntime().availableProcessors();
+	private static String rateLimits = null; // No rate limiting
+	private static int rateLimitTable = 1 << 21; // Buckets
 	
 	public static void main(String[] args) {
 		// Setup logging, including a file handler
 		setupLogging();
 		
 		try {
-			// Read command-line parameter, if present
-			if (args.length > 0) {
-				logger.info("Process command-line parameter");
-				int intValue = Integer.parseInt(args[0]);
+			start(args);
+		} catch (IOException e) {
+			logger.info(e.toString());
+		}
+	}
+
+	/**
+	 * Start the server with the given command-line parameters, and return it. This is
+	 * separate from main(), so that tools (e.g., a load generator) can run the server
+	 * in-process.
+	 */
+	public static HttpServer start(String[] args) throws IOException {
+		// Read command-line parameters, if present: the port, and options of the form --name=value
+		for (String arg : args) {
+			logger.info("Process command-line parameter " + arg);
+			if (arg.startsWith("--")) {
+				setOption(arg);
+			} else {
+				int intValue = Integer.parseInt(arg);
 				if (intValue > 0 && intValue < 65536) port = intValue;
 			}
-			logger.info("Port is " + port);
+		}
+		if (clusterNodes != null) {
+			Cluster.configure(clusterNodes, clusterNode, clusterSecret);
+			if (Cluster.enabled()) port = Cluster.httpAddress(clusterNode).getPort();
+		}
+		logger.info("Port is " + port);
+		Mailbox.configure(mailboxCapacity, mailboxOverflow, mailboxSpillLimit);
+		PasswordHasher.configure(hashAlgorithm, hashIterations, hashThreads, hashQueue);
+		if (rateLimits != null) {
+			logger.info("Rate limits: " + rateLimits);
+			Handler.setRateLimits(rateLimits, rateLimitTable);
+		}
 
-			// Start the clean-up thread: periodically delete accounts and chatrooms
-			CleanupThread ct = new CleanupThread();
-			ct.start();
+		// If desired, recover the previous state, and persist all changes
+		if (dataDirectory != null) {
+			logger.info("Data directory is " + dataDirectory);
+			Persistence.open(new LogStore(Path.of(dataDirectory)));
+		}
 
-			// Create the server and all valid mappings
-			HttpServer server = HttpServer.create(new InetSocketAddress(port), 0);
-			server.createContext("/ping", new PingHandler()); // ping with (POST) and without (GET) a token
-			server.createContext("/chat", new ChatHandler()); // send and receive messages
-			server.createContext("/user", new UserHandler()); // user online
+		// Start the clean-up thread: periodically delete accounts and chatrooms
+		CleanupThread ct = new CleanupThread();
+		ct.start();
 
-			// If desired, use multiple threads for processing (here, with 4 threads)
-			server.setExecutor(Executors.newFixedThreadPool(4));
+		// Create the server and all valid mappings; both front ends run the same handlers
+		HttpServer server;
+		if (tlsKeystore != null) {
+			if (frontEnd.equals("nio")) throw new IOException("TLS is only supported by the jdk front end");
+			Tls.configure(tlsKeystore, tlsKeystorePassword, tlsKeystoreType, tlsProtocols, tlsSessionCache, tlsSessionTimeout);
+			server = Tls.createServer(new InetSocketAddress(port), backlog);
+		} else if (frontEnd.equals("nio")) {
+			server = NioHttpServer.create(new InetSocketAddress(port), backlog, reactors);
+		} else {
+			server = HttpServer.create(new InetSocketAddress(port), backlog);
+		}
+		Map<String, HttpHandler> contexts = new LinkedHashMap<>();
+		contexts.put("/ping", new PingHandler()); // ping with (POST) and without (GET) a token
+		contexts.put("/chat", new ChatHandler()); // send and receive messages
+		contexts.put("/chat/stream", new StreamHandler()); // receive messages as server-sent events
+		contexts.put("/user", new UserHandler()); // user online
+		contexts.put("/metrics", new MetricsHandler()); // metrics in the Prometheus text format
 
-			// Start the server
-			server.start();
-		} catch (IOException e) {
-			logger.info(e.toString());
+		// Use multiple threads for processing; by default, a fixed pool with 4 threads
+		ExecutorService executorService = createExecutor();
+		registerMetrics(executorService);
+		Handler.setWorkers(executorService);
+		if (Tls.enabled()) {
+			// Requests are read, and handshakes done, on a pool of their own; the handlers run on the workers
+			server.setExecutor(Tls.handshakeExecutor(tlsHandshakeThreads));
+			contexts.forEach((path, handler) -> server.createContext(path, Tls.onWorkers(handler, executorService)));
+		} else {
+			server.setExecutor(executorService);
+			contexts.forEach(server::createContext);
 		}
+
+		// In a cluster, connect to the other nodes; forwarded requests go to the same handlers
+		if (Cluster.enabled()) Cluster.start(server, executorService, contexts);
+
+		// Optionally, a WebSocket endpoint on its own port, sharing the executor
+		if (websocketPort > 0) WebSocketServer.start(websocketPort, executorService, websocketMaxConnections, websocketAuthTimeout, websocketIdleTimeout);
+
+		// Start the server
+		server.start();
+		return server;
 	}
 	
+	/**
+	 * Process an option of the form --name=value
+	 */
+	private static void setOption(String arg) {
+		int pos = arg.indexOf('=');
+		String name = (pos < 0) ? arg.substring(2) : arg.substring(2, pos);
+		String value = (pos < 0) ? "" : arg.substring(pos + 1);
+		switch (name) {
+			case "poll-timeout" -> ChatHandler.setMaxPollTimeout(Integer.parseInt(value));
+			case "executor" -> executor = value;
+			case "pool-size" -> poolSize = Integer.parseInt(value);
+			case "mailbox-capacity" -> mailboxCapacity = Integer.parseInt(value);
+			case "mailbox-overflow" -> mailboxOverflow = Mailbox.Overflow.valueOf(value.toUpperCase().replace('-', '_'));
+			case "mailbox-spill-limit" -> mailboxSpillLimit = Long.parseLong(value);
+			case "data-dir" -> dataDirectory = value;
+			case "hash-algorithm" -> hashAlgorithm = value;
+			case "hash-iterations" -> hashIterations = Integer.parseInt(value);
+			case "hash-threads" -> hashThreads = Integer.parseInt(value);
+			case "hash-queue" -> hashQueue = Integer.parseInt(value);
+			case "compression-threshold" -> Handler.setCompressionThreshold(Integer.parseInt(value));
+			case "room-log-capacity" -> RoomLog.setDefaultCapacity(Integer.parseInt(value));
+			case "cluster" -> clusterNodes = value;
+			case "node" -> clusterNode = Integer.parseInt(value);
+			case "cluster-secret" -> clusterSecret = value;
+			case "websocket-port" -> websocketPort = Integer.parseInt(value);
+			case "websocket-max-connections" -> websocketMaxConnections = Integer.parseInt(value);
+			case "websocket-auth-timeout" -> websocketAuthTimeout = Integer.parseInt(value);
+			case "websocket-idle-timeout" -> websocketIdleTimeout = Integer.parseInt(value);
+			case "front-end" -> frontEnd = value;
+			case "reactors" -> reactors = Integer.parseInt(value);
+			case "backlog" -> backlog = Integer.parseInt(value);
+			case "tls-keystore" -> tlsKeystore = value;
+			case "tls-keystore-password" -> tlsKeystorePassword = value;
+			case "tls-keystore-type" -> tlsKeystoreType = value;
+			case "tls-protocols" -> tlsProtocols = value;
+			case "tls-session-cache" -> tlsSessionCache = Integer.parseInt(value);
+			case "tls-session-timeout" -> tlsSessionTimeout = Integer.parseInt(value);
+			case "tls-handshake-threads" -> tlsHandshakeThreads = Integer.parseInt(value);
+			case "rate-limits" -> rateLimits = value;
+			case "rate-limit-table" -> rateLimitTable = Integer.parseInt(value);
+			default -> logger.warning("Unknown option " + arg);
+		}
+	}
+
+	/**
+	 * Create the executor that runs the handlers. Virtual threads need Java 21 or later;
+	 * we look the factory method up at runtime, so that the server still builds and runs
+	 * on Java 17, where we fall back to a fixed pool.
+	 */
+	private static ExecutorService createExecutor() {
+		switch (executor) {
+			case "virtual" -> {
+				try {
+					Method factory = Executors.class.getMethod("newVirtualThreadPerTaskExecutor");
+					logger.info("Executor: virtual threads");
+					return (ExecutorService) factory.invoke(null);
+				} catch (ReflectiveOperationException e) {
+					logger.warning("Virtual threads require Java 21 or later; using a fixed pool");
+				}
+			}
+			case "work-stealing" -> {
+				logger.info("Executor: work-stealing pool with parallelism " + poolSize);
+				return Executors.newWorkStealingPool(poolSize);
+			}
+			case "fixed" -> { } // Default, below
+			default -> logger.warning("Unknown executor " + executor + "; using a fixed pool");
+		}
+		logger.info("Executor: fixed pool with " + poolSize + " threads");
+		return Executors.newFixedThreadPool(poolSize);
+	}
+
+	/**
+	 * Register the gauges that are read from the server's state, and publish all metrics through JMX
+	 */
+	private static void registerMetrics(ExecutorService executorService) {
+		if (executorService instanceof ThreadPoolExecutor pool) {
+			Metrics.gauge("chat_executor_queue_depth", "Requests waiting for a worker thread", () -> pool.getQueue().size());
+			Metrics.gauge("chat_executor_active_threads", "Worker threads processing a request", pool::getActiveCount);
+		} else if (executorService instanceof ForkJoinPool pool) {
+			Metrics.gauge("chat_executor_queue_depth", "Requests waiting for a worker thread", pool::getQueuedSubmissionCount);
+			Metrics.gauge("chat_executor_active_threads", "Worker threads processing a request", pool::getActiveThreadCount);
+		}
+		Metrics.gauge("chat_sessions", "Logged-in sessions", Client::countSessions);
+		Metrics.gauge("chat_mailbox_messages", "Messages waiting in all mailboxes", Client::totalQueueDepth);
+		Metrics.gauge("chat_mailbox_dropped", "Messages lost by current sessions: dropped or rejected by their mailboxes, or overwritten in room logs", Client::totalDropped);
+		Metrics.gauge("chat_jvm_threads", "Live threads in the JVM", Thread::activeCount);
+		Metrics.gauge("chat_jvm_free_memory_bytes", "Free memory in the JVM heap", () -> Runtime.getRuntime().freeMemory());
+		Metrics.registerMBean();
+	}
+
 	private static void setupLogging() {
 		logger.setLevel(Level.FINE);
 		logger.getHandlers()[0].setLevel(Level.INFO); // Standard (console) handler
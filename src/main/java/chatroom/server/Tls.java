@@ -0,0 +1,124 @@
+package chatroom.server;
+
+import com.sun.net.httpserver.HttpHandler;
+import com.sun.net.httpserver.HttpsConfigurator;
+import com.sun.net.httpserver.HttpsParameters;
+import com.sun.net.httpserver.HttpsServer;
+
+import javax.net.ssl.KeyManagerFactory;
+import javax.net.ssl.SSLContext;
+import javax.net.ssl.SSLParameters;
+import javax.net.ssl.SSLSessionContext;
+import java.io.IOException;
+import java.io.InputStream;
+import java.net.InetSocketAddress;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.security.GeneralSecurityException;
+import java.security.KeyStore;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.RejectedExecutionException;
+import java.util.logging.Logger;
+
+/**
+ * TLS termination, so that clients can connect with HTTPS without a proxy in front of
+ * the server. The server's certificate and key come from a keystore (see
+ * doc/Howto_SSL_Certificates_in_Java.odt for how to create one).
+ *
+ * Pollers reconnect often, and a full handshake costs far more than the request itself,
+ * so sessions are resumed where possible: the server keeps a cache of recent sessions,
+ * and also issues session tickets, with which a client can resume even after its session
+ * has left the cache.
+ *
+ * In the JDK's server, the handshake runs on the thread that reads the request, before
+ * any handler is called. So that handshakes do not occupy the chat worker threads, the
+ * server reads requests on a pool of its own, and each handler is passed on to the
+ * workers (see onWorkers).
+ */
+public class Tls {
+	private static final Logger logger = Logger.getLogger("");
+
+	private static SSLContext sslContext = null;
+	private static String[] protocols = { "TLSv1.3" };
+
+	/**
+	 * Load the keystore, and prepare TLS with the given protocols (comma-separated), session
+	 * cache size and session timeout (in seconds)
+	 */
+	public static void configure(String keystore, String password, String keystoreType, String protocolList,
+			int sessionCacheSize, int sessionTimeout) throws IOException {
+		// Stateless resumption with session tickets; must be set before TLS is first used
+		if (System.getProperty("jdk.tls.server.enableSessionTicketExtension") == null) {
+			System.setProperty("jdk.tls.server.enableSessionTicketExtension", "true");
+		}
+		char[] passwordChars = (password == null) ? new char[0] : password.toCharArray();
+		try (InputStream in = Files.newInputStream(Path.of(keystore))) {
+			KeyStore keyStore = KeyStore.getInstance(keystoreType);
+			keyStore.load(in, passwordChars);
+			KeyManagerFactory keyManagers = KeyManagerFactory.getInstance(KeyManagerFactory.getDefaultAlgorithm());
+			keyManagers.init(keyStore, passwordChars);
+			SSLContext context = SSLContext.getInstance("TLS");
+			context.init(keyManagers.getKeyManagers(), null, null);
+
+			SSLSessionContext sessions = context.getServerSessionContext();
+			sessions.setSessionCacheSize(sessionCacheSize);
+			sessions.setSessionTimeout(sessionTimeout);
+			sslContext = context;
+		} catch (GeneralSecurityException e) {
+			throw new IOException("Cannot load keystore " + keystore + ": " + e.getMessage(), e);
+		}
+		protocols = protocolList.split(",");
+		logger.info("TLS with keystore " + keystore + ", protocols " + protocolList + ", session cache " + sessionCacheSize);
+	}
+
+	public static boolean enabled() {
+		return sslContext != null;
+	}
+
+	/**
+	 * Create an HTTPS server with the configured context
+	 */
+	public static HttpsServer createServer(InetSocketAddress address, int backlog) throws IOException {
+		HttpsServer server = HttpsServer.create(address, backlog);
+		server.setHttpsConfigurator(new HttpsConfigurator(sslContext) {
+			@Override
+			public void configure(HttpsParameters params) {
+				SSLParameters parameters = getSSLContext().getDefaultSSLParameters();
+				parameters.setProtocols(protocols);
+				params.setSSLParameters(parameters);
+			}
+		});
+		return server;
+	}
+
+	/**
+	 * The pool on which the server reads requests, and so does the TLS handshakes
+	 */
+	public static ExecutorService handshakeExecutor(int threads) {
+		logger.info("TLS handshakes on " + threads + " threads");
+		return Executors.newFixedThreadPool(threads);
+	}
+
+	/**
+	 * A handler that passes each exchange on to the workers, instead of handling it on the
+	 * thread that read the request
+	 */
+	public static HttpHandler onWorkers(HttpHandler handler, ExecutorService workers) {
+		return httpExchange -> {
+			try {
+				workers.execute(() -> {
+					try {
+						handler.handle(httpExchange);
+					} catch (IOException e) {
+						logger.fine("Exchange failed: " + e);
+						httpExchange.close();
+					}
+				});
+			} catch (RejectedExecutionException e) {
+				httpExchange.sendResponseHeaders(503, -1);
+				httpExchange.close();
+			}
+		};
+	}
+}
@@ -2,35 +2,98 @@ package chatroom.server.handlers;
 
 import chatroom.server.Chatroom;
 import chatroom.server.Client;
+import chatroom.server.MessageListener;
+import chatroom.server.RoomLog;
 import com.sun.net.httpserver.HttpExchange;
 import org.json.JSONArray;
 import org.json.JSONObject;
 
+import java.io.IOException;
 import java.util.ArrayList;
+import java.util.Comparator;
+import java.util.LinkedHashMap;
 import java.util.List;
+import java.util.Map;
+import java.util.concurrent.Executors;
+import java.util.concurrent.ScheduledExecutorService;
+import java.util.concurrent.ScheduledFuture;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicBoolean;
+import java.util.logging.Logger;
 
 public class ChatHandler extends Handler {
+    private static final Logger logger = Logger.getLogger("");
+
+    // Long-polls are parked here, without occupying a worker thread of the server. The timer
+    // only schedules the timeouts; the responses are completed on the worker threads.
+    private static final ScheduledExecutorService pollTimer = Executors.newSingleThreadScheduledExecutor(r -> {
+        Thread t = new Thread(r, "LongPollTimer");
+        t.setDaemon(true);
+        return t;
+    });
+    private static int maxPollTimeout = 30; // seconds
+    private static final int DEFAULT_HISTORY_LIMIT = 50;
+    private static final int MAX_HISTORY_LIMIT = 500;
+    private static final int MAX_BATCH_SIZE = 100;
+
+    /**
+     * Set the maximum time (in seconds) that a long-poll may wait for messages
+     */
+    public static void setMaxPollTimeout(int seconds) {
+        maxPollTimeout = seconds;
+    }
+
+    public ChatHandler() {
+        super("/chatroom", "/chat/send", "/chat/send/batch", "/chat/poll", "/chatroom/create", "/chatroom/join",
+                "/chatroom/leave", "/chatroom/delete", "/chatroom/users", "/chatroom/history");
+    }
+
+    /**
+     * The only valid GET-mapping for this handler is /chatroom. It returns one page of
+     * chatrooms, ordered by id; the query parameters are "after" (the last chatroomId of
+     * the previous page), "limit" and "summary" (if true, only the number of members is
+     * returned, not their names). If there are more chatrooms, the response includes
+     * "next", the cursor for the following page.
+     */
     @Override
     protected void handleGet(HttpExchange httpExchange, HandlerResponse response) {
-        String mapping = httpExchange.getRequestURI().toString();
+        String mapping = httpExchange.getRequestURI().getPath();
         if (mapping.equals("/chatroom")){
-            response.jsonOut.put("chatrooms", getAllChatrooms());
+            Map<String, String> query = readQuery(httpExchange);
+            Integer after = null;
+            try {
+                if (query.containsKey("after")) after = Integer.parseInt(query.get("after"));
+            } catch (NumberFormatException e) {
+                response.jsonOut.put("Error", "Invalid cursor");
+                return;
+            }
+            int limit = readLimit(query);
+            boolean summary = Boolean.parseBoolean(query.get("summary"));
+            List<Chatroom> page = Chatroom.getChatrooms(after, limit + 1);
+            if (page.size() > limit) {
+                page = page.subList(0, limit);
+                response.jsonOut.put("next", page.get(limit - 1).getChatroomId());
+            }
+            response.jsonOut.put("chatrooms", describeChatrooms(page, summary));
+            // In a cluster, each node lists the chatrooms it owns
+            gather(httpExchange, response, pages -> mergePages(response, "chatrooms", pages, limit,
+                    Comparator.comparingInt(c -> ((JSONObject) c).getInt("chatroomId")), c -> ((JSONObject) c).getInt("chatroomId")));
         } else {
             response.jsonOut.put("Error", "Invalid request");
         }
     }
 
     @Override
-    protected void handlePost(HttpExchange httpExchange, JSONObject JSONin, HandlerResponse response) {
+    protected void handlePost(HttpExchange httpExchange, HandlerRequest request, HandlerResponse response) {
         String mapping = httpExchange.getRequestURI().toString(); // For this handler, will begin with "/user"
 
         // Read various strings that may be present (depending on the mapping)
-        String username = readString(JSONin, "username");
-        String message = readString(JSONin, "message");
-        String token = readString(JSONin, "token");
-        String chatroomName = readString(JSONin, "chatroomName");
-        List<String> clients = readList(JSONin, "clients");
-        Integer chatroomId = readInt(JSONin, "chatroomId");
+        String username = request.username;
+        String message = request.message;
+        String token = request.token;
+        String chatroomName = request.chatroomName;
+        List<String> clients = request.clients;
+        Integer chatroomId = request.chatroomId;
 
         // If anything at all goes wrong, we throw an exception and return an error.
         try {
@@ -45,9 +108,22 @@ public class ChatHandler extends Handler {
                         sendMessage(token, username, message, response, chatroomId);
                     }
                 }
+                case "/chat/send/batch" -> {
+                    List<HandlerRequest> messages = request.messages;
+                    if (token == null || messages == null) {
+                        throw new Exception("Invalid parameters");
+                    } else {
+                        sendBatch(token, messages, response);
+                    }
+                }
                 case "/chat/poll" -> {
                     if (token == null) throw new Exception("Invalid parameters");
-                    receiveMessages(token, response);
+                    Integer timeout = request.timeout;
+                    if (timeout == null || timeout <= 0) {
+                        receiveMessages(token, response);
+                    } else {
+                        awaitMessages(httpExchange, token, Math.min(timeout, maxPollTimeout), response);
+                    }
                 }
                 case "/chatroom/create" -> {
                     if (token == null || chatroomName == null || clients == null) {
@@ -84,6 +160,13 @@ public class ChatHandler extends Handler {
                         listChatroomMembers(token, chatroomId, response);
                     }
                 }
+                case "/chatroom/history" -> {
+                    if (token == null || chatroomId == null){
+                        throw new Exception("Invalid parameters");
+                    } else {
+                        getHistory(token, chatroomId, request.before, request.after, request.limit, response);
+                    }
+                }
                 default -> {
                     throw new Exception("No such mapping");
                 }
@@ -99,32 +182,160 @@ public class ChatHandler extends Handler {
         if (sender == null) throw new Exception("Invalid token");
 
         if (chatroomId == null){
-            Client recipient = Client.findByUsername(username);
-            recipient.send(sender.getName(), message);
-            success = true;
+            switch (Client.deliver(username, sender.getName(), List.of(message)).get(0)) {
+                case INVALID_USERNAME -> throw new Exception("Invalid username");
+                case MAILBOX_FULL -> throw new Exception("Mailbox full");
+                case DELIVERED -> success = true;
+            }
         } else {
-            Chatroom chatroom = Chatroom.findByChatroomId(chatroomId);
-            chatroom.send(sender.getName(), message);
+            if (!Chatroom.sendTo(chatroomId, sender.getName(), List.of(message))) throw new Exception("Invalid chatroomId");
             success = true;
         }
         response.jsonOut.put("send", success);
     }
 
+    /**
+     * Send several messages, each to a username or a chatroomId. The token is checked once,
+     * and the messages are grouped by target, so that each target is looked up only once.
+     * Each message gets its own result, in the order of the request.
+     */
+    private void sendBatch(String token, List<HandlerRequest> messages, HandlerResponse response) throws Exception {
+        Client sender = Client.findByToken(token);
+        if (sender == null) throw new Exception("Invalid token");
+        if (messages.size() > MAX_BATCH_SIZE) throw new Exception("Too many messages (at most " + MAX_BATCH_SIZE + ")");
+
+        // Group the messages by target, remembering their positions in the request
+        JSONObject[] results = new JSONObject[messages.size()];
+        Map<String, List<Integer>> usernameTargets = new LinkedHashMap<>();
+        Map<Integer, List<Integer>> chatroomTargets = new LinkedHashMap<>();
+        for (int i = 0; i < messages.size(); i++) {
+            HandlerRequest item = messages.get(i);
+            String username = (item == null) ? null : item.username;
+            Integer chatroomId = (item == null) ? null : item.chatroomId;
+            if (item == null || item.message == null) {
+                results[i] = batchError("Invalid parameters");
+            } else if (username == null && chatroomId == null) {
+                results[i] = batchError("Define a username or a chatroomId to send the message");
+            } else if (chatroomId == null) {
+                usernameTargets.computeIfAbsent(username, k -> new ArrayList<>()).add(i);
+            } else {
+                chatroomTargets.computeIfAbsent(chatroomId, k -> new ArrayList<>()).add(i);
+            }
+        }
+
+        for (Map.Entry<String, List<Integer>> target : usernameTargets.entrySet()) {
+            List<Integer> positions = target.getValue();
+            try {
+                List<Client.Delivery> deliveries = Client.deliver(target.getKey(), sender.getName(), texts(messages, positions));
+                for (int j = 0; j < positions.size(); j++) {
+                    results[positions.get(j)] = switch (deliveries.get(j)) {
+                        case DELIVERED -> new JSONObject().put("send", true);
+                        case INVALID_USERNAME -> batchError("Invalid username");
+                        case MAILBOX_FULL -> batchError("Mailbox full");
+                    };
+                }
+            } catch (IOException e) {
+                for (int i : positions) results[i] = batchError(e.getMessage());
+            }
+        }
+
+        for (Map.Entry<Integer, List<Integer>> target : chatroomTargets.entrySet()) {
+            JSONObject result;
+            try {
+                result = Chatroom.sendTo(target.getKey(), sender.getName(), texts(messages, target.getValue()))
+                        ? new JSONObject().put("send", true) : batchError("Invalid chatroomId");
+            } catch (IOException e) {
+                result = batchError(e.getMessage());
+            }
+            for (int i : target.getValue()) results[i] = result;
+        }
+        response.jsonOut.put("results", new JSONArray(results));
+    }
+
+    private List<String> texts(List<HandlerRequest> messages, List<Integer> positions) {
+        List<String> texts = new ArrayList<>(positions.size());
+        for (int i : positions) texts.add(messages.get(i).message);
+        return texts;
+    }
+
+    private JSONObject batchError(String error) {
+        return new JSONObject().put("send", false).put("Error", error);
+    }
+
     private void receiveMessages(String token, HandlerResponse response) throws Exception {
         Client client = Client.findByToken(token);
         if (client == null) throw new Exception("Invalid token");
-        response.jsonOut.put("messages", client.getMessages());
+        client.putMessages(response.jsonOut);
+    }
+
+    /**
+     * Long-poll: if messages are waiting, return them immediately. Otherwise, park the exchange
+     * until a message arrives or the timeout expires. The response is then sent from a
+     * worker thread, but no worker thread waits in the meantime.
+     */
+    private void awaitMessages(HttpExchange httpExchange, String token, int timeout, HandlerResponse response) throws Exception {
+        Client client = Client.findByToken(token);
+        if (client == null) throw new Exception("Invalid token");
+        if (client.hasMessages()) {
+            client.putMessages(response.jsonOut);
+        } else {
+            response.deferred = true;
+            PendingPoll poll = new PendingPoll(httpExchange);
+            poll.timeout = pollTimer.schedule(() -> runOnWorkers(() -> poll.complete(client)), timeout, TimeUnit.SECONDS);
+            client.awaitMessages(poll);
+        }
     }
 
-    private JSONArray getAllChatrooms() {
+    /**
+     * A parked long-poll. It is completed exactly once: when messages arrive, when the
+     * client goes away, or when the timeout expires.
+     */
+    private class PendingPoll implements MessageListener {
+        private final HttpExchange httpExchange;
+        private final AtomicBoolean done = new AtomicBoolean(false);
+        private volatile ScheduledFuture<?> timeout;
+
+        PendingPoll(HttpExchange httpExchange) {
+            this.httpExchange = httpExchange;
+        }
+
+        @Override
+        public void messagesAvailable(Client client) {
+            runOnWorkers(() -> complete(client));
+        }
+
+        @Override
+        public void clientClosed(Client client) {
+            runOnWorkers(() -> complete(client));
+        }
+
+        void complete(Client client) {
+            if (!done.compareAndSet(false, true)) return;
+            if (timeout != null) timeout.cancel(false);
+            client.cancelAwait(this);
+            HandlerResponse response = new HandlerResponse();
+            client.putMessages(response.jsonOut);
+            try {
+                sendResponse(httpExchange, response);
+            } catch (IOException e) {
+                logger.fine("Long-poll response failed: " + e);
+            }
+        }
+    }
+
+    private JSONArray describeChatrooms(List<Chatroom> chatrooms, boolean summary) {
         JSONArray chatroomsArray = new JSONArray();
-        for(Chatroom chatroom : Chatroom.getChatrooms()){
+        for(Chatroom chatroom : chatrooms){
             JSONObject chatroomJson = new JSONObject()
                     .put("chatroomName", chatroom.getChatroomName());
                     chatroomJson.put("chatroomId", chatroom.getChatroomId());
-                    chatroomJson.put("clients", new JSONArray(chatroom.getClients().stream()
-                            .map(Client::getName)
-                            .toList()));
+                    if (summary) {
+                        chatroomJson.put("memberCount", chatroom.getMemberCount());
+                    } else {
+                        chatroomJson.put("clients", new JSONArray(chatroom.getClients().stream()
+                                .map(Client::getName)
+                                .toList()));
+                    }
                     chatroomJson.put("creator", chatroom.getCreator().getName());
             chatroomsArray.put(chatroomJson);
         }
@@ -136,10 +347,11 @@ public class ChatHandler extends Handler {
         if (client == null) throw new Exception("Invalid token");
         List<Client> clients = new ArrayList<>();
         for (String s : usernames){
-            clients.add(Client.findByUsername(s));
+            clients.addAll(Client.findAllByUsername(s)); // Every session of each member
         }
         Chatroom chatroom = new Chatroom(chatroomName, clients, client);
         Chatroom.add(chatroom);
+        chatroom.invite(usernames); // Users on other nodes of the cluster
         int chatroomId = chatroom.getChatroomId();
         response.jsonOut.put("chatroomId", chatroomId);
     }
@@ -164,6 +376,24 @@ public class ChatHandler extends Handler {
         response.jsonOut.put("chatroomDeleted", true);
     }
 
+    private void getHistory(String token, int chatroomId, Long before, Long after, Integer limit, HandlerResponse response) throws Exception{
+        Client client = Client.findByToken(token);
+        if (client == null) throw new Exception("Invalid token");
+        if (!client.isMemberOf(chatroomId)) throw new Exception("Not a member of the chatroom");
+        int pageSize = (limit == null || limit <= 0) ? DEFAULT_HISTORY_LIMIT : Math.min(limit, MAX_HISTORY_LIMIT);
+        List<RoomLog.Entry> entries = Chatroom.history(chatroomId, before, after, pageSize);
+        if (entries == null) throw new Exception("Invalid chatroomId");
+        JSONArray history = new JSONArray();
+        for (RoomLog.Entry entry : entries) {
+            JSONObject jsonMsg = new JSONObject()
+                    .put("messageId", entry.id());
+            jsonMsg.put("username", entry.username());
+            jsonMsg.put("message", entry.message());
+            history.put(jsonMsg);
+        }
+        response.jsonOut.put("history", history);
+    }
+
     private void listChatroomMembers(String token, int chatroomId, HandlerResponse response) throws Exception{
         Client client = Client.findByToken(token);
         if (client == null) throw new Exception("Invalid token");
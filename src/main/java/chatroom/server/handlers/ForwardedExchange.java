@@ -0,0 +1,228 @@
+package chatroom.server.handlers;
+
+import com.sun.net.httpserver.Authenticator;
+import com.sun.net.httpserver.Filter;
+import com.sun.net.httpserver.Headers;
+import com.sun.net.httpserver.HttpContext;
+import com.sun.net.httpserver.HttpExchange;
+import com.sun.net.httpserver.HttpHandler;
+import com.sun.net.httpserver.HttpPrincipal;
+import com.sun.net.httpserver.HttpServer;
+import org.json.JSONObject;
+
+import java.io.ByteArrayInputStream;
+import java.io.ByteArrayOutputStream;
+import java.io.IOException;
+import java.io.InputStream;
+import java.io.OutputStream;
+import java.net.InetSocketAddress;
+import java.net.URI;
+import java.nio.charset.StandardCharsets;
+import java.util.ArrayList;
+import java.util.HashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.concurrent.atomic.AtomicBoolean;
+
+/**
+ * A request that another node of the cluster has forwarded to us, because its user
+ * belongs to this node. The handlers process it like any other exchange; the request
+ * and the response are held in memory, and the response is passed to the completion
+ * when the exchange is closed, to be sent back to the forwarding node. Filters may wrap
+ * the streams, as with any exchange.
+ */
+public class ForwardedExchange extends HttpExchange {
+    public interface Completion {
+        void completed(int statusCode, byte[] body);
+    }
+
+    /**
+     * The context of forwarded requests for one path; there is no server behind it
+     * that could dispatch requests, but handlers find their path and attributes here.
+     */
+    public static class Context extends HttpContext {
+        private final String path;
+        private final HttpServer server;
+        private final Map<String, Object> attributes = new HashMap<>();
+        private final List<Filter> filters = new ArrayList<>();
+        private HttpHandler handler;
+        private Authenticator authenticator;
+
+        public Context(String path, HttpHandler handler, HttpServer server) {
+            this.path = path;
+            this.handler = handler;
+            this.server = server;
+        }
+
+        @Override
+        public HttpHandler getHandler() {
+            return handler;
+        }
+
+        @Override
+        public void setHandler(HttpHandler handler) {
+            this.handler = handler;
+        }
+
+        @Override
+        public String getPath() {
+            return path;
+        }
+
+        @Override
+        public HttpServer getServer() {
+            return server;
+        }
+
+        @Override
+        public Map<String, Object> getAttributes() {
+            return attributes;
+        }
+
+        @Override
+        public List<Filter> getFilters() {
+            return filters;
+        }
+
+        @Override
+        public Authenticator setAuthenticator(Authenticator authenticator) {
+            Authenticator previous = this.authenticator;
+            this.authenticator = authenticator;
+            return previous;
+        }
+
+        @Override
+        public Authenticator getAuthenticator() {
+            return authenticator;
+        }
+    }
+
+    private final String method;
+    private final URI uri;
+    private final HttpContext context;
+    private final InetSocketAddress remoteAddress;
+    private final InetSocketAddress localAddress;
+    private final Completion completion;
+    private final Headers requestHeaders = new Headers();
+    private final Headers responseHeaders = new Headers();
+    private final ByteArrayOutputStream response = new ByteArrayOutputStream();
+    private InputStream requestBody;
+    private OutputStream responseBody = response; // The response, possibly wrapped by a filter
+    private final Map<String, Object> attributes = new HashMap<>();
+    private final AtomicBoolean completed = new AtomicBoolean(false);
+    private int statusCode = -1;
+
+    public ForwardedExchange(String method, URI uri, byte[] body, HttpContext context, InetSocketAddress remoteAddress,
+                             InetSocketAddress localAddress, Completion completion) {
+        this.method = method;
+        this.uri = uri;
+        this.requestBody = new ByteArrayInputStream(body);
+        this.context = context;
+        this.remoteAddress = remoteAddress;
+        this.localAddress = localAddress;
+        this.completion = completion;
+        requestHeaders.add("Content-Type", "application/json");
+    }
+
+    /**
+     * Answer with an error, unless a response has been sent already
+     */
+    public void fail(int statusCode, String error) {
+        if (completed.compareAndSet(false, true)) {
+            String json = new JSONObject().put("Error", error).toString();
+            completion.completed(statusCode, json.getBytes(StandardCharsets.UTF_8));
+        }
+    }
+
+    @Override
+    public Headers getRequestHeaders() {
+        return requestHeaders;
+    }
+
+    @Override
+    public Headers getResponseHeaders() {
+        return responseHeaders;
+    }
+
+    @Override
+    public URI getRequestURI() {
+        return uri;
+    }
+
+    @Override
+    public String getRequestMethod() {
+        return method;
+    }
+
+    @Override
+    public HttpContext getHttpContext() {
+        return context;
+    }
+
+    @Override
+    public void close() {
+        if (!completed.compareAndSet(false, true)) return;
+        try {
+            responseBody.close(); // A filter's stream may still hold part of the response
+        } catch (IOException e) {
+            // The response is what we have
+        }
+        completion.completed(statusCode, response.toByteArray());
+    }
+
+    @Override
+    public InputStream getRequestBody() {
+        return requestBody;
+    }
+
+    @Override
+    public OutputStream getResponseBody() {
+        return responseBody;
+    }
+
+    @Override
+    public void sendResponseHeaders(int rCode, long responseLength) {
+        statusCode = rCode;
+    }
+
+    @Override
+    public InetSocketAddress getRemoteAddress() {
+        return remoteAddress;
+    }
+
+    @Override
+    public int getResponseCode() {
+        return statusCode;
+    }
+
+    @Override
+    public InetSocketAddress getLocalAddress() {
+        return localAddress;
+    }
+
+    @Override
+    public String getProtocol() {
+        return "HTTP/1.1";
+    }
+
+    @Override
+    public synchronized Object getAttribute(String name) {
+        return attributes.get(name);
+    }
+
+    @Override
+    public synchronized void setAttribute(String name, Object value) {
+        attributes.put(name, value);
+    }
+
+    @Override
+    public void setStreams(InputStream i, OutputStream o) {
+        if (i != null) requestBody = i;
+        if (o != null) responseBody = o;
+    }
+
+    @Override
+    public HttpPrincipal getPrincipal() {
+        return null;
+    }
+}
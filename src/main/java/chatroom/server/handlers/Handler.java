@@ -1,19 +1,30 @@
 package chatroom.server.handlers;
 
+import chatroom.server.Client;
+import chatroom.server.Cluster;
+import chatroom.server.Metrics;
 import com.sun.net.httpserver.HttpExchange;
 import com.sun.net.httpserver.HttpHandler;
 import org.json.JSONArray;
-import org.json.JSONException;
 import org.json.JSONObject;
 
-import java.io.BufferedReader;
+import java.io.ByteArrayInputStream;
 import java.io.IOException;
-import java.io.InputStreamReader;
-import java.io.OutputStreamWriter;
+import java.io.InputStream;
+import java.net.URLDecoder;
+import java.nio.charset.StandardCharsets;
 import java.util.ArrayList;
+import java.util.Comparator;
+import java.util.HashMap;
 import java.util.List;
-import java.util.stream.Collectors;
-import java.util.stream.IntStream;
+import java.util.Map;
+import java.util.Set;
+import java.util.concurrent.CompletableFuture;
+import java.util.concurrent.Executor;
+import java.util.concurrent.RejectedExecutionException;
+import java.util.function.Consumer;
+import java.util.function.Function;
+import java.util.logging.Logger;
 
 /**
  * This class provides the top-level functionality for answering requests.
@@ -24,48 +35,300 @@ import java.util.stream.IntStream;
  * unless the server explicitly says that these are allowed.
  */
 public abstract class Handler implements HttpHandler  {
+    private static final Logger logger = Logger.getLogger("");
+    private static final int DEFAULT_PAGE_SIZE = 100;
+    private static final int MAX_PAGE_SIZE = 1000;
+    private static final String START_TIME = "chatroom.start"; // Exchange attribute
+    private static final String UNMATCHED = "unmatched"; // Label for paths that are not a mapping
+
+    private static final Metrics.Counter requests = Metrics.counter("chat_requests_total",
+            "Requests answered, by mapping", "mapping");
+    private static final Metrics.Counter responses = Metrics.counter("chat_responses_total",
+            "Responses sent, by status code", "status");
+    private static final Metrics.Histogram latency = Metrics.histogram("chat_request_seconds",
+            "Time from receiving a request until its response is sent, by mapping", "mapping", Metrics.LATENCY_BUCKETS);
+    private static final Metrics.Counter rateLimited = Metrics.counter("chat_rate_limited_total",
+            "Requests refused by a rate limit, by mapping", "mapping");
+
+    private static volatile RateLimiter rateLimiter = null; // No limits
+    private static volatile Executor workers = Runnable::run; // Until the server sets its executor
+
+    private final Set<String> mappings;
+
+    /**
+     * The mappings (paths) that this handler answers. Metrics and rate limits are kept per
+     * mapping; all other paths share a single label, so that clients cannot create new ones.
+     */
+    protected Handler(String... mappings) {
+        this.mappings = Set.of(mappings);
+    }
+
+    /**
+     * Set the size (in bytes) from which responses are compressed, if the client accepts
+     * gzip or deflate. A negative value disables compression.
+     */
+    public static void setCompressionThreshold(int bytes) {
+        ResponseBuffer.setCompressionThreshold(bytes);
+    }
+
+    /**
+     * Set the server's worker threads, on which deferred responses are completed
+     */
+    public static void setWorkers(Executor executor) {
+        workers = executor;
+    }
+
+    /**
+     * Run a task on the worker threads. If they refuse it, run it on this thread: the task
+     * completes a response, and must run eventually.
+     */
+    protected static void runOnWorkers(Runnable task) {
+        try {
+            workers.execute(task);
+        } catch (RejectedExecutionException e) {
+            task.run();
+        }
+    }
+
+    /**
+     * Limit how often clients may call each mapping (see RateLimiter for the format of the
+     * rules). The buckets of all clients share a table of the given size.
+     */
+    public static void setRateLimits(String rules, int tableSize) {
+        rateLimiter = RateLimiter.parse(rules, tableSize);
+    }
+
     @Override
     public void handle(HttpExchange httpExchange) throws IOException {
-        try (// Get the input and output streams
-             BufferedReader in = new BufferedReader(new InputStreamReader(httpExchange.getRequestBody()));
-             OutputStreamWriter out = new OutputStreamWriter(httpExchange.getResponseBody())
-        ) {
-            // Web clients are sending cross-origin, because the client is not running on this server.
-            // In that case, the browser sends a pre-flight request, to ensure that a cross-origin
-            // request will be accepted. This is an OPTIONS command, and must be answered with headers
-            // that show what cross-origin commands are acceptable.
-            if (httpExchange.getRequestMethod().equalsIgnoreCase("OPTIONS")) {
-                httpExchange.getResponseHeaders().add("Access-Control-Allow-Origin", "*");
-                httpExchange.getResponseHeaders().add("Access-Control-Allow-Methods", "GET, POST, PUT, DELETE, OPTIONS");
-                httpExchange.getResponseHeaders().add("Access-Control-Allow-Headers", "Content-Type");
-                httpExchange.sendResponseHeaders(204, -1); // No content for OPTIONS requests
-            } else { // For all other requests, our usual processing
-                // Empty response with an optimistic status-code
-                HandlerResponse response = new HandlerResponse();
+        // Web clients are sending cross-origin, because the client is not running on this server.
+        // In that case, the browser sends a pre-flight request, to ensure that a cross-origin
+        // request will be accepted. This is an OPTIONS command, and must be answered with headers
+        // that show what cross-origin commands are acceptable.
+        if (httpExchange.getRequestMethod().equalsIgnoreCase("OPTIONS")) {
+            httpExchange.getResponseHeaders().add("Access-Control-Allow-Origin", "*");
+            httpExchange.getResponseHeaders().add("Access-Control-Allow-Methods", "GET, POST, PUT, DELETE, OPTIONS");
+            httpExchange.getResponseHeaders().add("Access-Control-Allow-Headers", "Content-Type");
+            httpExchange.sendResponseHeaders(204, -1); // No content for OPTIONS requests
+            httpExchange.close();
+        } else { // For all other requests, our usual processing
+            httpExchange.setAttribute(START_TIME, System.nanoTime());
+
+            // Empty response with an optimistic status-code
+            HandlerResponse response = new HandlerResponse();
 
+            // Limits by address apply where the client connects; forwarded requests have passed them
+            try (InputStream in = httpExchange.getRequestBody()) {
                 String requestMethod = httpExchange.getRequestMethod();
-                if (requestMethod.equals("GET")) {
-                    handleGet(httpExchange, response);
+                if (!(httpExchange instanceof ForwardedExchange) && rateLimited(httpExchange, RateLimiter.Kind.IP,
+                        httpExchange.getRemoteAddress().getAddress().getHostAddress(), response)) {
+                    // Refused; the response says when to try again
+                } else if (requestMethod.equals("GET")) {
+                    if (!rateLimited(httpExchange, RateLimiter.Kind.TOKEN, readQuery(httpExchange).get("token"), response)) {
+                        handleGet(httpExchange, response);
+                    }
                 } else if (requestMethod.equals("POST")) {
-                    JSONObject JSONin = readJSON(in);
-                    handlePost(httpExchange, JSONin, response);
+                    HandlerRequest request = readRequest(in);
+                    int owner = ownerOf(request);
+                    if (owner != Cluster.self() && !(httpExchange instanceof ForwardedExchange)) {
+                        forward(httpExchange, owner, request, response);
+                    } else if (!rateLimited(httpExchange, RateLimiter.Kind.TOKEN, request.token, response)) {
+                        // Limits by token apply on the token's node, which sees all of its requests
+                        handlePost(httpExchange, request, response);
+                    }
                 } else { // Unsupported request type
                     response.statusCode = 418;
                     response.jsonOut.put("Error", "Invalid HTTP request method");
                 }
+            }
+
+            // A deferred response is sent later by the handler itself
+            if (!response.deferred) sendResponse(httpExchange, response);
+        }
+    }
+
+    /**
+     * Send the response and close the exchange. This is normally called from handle(), but
+     * handlers that defer their response call it themselves, once the response is ready.
+     *
+     * The response is encoded as UTF-8 into a buffer, so that we can send its exact length.
+     * Large responses are streamed in chunks instead. Either way, the response is compressed
+     * if the client accepts it and the response is large enough.
+     */
+    protected void sendResponse(HttpExchange httpExchange, HandlerResponse response) throws IOException {
+        ResponseBuffer out = null;
+        try {
+            // We include the CORS headers for all normal requests as well,
+            // to ensure that web clients are happy.
+            httpExchange.getResponseHeaders().add("Access-Control-Allow-Origin", "*");
+            httpExchange.getResponseHeaders().add("Access-Control-Allow-Methods", "GET, POST, PUT, DELETE, OPTIONS");
+            httpExchange.getResponseHeaders().add("Access-Control-Allow-Headers", "Content-Type");
+
+            // Send the response
+            httpExchange.getResponseHeaders().add("Content-Type", "application/json; charset=utf-8");
+            out = ResponseBuffer.start(httpExchange, response.statusCode);
+            JsonCodec.write(response.jsonOut, out);
+            out.finish();
+        } finally {
+            if (out != null) out.release();
+            httpExchange.close();
+            recordResponse(httpExchange, response.statusCode);
+        }
+    }
+
+    /**
+     * Count a response in the metrics. sendResponse does this; handlers that write their
+     * responses themselves (such as streams) call it once the response is complete.
+     */
+    protected void recordResponse(HttpExchange httpExchange, int statusCode) {
+        String mapping = mappingOf(httpExchange);
+        requests.inc(mapping);
+        responses.inc(Integer.toString(statusCode));
+        if (httpExchange.getAttribute(START_TIME) instanceof Long start) latency.observeSince(mapping, start);
+    }
+
+    /**
+     * Take a token from the rate limit for this key on the request's mapping, if there is
+     * one. If the limit is exhausted, fill in a 429 response, and return true.
+     */
+    private boolean rateLimited(HttpExchange httpExchange, RateLimiter.Kind kind, String key, HandlerResponse response) {
+        long wait = acquire(kind, mappingOf(httpExchange), key);
+        if (wait == 0) return false;
+        httpExchange.getResponseHeaders().add("Retry-After", Long.toString((wait + 999) / 1000));
+        response.statusCode = 429;
+        response.jsonOut.put("Error", "Too many requests");
+        return true;
+    }
+
+    /**
+     * Check the rate limits of a request that did not come over HTTP (e.g., over a
+     * WebSocket), as if it had been a request for the given mapping: first the limit for
+     * the client address, then the one for the token (either may be null). Returns 0 if
+     * the request may proceed, or else the milliseconds until it may.
+     */
+    public static long rateLimit(String mapping, String address, String token) {
+        long wait = acquire(RateLimiter.Kind.IP, mapping, address);
+        return (wait > 0) ? wait : acquire(RateLimiter.Kind.TOKEN, mapping, token);
+    }
+
+    /**
+     * Take a token from the key's bucket for the mapping; returns 0, or the milliseconds to
+     * wait. Buckets are only kept for tokens of existing sessions, so that made-up tokens
+     * cannot fill the table; requests with other tokens are refused by the handlers anyway.
+     */
+    private static long acquire(RateLimiter.Kind kind, String mapping, String key) {
+        RateLimiter limiter = rateLimiter;
+        if (limiter == null || key == null) return 0;
+        RateLimiter.Limit limit = limiter.limitFor(kind, mapping);
+        if (limit == null) return 0;
+        if (kind == RateLimiter.Kind.TOKEN && Client.findByToken(key) == null) return 0;
+        long wait = limiter.acquire(kind, limit, key);
+        if (wait > 0) rateLimited.inc(mapping);
+        return wait;
+    }
+
+    /**
+     * The request's mapping, for metrics and rate limits; "unmatched" if it has none
+     */
+    private String mappingOf(HttpExchange httpExchange) {
+        String path = httpExchange.getRequestURI().getPath();
+        return mappings.contains(path) ? path : UNMATCHED;
+    }
 
-                // We include the CORS headers for all normal requests as well,
-                // to ensure that web clients are happy.
-                httpExchange.getResponseHeaders().add("Access-Control-Allow-Origin", "*");
-                httpExchange.getResponseHeaders().add("Access-Control-Allow-Methods", "GET, POST, PUT, DELETE, OPTIONS");
-                httpExchange.getResponseHeaders().add("Access-Control-Allow-Headers", "Content-Type");
+    /**
+     * In a cluster, the node that holds the request's user: found by the token, or else by
+     * the username. Requests without either are handled wherever they arrive.
+     */
+    protected int ownerOf(HandlerRequest request) {
+        if (!Cluster.enabled()) return Cluster.self();
+        if (request.token != null) return Cluster.nodeOfToken(request.token);
+        return (request.username != null) ? Cluster.nodeOfUsername(request.username) : Cluster.self();
+    }
 
-                // Send the response
-                String textOut = response.jsonOut.toString();
-                httpExchange.sendResponseHeaders(response.statusCode, textOut.length());
-                out.write(textOut);
+    /**
+     * Forward a request to the node holding its user, and pass that node's response on
+     * to the client, once it arrives. No worker thread waits in the meantime.
+     */
+    private void forward(HttpExchange httpExchange, int node, HandlerRequest request, HandlerResponse response) {
+        response.deferred = true;
+        byte[] body = JsonCodec.toBytes(request);
+        Cluster.forward(node, "POST", httpExchange.getRequestURI().toString(), body, httpExchange.getRemoteAddress())
+                .whenCompleteAsync((reply, failure) -> {
+                    HandlerResponse forwarded = new HandlerResponse();
+                    JSONObject jsonOut = (failure == null) ? readJSON(new ByteArrayInputStream(reply.body())) : null;
+                    if (jsonOut == null) {
+                        forwarded.statusCode = 503;
+                        forwarded.jsonOut.put("Error", "Node unavailable");
+                    } else {
+                        forwarded.statusCode = reply.statusCode();
+                        forwarded.jsonOut = jsonOut;
+                    }
+                    try {
+                        sendResponse(httpExchange, forwarded);
+                    } catch (IOException e) {
+                        logger.fine("Forwarded response failed: " + e);
+                    }
+                }, Cluster.executor());
+    }
+
+    /**
+     * In a cluster, a listing is answered by all nodes. The handler puts its own page into
+     * the response, and calls this method; the response is then sent once the other nodes
+     * have answered the same request, after merge has combined their responses into it.
+     * If a node does not answer, the response is marked as "partial".
+     */
+    protected void gather(HttpExchange httpExchange, HandlerResponse response, Consumer<List<JSONObject>> merge) {
+        if (!Cluster.enabled() || httpExchange instanceof ForwardedExchange) return;
+        response.deferred = true;
+        List<CompletableFuture<JSONObject>> replies = new ArrayList<>();
+        for (int node = 0; node < Cluster.size(); node++) {
+            if (node == Cluster.self()) continue;
+            replies.add(Cluster.forward(node, "GET", httpExchange.getRequestURI().toString(), new byte[0], httpExchange.getRemoteAddress())
+                    .thenApply(reply -> readJSON(new ByteArrayInputStream(reply.body())))
+                    .exceptionally(e -> null));
+        }
+        CompletableFuture.allOf(replies.toArray(new CompletableFuture<?>[0])).whenCompleteAsync((done, failure) -> {
+            List<JSONObject> pages = new ArrayList<>();
+            for (CompletableFuture<JSONObject> reply : replies) {
+                JSONObject page = reply.join();
+                if (page == null) {
+                    response.jsonOut.put("partial", true);
+                } else {
+                    pages.add(page);
+                }
             }
+            merge.accept(pages);
+            try {
+                sendResponse(httpExchange, response);
+            } catch (IOException e) {
+                logger.fine("Gathered response failed: " + e);
+            }
+        }, Cluster.executor());
+    }
+
+    /**
+     * Merge the pages of all nodes under the given key into the page in the response: the
+     * items are sorted, and cut off at the limit. If any node has more, or if items were
+     * cut off, "next" is the cursor of the last item.
+     */
+    protected void mergePages(HandlerResponse response, String key, List<JSONObject> pages, int limit,
+                              Comparator<Object> order, Function<Object, Object> cursor) {
+        List<Object> items = new ArrayList<>();
+        boolean more = response.jsonOut.has("next");
+        JSONArray local = response.jsonOut.optJSONArray(key);
+        if (local != null) local.forEach(items::add);
+        for (JSONObject page : pages) {
+            JSONArray array = page.optJSONArray(key);
+            if (array != null) array.forEach(items::add);
+            more |= page.has("next");
+        }
+        items.sort(order);
+        if (items.size() > limit) {
+            items = items.subList(0, limit);
+            more = true;
         }
+        response.jsonOut.put(key, new JSONArray(items));
+        response.jsonOut.remove("next");
+        if (more && !items.isEmpty()) response.jsonOut.put("next", cursor.apply(items.get(items.size() - 1)));
     }
 
     /**
@@ -79,60 +342,63 @@ public abstract class Handler implements HttpHandler  {
     /**
      * The handler should override this method, if it supports POST-requests
      */
-    protected void handlePost(HttpExchange httpExchange, JSONObject JSONin, HandlerResponse response) {
+    protected void handlePost(HttpExchange httpExchange, HandlerRequest request, HandlerResponse response) {
         response.statusCode = 418;
         response.jsonOut.put("Error", "Invalid HTTP request method");
     }
 
     /**
-     * Read the JSON from the input, and place into a JSONObject
+     * Read the body of a request. If it is not a valid JSON object, all fields are null,
+     * so that the handlers answer that parameters are missing.
      */
-    protected JSONObject readJSON(BufferedReader in) {
-        JSONObject jsonIn = null;
+    protected HandlerRequest readRequest(InputStream in) {
         try {
-            StringBuilder stringBuilder = new StringBuilder();
-            String line;
-            while ((line = in.readLine()) != null) {
-                stringBuilder.append(line);
-            }
-            String jsonText = stringBuilder.toString();
-            jsonIn = new JSONObject(jsonText);
+            return JsonCodec.readRequest(in);
         } catch (Exception e) {
-            // If anything goes wrong, return null
+            return new HandlerRequest();
         }
-        return jsonIn;
     }
 
     /**
-     * Helper method to read a JSON string. Getting exceptions is a nuisance - if a string does
-     * not exist, just return null.
+     * Read any JSON object from the input (such as the response of another node), and place into a JSONObject
      */
-    protected String readString(JSONObject obj, String key) {
+    protected JSONObject readJSON(InputStream in) {
+        JSONObject jsonIn = null;
         try {
-            return obj.getString(key);
-        } catch (JSONException e) {
-            return null;
+            jsonIn = JsonCodec.read(in);
+        } catch (Exception e) {
+            // If anything goes wrong, return null
         }
+        return jsonIn;
     }
 
-    protected List<String> readList(JSONObject obj, String key){
-        try{
-            JSONArray jsonArray = obj.getJSONArray(key);
-            List<String> list = IntStream.range(0, jsonArray.length())
-                    .mapToObj(jsonArray::getString)
-                    .collect(Collectors.toList());
-            return list;
+    /**
+     * Read the parameters from the query string of the request URI (e.g., "/chat/stream?token=...")
+     */
+    protected Map<String, String> readQuery(HttpExchange httpExchange) {
+        Map<String, String> params = new HashMap<>();
+        String query = httpExchange.getRequestURI().getRawQuery();
+        if (query != null) {
+            for (String param : query.split("&")) {
+                int pos = param.indexOf('=');
+                if (pos > 0) {
+                    params.put(URLDecoder.decode(param.substring(0, pos), StandardCharsets.UTF_8),
+                            URLDecoder.decode(param.substring(pos + 1), StandardCharsets.UTF_8));
+                }
             }
-        catch (JSONException e){
-            return null;
         }
+        return params;
     }
 
-    protected Integer readInt(JSONObject obj, String key){
+    /**
+     * Read the page size from the query parameter "limit": by default 100, at most 1000
+     */
+    protected int readLimit(Map<String, String> query) {
         try {
-            return obj.getInt(key);
-        } catch (JSONException e){
-            return null;
+            int limit = Integer.parseInt(query.getOrDefault("limit", ""));
+            return (limit <= 0) ? DEFAULT_PAGE_SIZE : Math.min(limit, MAX_PAGE_SIZE);
+        } catch (NumberFormatException e) {
+            return DEFAULT_PAGE_SIZE;
         }
     }
 }
@@ -0,0 +1,24 @@
+package chatroom.server.handlers;
+
+import java.util.List;
+
+/**
+ * The body of a POST request. The requests of all handlers share these few fields, so
+ * JsonCodec decodes the body straight into them. A field that is missing, or has the
+ * wrong type, is null. Like HandlerResponse, only handlers use this class.
+ */
+class HandlerRequest {
+    String token;
+    String username;
+    String password;
+    String message;
+    String chatroomName;
+    List<String> clients;
+    List<String> usernames;
+    Integer chatroomId;
+    Integer timeout;
+    Integer limit;
+    Long before;
+    Long after;
+    List<HandlerRequest> messages; // The items of a batch; null for items that are not objects
+}
@@ -9,4 +9,5 @@ import org.json.JSONObject;
 class HandlerResponse {
     int statusCode = 200; // Optimistic default
     JSONObject jsonOut = new JSONObject();
+    boolean deferred = false; // Set by handlers that send the response later, from another thread
 }
\ No newline at end of file
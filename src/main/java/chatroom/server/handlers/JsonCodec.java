@@ -0,0 +1,600 @@
+package chatroom.server.handlers;
+
+import org.json.JSONArray;
+import org.json.JSONException;
+import org.json.JSONObject;
+
+import java.io.ByteArrayOutputStream;
+import java.io.IOException;
+import java.io.InputStream;
+import java.io.OutputStream;
+import java.io.UncheckedIOException;
+import java.math.BigDecimal;
+import java.math.BigInteger;
+import java.util.ArrayList;
+import java.util.HashSet;
+import java.util.List;
+import java.util.Map;
+import java.util.Set;
+
+/**
+ * Reads and writes JSON directly from and to byte streams, in UTF-8. Requests are
+ * parsed from the request body without first collecting it into a String, and
+ * responses are encoded straight into the output stream, without building the
+ * complete text first. Parsers and writers, with their buffers, are pooled.
+ *
+ * Request bodies have a fixed shape, and are decoded straight into the fields of a
+ * HandlerRequest, without building a JSONObject first; fields that no handler reads
+ * are skipped. Other JSON (such as the replies of other nodes) is parsed into a
+ * JSONObject. Responses are written from JSONObject and JSONArray, or from maps and
+ * lists. As with org.json, duplicate keys are refused.
+ */
+final class JsonCodec {
+    private static final int MAX_DEPTH = 32;
+    // The fields of a HandlerRequest, by their position in this list (for the check for duplicates)
+    private static final List<String> REQUEST_FIELDS = List.of("token", "username", "password", "message",
+            "chatroomName", "clients", "usernames", "chatroomId", "timeout", "limit", "before", "after", "messages");
+    private static final Pool<Parser> parsers = new Pool<>(Pool.DEFAULT_SIZE, Parser::new, parser -> { });
+    private static final Pool<Writer> writers = new Pool<>(Pool.DEFAULT_SIZE, Writer::new, writer -> { });
+
+    private JsonCodec() {
+    }
+
+    /**
+     * Parse a JSON object from the stream. Throws JSONException, if the input is not a valid object.
+     */
+    static JSONObject read(InputStream in) throws IOException {
+        Parser parser = parsers.acquire();
+        try {
+            return parser.parse(in);
+        } finally {
+            parser.in = null;
+            parsers.release(parser);
+        }
+    }
+
+    /**
+     * Parse a request body from the stream. Throws JSONException, if the input is not a valid object.
+     */
+    static HandlerRequest readRequest(InputStream in) throws IOException {
+        Parser parser = parsers.acquire();
+        try {
+            return parser.parseRequest(in);
+        } finally {
+            parser.in = null;
+            parsers.release(parser);
+        }
+    }
+
+    /**
+     * Encode a value as write() does, into a byte array
+     */
+    static byte[] toBytes(Object value) {
+        ByteArrayOutputStream out = new ByteArrayOutputStream();
+        try {
+            write(value, out);
+        } catch (IOException e) {
+            throw new UncheckedIOException(e); // Not from a ByteArrayOutputStream
+        }
+        return out.toByteArray();
+    }
+
+    /**
+     * Write a value (HandlerRequest, JSONObject, JSONArray, Map, Iterable, String, Number, Boolean or null) to the stream
+     */
+    static void write(Object value, OutputStream out) throws IOException {
+        Writer writer = writers.acquire();
+        writer.out = out;
+        try {
+            writer.value(value);
+            writer.flush();
+        } finally {
+            writer.out = null;
+            writer.pos = 0;
+            writers.release(writer);
+        }
+    }
+
+    private static class Parser {
+        private final byte[] buf = new byte[8192];
+        private final StringBuilder text = new StringBuilder();
+        private InputStream in;
+        private int pos;
+        private int limit;
+
+        JSONObject parse(InputStream in) throws IOException {
+            begin(in);
+            JSONObject result = parseObject(0);
+            end();
+            return result;
+        }
+
+        HandlerRequest parseRequest(InputStream in) throws IOException {
+            begin(in);
+            HandlerRequest result = parseRequest(0);
+            end();
+            return result;
+        }
+
+        private void begin(InputStream in) throws IOException {
+            this.in = in;
+            pos = 0;
+            limit = 0;
+            if (skipWhitespace() != '{') throw new JSONException("A JSON object must begin with '{'");
+            pos++;
+        }
+
+        private void end() throws IOException {
+            if (skipWhitespace() != -1) throw new JSONException("Unexpected data after the JSON object");
+        }
+
+        // Returns the next byte without consuming it, or -1 at the end of the input
+        private int peek() throws IOException {
+            if (pos == limit) {
+                limit = in.read(buf, 0, buf.length);
+                pos = 0;
+                if (limit <= 0) {
+                    limit = 0;
+                    return -1;
+                }
+            }
+            return buf[pos] & 0xFF;
+        }
+
+        private int next() throws IOException {
+            int c = peek();
+            if (c < 0) throw new JSONException("Unexpected end of input");
+            pos++;
+            return c;
+        }
+
+        private int skipWhitespace() throws IOException {
+            int c = peek();
+            while (c == ' ' || c == '\t' || c == '\n' || c == '\r') {
+                pos++;
+                c = peek();
+            }
+            return c;
+        }
+
+        private void expect(int expected) throws IOException {
+            if (skipWhitespace() != expected) throw new JSONException("Expected '" + (char) expected + "'");
+            pos++;
+        }
+
+        private Object parseValue(int depth) throws IOException {
+            if (depth > MAX_DEPTH) throw new JSONException("JSON nested too deeply");
+            int c = skipWhitespace();
+            switch (c) {
+                case '{' -> {
+                    pos++;
+                    return parseObject(depth + 1);
+                }
+                case '[' -> {
+                    pos++;
+                    return parseArray(depth + 1);
+                }
+                case '"' -> {
+                    pos++;
+                    return parseString();
+                }
+                case 't' -> {
+                    literal("true");
+                    return Boolean.TRUE;
+                }
+                case 'f' -> {
+                    literal("false");
+                    return Boolean.FALSE;
+                }
+                case 'n' -> {
+                    literal("null");
+                    return JSONObject.NULL;
+                }
+                default -> {
+                    if (c == '-' || (c >= '0' && c <= '9')) return parseNumber();
+                    throw new JSONException("Unexpected character in JSON");
+                }
+            }
+        }
+
+        private JSONObject parseObject(int depth) throws IOException {
+            JSONObject obj = new JSONObject();
+            if (skipWhitespace() == '}') {
+                pos++;
+                return obj;
+            }
+            while (true) {
+                expect('"');
+                String key = parseString();
+                if (obj.has(key)) throw new JSONException("Duplicate key \"" + key + "\"");
+                expect(':');
+                obj.put(key, parseValue(depth));
+                int c = skipWhitespace();
+                pos++;
+                if (c == '}') return obj;
+                if (c != ',') throw new JSONException("Expected ',' or '}'");
+            }
+        }
+
+        // The opening brace has already been consumed
+        private HandlerRequest parseRequest(int depth) throws IOException {
+            HandlerRequest request = new HandlerRequest();
+            if (skipWhitespace() == '}') {
+                pos++;
+                return request;
+            }
+            int seen = 0; // The fields read so far, as bits
+            Set<String> unknown = null; // The other keys read so far
+            while (true) {
+                expect('"');
+                String key = parseString();
+                int field = REQUEST_FIELDS.indexOf(key);
+                if (field >= 0 ? (seen & 1 << field) != 0 : !(unknown = (unknown == null) ? new HashSet<>() : unknown).add(key)) {
+                    throw new JSONException("Duplicate key \"" + key + "\"");
+                }
+                if (field >= 0) seen |= 1 << field;
+                expect(':');
+                switch (key) {
+                    case "token" -> request.token = stringValue(depth);
+                    case "username" -> request.username = stringValue(depth);
+                    case "password" -> request.password = stringValue(depth);
+                    case "message" -> request.message = stringValue(depth);
+                    case "chatroomName" -> request.chatroomName = stringValue(depth);
+                    case "clients" -> request.clients = stringListValue(depth);
+                    case "usernames" -> request.usernames = stringListValue(depth);
+                    case "chatroomId" -> request.chatroomId = intValue(depth);
+                    case "timeout" -> request.timeout = intValue(depth);
+                    case "limit" -> request.limit = intValue(depth);
+                    case "before" -> request.before = longValue(depth);
+                    case "after" -> request.after = longValue(depth);
+                    case "messages" -> request.messages = requestListValue(depth);
+                    default -> parseValue(depth); // Not read by any handler
+                }
+                int c = skipWhitespace();
+                pos++;
+                if (c == '}') return request;
+                if (c != ',') throw new JSONException("Expected ',' or '}'");
+            }
+        }
+
+        // The value of a field of a request; a value of another type is read, but gives null
+        private String stringValue(int depth) throws IOException {
+            if (skipWhitespace() != '"') {
+                parseValue(depth);
+                return null;
+            }
+            pos++;
+            return parseString();
+        }
+
+        private Integer intValue(int depth) throws IOException {
+            return (parseValue(depth) instanceof Integer value) ? value : null;
+        }
+
+        private Long longValue(int depth) throws IOException {
+            Object value = parseValue(depth);
+            return (value instanceof Integer || value instanceof Long) ? ((Number) value).longValue() : null;
+        }
+
+        // A list of strings; null, if any of the elements is not a string
+        private List<String> stringListValue(int depth) throws IOException {
+            if (skipWhitespace() != '[') {
+                parseValue(depth);
+                return null;
+            }
+            if (depth + 1 > MAX_DEPTH) throw new JSONException("JSON nested too deeply");
+            pos++;
+            List<String> list = new ArrayList<>();
+            if (skipWhitespace() == ']') {
+                pos++;
+                return list;
+            }
+            while (true) {
+                String value = stringValue(depth + 1);
+                if (value == null) list = null;
+                if (list != null) list.add(value);
+                int c = skipWhitespace();
+                pos++;
+                if (c == ']') return list;
+                if (c != ',') throw new JSONException("Expected ',' or ']'");
+            }
+        }
+
+        // A list of requests (the items of a batch); elements that are not objects are null
+        private List<HandlerRequest> requestListValue(int depth) throws IOException {
+            if (skipWhitespace() != '[') {
+                parseValue(depth);
+                return null;
+            }
+            if (depth + 1 > MAX_DEPTH) throw new JSONException("JSON nested too deeply");
+            pos++;
+            List<HandlerRequest> list = new ArrayList<>();
+            if (skipWhitespace() == ']') {
+                pos++;
+                return list;
+            }
+            while (true) {
+                if (skipWhitespace() == '{') {
+                    pos++;
+                    list.add(parseRequest(depth + 2));
+                } else {
+                    parseValue(depth + 1);
+                    list.add(null);
+                }
+                int c = skipWhitespace();
+                pos++;
+                if (c == ']') return list;
+                if (c != ',') throw new JSONException("Expected ',' or ']'");
+            }
+        }
+
+        private JSONArray parseArray(int depth) throws IOException {
+            JSONArray array = new JSONArray();
+            if (skipWhitespace() == ']') {
+                pos++;
+                return array;
+            }
+            while (true) {
+                array.put(parseValue(depth));
+                int c = skipWhitespace();
+                pos++;
+                if (c == ']') return array;
+                if (c != ',') throw new JSONException("Expected ',' or ']'");
+            }
+        }
+
+        // The opening quote has already been consumed; decodes UTF-8 as it goes. Overlong
+        // encodings, encoded surrogates and code points beyond U+10FFFF are refused.
+        private String parseString() throws IOException {
+            text.setLength(0);
+            while (true) {
+                int c = next();
+                if (c == '"') return text.toString();
+                if (c == '\\') {
+                    c = next();
+                    switch (c) {
+                        case '"', '\\', '/' -> text.append((char) c);
+                        case 'b' -> text.append('\b');
+                        case 'f' -> text.append('\f');
+                        case 'n' -> text.append('\n');
+                        case 'r' -> text.append('\r');
+                        case 't' -> text.append('\t');
+                        case 'u' -> text.append((char) (hex(next()) << 12 | hex(next()) << 8 | hex(next()) << 4 | hex(next())));
+                        default -> throw new JSONException("Invalid escape in JSON string");
+                    }
+                } else if (c < 0x80) {
+                    text.append((char) c);
+                } else if (c >= 0xC2 && c < 0xE0) {
+                    text.append((char) ((c & 0x1F) << 6 | continuation()));
+                } else if (c >= 0xE0 && c < 0xF0) {
+                    int cp = (c & 0x0F) << 12 | continuation() << 6 | continuation();
+                    if (cp < 0x800 || Character.isSurrogate((char) cp)) throw new JSONException("Invalid UTF-8 in JSON string");
+                    text.append((char) cp);
+                } else if (c >= 0xF0 && c < 0xF5) {
+                    int cp = (c & 0x07) << 18 | continuation() << 12 | continuation() << 6 | continuation();
+                    if (cp < 0x10000 || cp > Character.MAX_CODE_POINT) throw new JSONException("Invalid UTF-8 in JSON string");
+                    text.appendCodePoint(cp);
+                } else {
+                    throw new JSONException("Invalid UTF-8 in JSON string");
+                }
+            }
+        }
+
+        private int continuation() throws IOException {
+            int c = next();
+            if ((c & 0xC0) != 0x80) throw new JSONException("Invalid UTF-8 in JSON string");
+            return c & 0x3F;
+        }
+
+        private static int hex(int c) {
+            int value = Character.digit(c, 16);
+            if (value < 0) throw new JSONException("Invalid unicode escape in JSON string");
+            return value;
+        }
+
+        private Number parseNumber() throws IOException {
+            text.setLength(0);
+            boolean integer = true;
+            int c = peek();
+            while (c == '-' || c == '+' || c == '.' || c == 'e' || c == 'E' || (c >= '0' && c <= '9')) {
+                if (c == '.' || c == 'e' || c == 'E') integer = false;
+                text.append((char) c);
+                pos++;
+                c = peek();
+            }
+            if (!isNumber(text)) throw new JSONException("Invalid number in JSON");
+            if (integer) {
+                // Most numbers fit into an int or long; larger ones become a BigInteger
+                if (text.length() <= 18) {
+                    long value = Long.parseLong(text, 0, text.length(), 10);
+                    if (value == (int) value) return (int) value;
+                    return value;
+                }
+                BigInteger value = new BigInteger(text.toString());
+                return (value.bitLength() < 64) ? (Number) value.longValue() : value;
+            }
+            double value = Double.parseDouble(text.toString());
+            return Double.isInfinite(value) ? new BigDecimal(text.toString()) : value;
+        }
+
+        // The JSON grammar for numbers: -?(0|[1-9][0-9]*)(.[0-9]+)?([eE][+-]?[0-9]+)?
+        private static boolean isNumber(CharSequence s) {
+            int i = 0;
+            int n = s.length();
+            if (i < n && s.charAt(i) == '-') i++;
+            if (i < n && s.charAt(i) == '0') {
+                i++;
+            } else {
+                int start = i;
+                while (i < n && isDigit(s.charAt(i))) i++;
+                if (i == start) return false;
+            }
+            if (i < n && s.charAt(i) == '.') {
+                int start = ++i;
+                while (i < n && isDigit(s.charAt(i))) i++;
+                if (i == start) return false;
+            }
+            if (i < n && (s.charAt(i) == 'e' || s.charAt(i) == 'E')) {
+                i++;
+                if (i < n && (s.charAt(i) == '+' || s.charAt(i) == '-')) i++;
+                int start = i;
+                while (i < n && isDigit(s.charAt(i))) i++;
+                if (i == start) return false;
+            }
+            return i == n;
+        }
+
+        private static boolean isDigit(char c) {
+            return c >= '0' && c <= '9';
+        }
+
+        private void literal(String word) throws IOException {
+            for (int i = 0; i < word.length(); i++) {
+                if (next() != word.charAt(i)) throw new JSONException("Invalid literal in JSON");
+            }
+        }
+    }
+
+    private static class Writer {
+        private final byte[] buf = new byte[8192];
+        private OutputStream out;
+        private int pos;
+
+        void value(Object value) throws IOException {
+            if (value == null || value == JSONObject.NULL) {
+                ascii("null");
+            } else if (value instanceof HandlerRequest request) {
+                request(request);
+            } else if (value instanceof String s) {
+                string(s);
+            } else if (value instanceof Integer || value instanceof Long || value instanceof Boolean) {
+                ascii(value.toString());
+            } else if (value instanceof Number n) {
+                ascii(JSONObject.numberToString(n));
+            } else if (value instanceof JSONObject obj) {
+                put('{');
+                boolean first = true;
+                for (String key : obj.keySet()) {
+                    if (!first) put(',');
+                    first = false;
+                    string(key);
+                    put(':');
+                    value(obj.opt(key));
+                }
+                put('}');
+            } else if (value instanceof JSONArray array) {
+                put('[');
+                for (int i = 0; i < array.length(); i++) {
+                    if (i > 0) put(',');
+                    value(array.opt(i));
+                }
+                put(']');
+            } else if (value instanceof Map<?, ?> map) {
+                put('{');
+                boolean first = true;
+                for (var entry : map.entrySet()) {
+                    if (!first) put(',');
+                    first = false;
+                    string(String.valueOf(entry.getKey()));
+                    put(':');
+                    value(entry.getValue());
+                }
+                put('}');
+            } else if (value instanceof Iterable<?> iterable) {
+                put('[');
+                boolean first = true;
+                for (Object element : iterable) {
+                    if (!first) put(',');
+                    first = false;
+                    value(element);
+                }
+                put(']');
+            } else {
+                string(value.toString());
+            }
+        }
+
+        // The fields that are set
+        private void request(HandlerRequest request) throws IOException {
+            Object[] values = { request.token, request.username, request.password, request.message,
+                    request.chatroomName, request.clients, request.usernames, request.chatroomId, request.timeout,
+                    request.limit, request.before, request.after, request.messages };
+            put('{');
+            boolean first = true;
+            for (int i = 0; i < values.length; i++) {
+                if (values[i] == null) continue;
+                if (!first) put(',');
+                first = false;
+                string(REQUEST_FIELDS.get(i));
+                put(':');
+                value(values[i]);
+            }
+            put('}');
+        }
+
+        private void string(String s) throws IOException {
+            put('"');
+            for (int i = 0; i < s.length(); i++) {
+                char c = s.charAt(i);
+                if (pos + 6 > buf.length) flush();
+                if (c == '"' || c == '\\') {
+                    buf[pos++] = '\\';
+                    buf[pos++] = (byte) c;
+                } else if (c < 0x20) {
+                    switch (c) {
+                        case '\n' -> escape('n');
+                        case '\r' -> escape('r');
+                        case '\t' -> escape('t');
+                        case '\b' -> escape('b');
+                        case '\f' -> escape('f');
+                        default -> {
+                            buf[pos++] = '\\';
+                            buf[pos++] = 'u';
+                            buf[pos++] = '0';
+                            buf[pos++] = '0';
+                            buf[pos++] = (byte) Character.forDigit(c >> 4, 16);
+                            buf[pos++] = (byte) Character.forDigit(c & 0xF, 16);
+                        }
+                    }
+                } else if (c < 0x80) {
+                    buf[pos++] = (byte) c;
+                } else if (c < 0x800) {
+                    buf[pos++] = (byte) (0xC0 | c >> 6);
+                    buf[pos++] = (byte) (0x80 | c & 0x3F);
+                } else if (Character.isHighSurrogate(c) && i + 1 < s.length() && Character.isLowSurrogate(s.charAt(i + 1))) {
+                    int cp = Character.toCodePoint(c, s.charAt(++i));
+                    buf[pos++] = (byte) (0xF0 | cp >> 18);
+                    buf[pos++] = (byte) (0x80 | cp >> 12 & 0x3F);
+                    buf[pos++] = (byte) (0x80 | cp >> 6 & 0x3F);
+                    buf[pos++] = (byte) (0x80 | cp & 0x3F);
+                } else if (Character.isSurrogate(c)) {
+                    buf[pos++] = '?'; // Unpaired surrogate, cannot be encoded
+                } else {
+                    buf[pos++] = (byte) (0xE0 | c >> 12);
+                    buf[pos++] = (byte) (0x80 | c >> 6 & 0x3F);
+                    buf[pos++] = (byte) (0x80 | c & 0x3F);
+                }
+            }
+            put('"');
+        }
+
+        private void escape(char c) {
+            buf[pos++] = '\\';
+            buf[pos++] = (byte) c;
+        }
+
+        private void ascii(String s) throws IOException {
+            for (int i = 0; i < s.length(); i++) put(s.charAt(i));
+        }
+
+        private void put(int b) throws IOException {
+            if (pos == buf.length) flush();
+            buf[pos++] = (byte) b;
+        }
+
+        void flush() throws IOException {
+            out.write(buf, 0, pos);
+            pos = 0;
+        }
+    }
+}
@@ -0,0 +1,34 @@
+package chatroom.server.handlers;
+
+import chatroom.server.Metrics;
+import com.sun.net.httpserver.HttpExchange;
+import com.sun.net.httpserver.HttpHandler;
+
+import java.io.IOException;
+import java.nio.charset.StandardCharsets;
+
+/**
+ * Publishes all metrics in the Prometheus text format: GET /metrics. This is plain
+ * text, not JSON, so it does not extend Handler; like all responses, it is sent with
+ * its exact length, and compressed if the client accepts it.
+ */
+public class MetricsHandler implements HttpHandler {
+    @Override
+    public void handle(HttpExchange httpExchange) throws IOException {
+        ResponseBuffer out = null;
+        try {
+            httpExchange.getRequestBody().close();
+            if (!httpExchange.getRequestMethod().equals("GET")) {
+                httpExchange.sendResponseHeaders(405, -1);
+                return;
+            }
+            httpExchange.getResponseHeaders().add("Content-Type", "text/plain; version=0.0.4; charset=utf-8");
+            out = ResponseBuffer.start(httpExchange, 200);
+            out.write(Metrics.toPrometheus().getBytes(StandardCharsets.UTF_8));
+            out.finish();
+        } finally {
+            if (out != null) out.release();
+            httpExchange.close();
+        }
+    }
+}
@@ -2,9 +2,12 @@ package chatroom.server.handlers;
 
 import chatroom.server.Client;
 import com.sun.net.httpserver.HttpExchange;
-import org.json.JSONObject;
 
 public class PingHandler extends Handler {
+    public PingHandler() {
+        super("/ping");
+    }
+
     @Override
     protected void handleGet(HttpExchange httpExchange, HandlerResponse response) {
         response.statusCode = 200;
@@ -12,9 +15,9 @@ public class PingHandler extends Handler {
     }
 
     @Override
-    protected void handlePost(HttpExchange httpExchange, JSONObject JSONin, HandlerResponse response) {
+    protected void handlePost(HttpExchange httpExchange, HandlerRequest request, HandlerResponse response) {
         boolean goodToken = false;
-        String token = readString(JSONin, "token");
+        String token = request.token;
         if (token != null) {
             goodToken = Client.findByToken(token) != null;
         }
@@ -0,0 +1,48 @@
+package chatroom.server.handlers;
+
+import java.util.concurrent.ConcurrentLinkedQueue;
+import java.util.concurrent.atomic.AtomicInteger;
+import java.util.function.Consumer;
+import java.util.function.Supplier;
+
+/**
+ * A bounded pool of reusable objects (buffers, parsers, compressors), shared by all
+ * threads. Thread-locals work as long as the threads are reused, but not with a thread
+ * per request (e.g., virtual threads), where every request would allocate a fresh set.
+ * At most maxPooled objects are kept; others are passed to the discard action, which
+ * releases whatever the garbage collector would not release promptly.
+ */
+final class Pool<T> {
+    static final int DEFAULT_SIZE = 4 * Runtime.getRuntime().availableProcessors();
+
+    private final int maxPooled;
+    private final Supplier<T> factory;
+    private final Consumer<T> discard;
+    private final ConcurrentLinkedQueue<T> idle = new ConcurrentLinkedQueue<>();
+    private final AtomicInteger pooled = new AtomicInteger(0);
+
+    Pool(int maxPooled, Supplier<T> factory, Consumer<T> discard) {
+        this.maxPooled = maxPooled;
+        this.factory = factory;
+        this.discard = discard;
+    }
+
+    /**
+     * An object from the pool, or a new one if the pool is empty
+     */
+    T acquire() {
+        T object = idle.poll();
+        if (object == null) return factory.get();
+        pooled.decrementAndGet();
+        return object;
+    }
+
+    void release(T object) {
+        if (pooled.incrementAndGet() <= maxPooled) {
+            idle.add(object);
+        } else {
+            pooled.decrementAndGet();
+            discard.accept(object);
+        }
+    }
+}
@@ -0,0 +1,192 @@
+package chatroom.server.handlers;
+
+import java.util.HashMap;
+import java.util.Map;
+import java.util.concurrent.atomic.AtomicLongArray;
+import java.util.function.LongSupplier;
+
+/**
+ * Token buckets, to limit how often a client may call a mapping. Each limit allows a
+ * burst of requests, and then a steady rate; a limit applies per client address or per
+ * token. A limit for a specific mapping has a bucket per mapping; the default limit
+ * ("*") has a single bucket for all mappings without a limit of their own.
+ *
+ * There may be a great many buckets (one per address or token), so a bucket is just a
+ * 64-bit hash of its key, and one long of state, so that the bucket can be updated with
+ * a single CAS. The state is the time (in microseconds) at which the bucket will be full
+ * again: taking a token moves this time on by the interval between tokens, and a request
+ * that would move it more than the burst ahead of now is refused. Unlike a count of
+ * tokens, refilled from the time elapsed, this loses no fractions between requests.
+ * The top bits of the state hold a tag, taken from the key's hash; they are never all
+ * zero, so that a state of 0 marks a free slot.
+ *
+ * The buckets live in an open-addressing table of fixed size. A slot is claimed by
+ * setting its state first and its key afterwards. A bucket that has been full for a
+ * while is as good as new, so its slot may be taken over by another key, with a CAS on
+ * the state (which changes its tag); a caller that found the slot under the old key
+ * sees the tag change and looks again. If no slot is free near a key, its request is
+ * refused until one is. Callers should only ask for keys that they have checked (e.g.,
+ * valid tokens), so that made-up keys cannot fill the table.
+ */
+final class RateLimiter {
+    enum Kind { IP, TOKEN }
+
+    /**
+     * A limit, for the mapping it was configured for: the interval between tokens, and how
+     * far ahead of now a bucket may go (the burst, less one token), in microseconds
+     */
+    record Limit(String mapping, long interval, long tolerance) {
+    }
+
+    private static final int MAX_PROBES = 16;
+    private static final int TIME_BITS = 56; // The low bits of the state; the tag takes the rest
+    private static final long TIME_MASK = (1L << TIME_BITS) - 1;
+    private static final long MAX_AHEAD = 1L << 50; // µs, about 35 years
+    private static final long IDLE_TIME = 1_000_000; // µs that a bucket must have been full, before another key may have its slot
+    private static final String DEFAULT = "*";
+    private static final long FULL_WAIT = 1000; // ms to wait, if there is no room for a key
+
+    private final Map<String, Limit> ipLimits = new HashMap<>();
+    private final Map<String, Limit> tokenLimits = new HashMap<>();
+    private final AtomicLongArray keys; // 0 for a free slot, or one being claimed
+    private final AtomicLongArray states; // 0 for a free slot
+    private final int mask;
+    private final LongSupplier clock; // ns
+    private final long startTime;
+
+    /**
+     * Parse limits of the form "mapping:kind:rate/burst", separated by commas. The kind is
+     * "ip" or "token", the rate is in requests per second. For example,
+     * "/user/register:ip:0.2/5,*:token:50/200". The table holds tableSize buckets (rounded
+     * up to a power of two).
+     */
+    static RateLimiter parse(String rules, int tableSize) {
+        return parse(rules, tableSize, System::nanoTime);
+    }
+
+    /**
+     * Parse limits, measuring time with the given clock (in nanoseconds)
+     */
+    static RateLimiter parse(String rules, int tableSize, LongSupplier clock) {
+        RateLimiter limiter = new RateLimiter(tableSize, clock);
+        for (String rule : rules.split(",")) {
+            String[] parts = rule.trim().split(":");
+            String[] rate = (parts.length == 3) ? parts[2].split("/") : new String[0];
+            if (rate.length != 2) throw new IllegalArgumentException("Invalid rate limit: " + rule);
+            double perSecond = Double.parseDouble(rate[0]);
+            int burst = Integer.parseInt(rate[1]);
+            if (!(perSecond > 0) || burst < 1 || 1_000_000 / perSecond * burst > MAX_AHEAD) {
+                throw new IllegalArgumentException("Invalid rate limit: " + rule);
+            }
+            long interval = Math.max(1, Math.round(1_000_000 / perSecond));
+            Limit limit = new Limit(parts[0], interval, interval * (burst - 1));
+            switch (parts[1]) {
+                case "ip" -> limiter.ipLimits.put(parts[0], limit);
+                case "token" -> limiter.tokenLimits.put(parts[0], limit);
+                default -> throw new IllegalArgumentException("Invalid rate limit: " + rule);
+            }
+        }
+        return limiter;
+    }
+
+    private RateLimiter(int tableSize, LongSupplier clock) {
+        this.clock = clock;
+        this.startTime = clock.getAsLong();
+        int size = Integer.highestOneBit(Math.max(tableSize - 1, MAX_PROBES)) << 1;
+        keys = new AtomicLongArray(size);
+        states = new AtomicLongArray(size);
+        mask = size - 1;
+    }
+
+    /**
+     * The limit for this kind of key on the mapping, or null if there is none
+     */
+    Limit limitFor(Kind kind, String mapping) {
+        Map<String, Limit> limits = (kind == Kind.IP) ? ipLimits : tokenLimits;
+        Limit limit = limits.get(mapping);
+        return (limit != null) ? limit : limits.get(DEFAULT);
+    }
+
+    /**
+     * Take a token from the bucket of the given key. Returns 0 if a token was available,
+     * or else the milliseconds until there will be one.
+     */
+    long acquire(Kind kind, Limit limit, String key) {
+        long now = (clock.getAsLong() - startTime) / 1000;
+        long hash = hash(kind, limit.mapping(), key);
+        long tag = tagOf(hash);
+        while (true) {
+            int slot = slotOf(hash, tag, now);
+            if (slot < 0) return FULL_WAIT; // No room near this key
+            long state = states.get(slot);
+            if ((state & ~TIME_MASK) != tag) continue; // Just taken over by another key; look again
+            long full = Math.max(state & TIME_MASK, now);
+            long ahead = full - now;
+            if (ahead > limit.tolerance()) return Math.max(1, (ahead - limit.tolerance() + 999) / 1000);
+            if (states.compareAndSet(slot, state, tag | (full + limit.interval()))) return 0;
+        }
+    }
+
+    /**
+     * The slot holding the given key, claiming a free or idle one (full, for a while) if the
+     * key has none. Returns -1 if all slots near the key are in use.
+     */
+    private int slotOf(long key, long tag, long now) {
+        int start = (int) key & mask;
+        while (true) {
+            int idle = -1;
+            long idleState = 0;
+            for (int i = 0; i < MAX_PROBES; i++) {
+                int slot = (start + i) & mask;
+                long k = keys.get(slot);
+                if (k == key) return slot;
+                long state = states.get(slot);
+                if (state == 0) {
+                    if (idle >= 0) break; // The key is not in the table; reuse the idle slot
+                    if (states.compareAndSet(slot, 0, tag | now)) { // A full bucket
+                        keys.set(slot, key);
+                        return slot;
+                    }
+                    state = states.get(slot); // Just claimed for another key
+                }
+                if (k == 0) {
+                    // Being claimed; if the tag is ours, the key may be too
+                    if ((state & ~TIME_MASK) != tag) continue;
+                    while ((k = keys.get(slot)) == 0) Thread.onSpinWait();
+                    if (k == key) return slot;
+                    continue;
+                }
+                if (idle < 0 && now - (state & TIME_MASK) > IDLE_TIME) {
+                    idle = slot;
+                    idleState = state;
+                }
+            }
+            if (idle < 0) return -1;
+            if (states.compareAndSet(idle, idleState, tag | now)) {
+                keys.set(idle, key);
+                return idle;
+            }
+            // Used or taken over in the meantime; look again
+        }
+    }
+
+    // The top bits of a state: from the key's hash, with the highest bit set, so that the state is never 0
+    private static long tagOf(long hash) {
+        return (hash | (1L << 63)) & ~TIME_MASK;
+    }
+
+    private static long hash(Kind kind, String mapping, String key) {
+        long h = 0xcbf29ce484222325L; // FNV-1a
+        h = (h ^ kind.ordinal()) * 0x100000001b3L;
+        for (int i = 0; i < mapping.length(); i++) h = (h ^ mapping.charAt(i)) * 0x100000001b3L;
+        h = (h ^ 0xffff) * 0x100000001b3L; // Separator
+        for (int i = 0; i < key.length(); i++) h = (h ^ key.charAt(i)) * 0x100000001b3L;
+        // Mix, so that the low bits (the slot) depend on the whole key
+        h ^= h >>> 33;
+        h *= 0xff51afd7ed558ccdL;
+        h ^= h >>> 33;
+        h *= 0xc4ceb9fe1a85ec53L;
+        h ^= h >>> 33;
+        return (h == 0) ? 1 : h;
+    }
+}
@@ -0,0 +1,218 @@
+package chatroom.server.handlers;
+
+import com.sun.net.httpserver.HttpExchange;
+
+import java.io.ByteArrayOutputStream;
+import java.io.IOException;
+import java.io.OutputStream;
+import java.util.Arrays;
+import java.util.zip.CRC32;
+import java.util.zip.Deflater;
+
+/**
+ * Collects the encoded response, so that it can be sent with its exact length in
+ * bytes. If the response grows beyond a threshold, we stop collecting: the headers
+ * are sent for a chunked response, and everything else is streamed straight through.
+ *
+ * If the client accepts gzip or deflate, responses above the compression threshold
+ * are compressed. Buffers and their Deflaters are pooled; a Deflater holds native memory,
+ * so one that does not go back into the pool is ended at once. The caller must release
+ * the buffer in a finally block, whether or not the response could be finished, so that
+ * a failed response does not keep its buffer (and Deflater) out of the pool.
+ */
+final class ResponseBuffer extends OutputStream {
+    static final int STREAMING_THRESHOLD = 64 * 1024;
+    private static volatile int compressionThreshold = 1024; // bytes; negative to disable
+    private static final Pool<ResponseBuffer> buffers = new Pool<>(Pool.DEFAULT_SIZE, ResponseBuffer::new, ResponseBuffer::end);
+    private static final byte[] GZIP_HEADER = { 0x1f, (byte) 0x8b, Deflater.DEFLATED, 0, 0, 0, 0, 0, 0, (byte) 0xff };
+
+    private byte[] buf = new byte[4096];
+    private int count;
+    private HttpExchange httpExchange;
+    private int statusCode;
+    private String encoding; // Accepted by the client: gzip, deflate or null
+    private OutputStream body; // Set once we are streaming
+
+    // Only created if this buffer is ever used to compress
+    private Deflater gzipDeflater;
+    private Deflater zlibDeflater;
+    private Deflater deflater; // The one in use for this response
+    private final CRC32 crc = new CRC32();
+    private boolean gzipHeaderPending;
+    private final byte[] deflated = new byte[8192];
+    private ByteArrayOutputStream compressed;
+
+    /**
+     * Set the size (in bytes) from which responses are compressed; a negative value
+     * disables compression.
+     */
+    static void setCompressionThreshold(int bytes) {
+        compressionThreshold = bytes;
+    }
+
+    /**
+     * Get a buffer from the pool, ready for a new response; release() returns it
+     */
+    static ResponseBuffer start(HttpExchange httpExchange, int statusCode) {
+        ResponseBuffer buffer = buffers.acquire();
+        buffer.httpExchange = httpExchange;
+        buffer.statusCode = statusCode;
+        buffer.count = 0;
+        buffer.body = null;
+        buffer.deflater = null;
+        buffer.encoding = (compressionThreshold < 0) ? null
+                : negotiate(httpExchange.getRequestHeaders().getFirst("Accept-Encoding"));
+        if (buffer.encoding != null) httpExchange.getResponseHeaders().add("Vary", "Accept-Encoding");
+        return buffer;
+    }
+
+    /**
+     * Pick the encoding from an Accept-Encoding header: gzip if possible, else deflate.
+     * Encodings with q=0 are refused by the client.
+     */
+    private static String negotiate(String acceptEncoding) {
+        if (acceptEncoding == null) return null;
+        boolean deflate = false;
+        for (String part : acceptEncoding.split(",")) {
+            String[] params = part.split(";");
+            String name = params[0].trim().toLowerCase();
+            boolean refused = false;
+            for (int i = 1; i < params.length; i++) {
+                String param = params[i].trim();
+                if (param.startsWith("q=")) {
+                    try {
+                        refused = Double.parseDouble(param.substring(2)) <= 0;
+                    } catch (NumberFormatException e) {
+                        refused = true;
+                    }
+                }
+            }
+            if (refused) continue;
+            if (name.equals("gzip")) return "gzip";
+            if (name.equals("deflate")) deflate = true;
+        }
+        return deflate ? "deflate" : null;
+    }
+
+    @Override
+    public void write(int b) throws IOException {
+        write(new byte[] { (byte) b }, 0, 1);
+    }
+
+    @Override
+    public void write(byte[] bytes, int offset, int length) throws IOException {
+        if (body == null && count + length > STREAMING_THRESHOLD) startStreaming();
+        if (body != null) {
+            if (deflater != null) {
+                deflate(bytes, offset, length, body);
+            } else {
+                body.write(bytes, offset, length);
+            }
+        } else {
+            if (count + length > buf.length) buf = Arrays.copyOf(buf, Math.max(count + length, buf.length * 2));
+            System.arraycopy(bytes, offset, buf, count, length);
+            count += length;
+        }
+    }
+
+    /**
+     * Send whatever has not been sent yet, and complete the response
+     */
+    void finish() throws IOException {
+        if (body == null) {
+            if (encoding != null && count >= compressionThreshold && count > 0) {
+                // Compress the whole response, so that we still know its length
+                startDeflater();
+                if (compressed == null) compressed = new ByteArrayOutputStream(buf.length);
+                compressed.reset();
+                deflate(buf, 0, count, compressed);
+                finishDeflater(compressed);
+                httpExchange.sendResponseHeaders(statusCode, compressed.size());
+                body = httpExchange.getResponseBody();
+                compressed.writeTo(body);
+            } else {
+                httpExchange.sendResponseHeaders(statusCode, count == 0 ? -1 : count);
+                body = httpExchange.getResponseBody();
+                body.write(buf, 0, count);
+            }
+        } else if (deflater != null) {
+            finishDeflater(body);
+        }
+        body.close();
+    }
+
+    /**
+     * Return the buffer to the pool, finished or not; it must not be used afterwards
+     */
+    void release() {
+        if (deflater != null) deflater.reset(); // Also after a failure in the middle of a response
+        deflater = null;
+        httpExchange = null;
+        body = null;
+        if (buf.length > STREAMING_THRESHOLD) buf = new byte[4096]; // Do not pool a grown buffer
+        buffers.release(this);
+    }
+
+    private void end() {
+        if (gzipDeflater != null) gzipDeflater.end();
+        if (zlibDeflater != null) zlibDeflater.end();
+    }
+
+    private void startStreaming() throws IOException {
+        // A response this large is always worth compressing
+        if (encoding != null) startDeflater();
+        httpExchange.sendResponseHeaders(statusCode, 0); // Length unknown: chunked
+        body = httpExchange.getResponseBody();
+        if (deflater != null) {
+            deflate(buf, 0, count, body);
+        } else {
+            body.write(buf, 0, count);
+        }
+        count = 0;
+    }
+
+    /**
+     * Choose the Deflater for the negotiated encoding, and announce the encoding.
+     * HTTP "deflate" is the zlib format; gzip is raw deflate with its own header and trailer.
+     */
+    private void startDeflater() {
+        httpExchange.getResponseHeaders().add("Content-Encoding", encoding);
+        if (encoding.equals("gzip")) {
+            if (gzipDeflater == null) gzipDeflater = new Deflater(Deflater.DEFAULT_COMPRESSION, true);
+            deflater = gzipDeflater;
+            crc.reset();
+            gzipHeaderPending = true;
+        } else {
+            if (zlibDeflater == null) zlibDeflater = new Deflater(Deflater.DEFAULT_COMPRESSION, false);
+            deflater = zlibDeflater;
+        }
+    }
+
+    private void deflate(byte[] bytes, int offset, int length, OutputStream out) throws IOException {
+        if (deflater == gzipDeflater) {
+            if (gzipHeaderPending) out.write(GZIP_HEADER);
+            gzipHeaderPending = false;
+            crc.update(bytes, offset, length);
+        }
+        deflater.setInput(bytes, offset, length);
+        while (!deflater.needsInput()) {
+            int n = deflater.deflate(deflated);
+            out.write(deflated, 0, n);
+        }
+    }
+
+    private void finishDeflater(OutputStream out) throws IOException {
+        deflater.finish();
+        while (!deflater.finished()) {
+            int n = deflater.deflate(deflated);
+            out.write(deflated, 0, n);
+        }
+        if (deflater == gzipDeflater) {
+            int checksum = (int) crc.getValue();
+            int size = (int) deflater.getBytesRead();
+            out.write(new byte[] {
+                    (byte) checksum, (byte) (checksum >> 8), (byte) (checksum >> 16), (byte) (checksum >> 24),
+                    (byte) size, (byte) (size >> 8), (byte) (size >> 16), (byte) (size >> 24) });
+        }
+    }
+}
@@ -0,0 +1,187 @@
+package chatroom.server.handlers;
+
+import chatroom.server.Client;
+import chatroom.server.Cluster;
+import chatroom.server.MessageListener;
+import chatroom.server.Tls;
+import com.sun.net.httpserver.HttpExchange;
+import org.json.JSONArray;
+
+import java.io.BufferedOutputStream;
+import java.io.IOException;
+import java.io.OutputStream;
+import java.net.InetSocketAddress;
+import java.nio.charset.StandardCharsets;
+import java.util.concurrent.Executors;
+import java.util.concurrent.ScheduledExecutorService;
+import java.util.concurrent.ScheduledFuture;
+import java.util.concurrent.TimeUnit;
+import java.util.logging.Logger;
+
+/**
+ * Delivers messages as Server-Sent Events: GET /chat/stream?token=... keeps the
+ * connection open, and every message is pushed as one event as soon as it is queued
+ * for the client. Browsers can consume this with an EventSource.
+ *
+ * A stream has no thread of its own. When there is something to write (messages, a
+ * heartbeat, or the end of the session), a task is run on the server's worker threads,
+ * and it writes until there is nothing left; at most one task per stream runs at a time.
+ * Messages are removed from the client only once they have been written; if the write
+ * fails, they wait for the client's next poll or stream. A stream is counted in the
+ * request metrics when it closes.
+ *
+ * In a cluster, a token of another node is redirected there (307), because the stream
+ * has to be served by the node holding the session.
+ */
+public class StreamHandler extends Handler {
+    private static final Logger logger = Logger.getLogger("");
+    private static final int BUFFER_SIZE = 8192; // Per connection
+    private static final int HEARTBEAT_INTERVAL = 15; // seconds
+    private static final byte[] DATA = "data: ".getBytes(StandardCharsets.UTF_8);
+    private static final byte[] END_OF_EVENT = "\n\n".getBytes(StandardCharsets.UTF_8);
+
+    // Work for a stream
+    private static final int MESSAGES = 1;
+    private static final int HEARTBEAT = 2;
+    private static final int CLIENT_GONE = 4;
+
+    // Only tells the streams when a heartbeat is due; the streams write it themselves
+    private static final ScheduledExecutorService heartbeats = Executors.newSingleThreadScheduledExecutor(r -> {
+        Thread t = new Thread(r, "StreamHeartbeat");
+        t.setDaemon(true);
+        return t;
+    });
+
+    public StreamHandler() {
+        super("/chat/stream");
+    }
+
+    @Override
+    protected void handleGet(HttpExchange httpExchange, HandlerResponse response) {
+        String token = readQuery(httpExchange).get("token");
+        Client client = (token == null) ? null : Client.findByToken(token);
+        int node = (token == null) ? Cluster.self() : Cluster.nodeOfToken(token);
+        if (node != Cluster.self()) {
+            // A stream cannot be forwarded; the client must connect to the node holding its session
+            InetSocketAddress owner = Cluster.httpAddress(node);
+            String location = (Tls.enabled() ? "https://" : "http://") + owner.getHostString() + ":" + owner.getPort() + httpExchange.getRequestURI();
+            httpExchange.getResponseHeaders().add("Location", location);
+            response.statusCode = 307;
+            response.jsonOut.put("Location", location);
+        } else if (client == null) {
+            response.jsonOut.put("Error", "Missing or invalid token");
+        } else {
+            response.deferred = true;
+            new EventStream(httpExchange, client).start();
+        }
+    }
+
+    /**
+     * One open SSE connection, attached to a client
+     */
+    private class EventStream implements MessageListener, Runnable {
+        private final HttpExchange httpExchange;
+        private final Client client;
+        private final OutputStream out;
+        private ScheduledFuture<?> heartbeat;
+
+        // Guarded by this: the work to do, and whether a task is running (or queued) to do
+        // it. Once the stream is closed, running stays set, so that no task runs again.
+        private int work = 0;
+        private boolean running = false;
+
+        EventStream(HttpExchange httpExchange, Client client) {
+            this.httpExchange = httpExchange;
+            this.client = client;
+            this.out = new BufferedOutputStream(httpExchange.getResponseBody(), BUFFER_SIZE);
+        }
+
+        void start() {
+            try {
+                httpExchange.getResponseHeaders().add("Content-Type", "text/event-stream; charset=utf-8");
+                httpExchange.getResponseHeaders().add("Cache-Control", "no-cache");
+                httpExchange.getResponseHeaders().add("Access-Control-Allow-Origin", "*");
+                httpExchange.sendResponseHeaders(200, 0); // Chunked, open-ended response
+                write(": connected\n\n");
+            } catch (IOException e) {
+                logger.fine("Event stream failed to start: " + e);
+                close();
+                return;
+            }
+            heartbeat = heartbeats.scheduleAtFixedRate(() -> wake(HEARTBEAT),
+                    HEARTBEAT_INTERVAL, HEARTBEAT_INTERVAL, TimeUnit.SECONDS);
+            client.attachStream(this);
+        }
+
+        @Override
+        public void messagesAvailable(Client client) {
+            wake(MESSAGES);
+        }
+
+        @Override
+        public void clientClosed(Client client) {
+            wake(CLIENT_GONE);
+        }
+
+        // Add work, and start a task to do it, unless one is running already
+        private void wake(int newWork) {
+            synchronized (this) {
+                work |= newWork;
+                if (running) return;
+                running = true;
+            }
+            runOnWorkers(this);
+        }
+
+        @Override
+        public void run() {
+            try {
+                while (true) {
+                    int todo;
+                    synchronized (this) {
+                        todo = work;
+                        work = 0;
+                        if (todo == 0) {
+                            running = false;
+                            return;
+                        }
+                    }
+                    if ((todo & MESSAGES) != 0 && !client.deliverMessages(this::writeEvents)) break; // Messages stay with the client
+                    if ((todo & HEARTBEAT) != 0) write(": heartbeat\n\n");
+                    if ((todo & CLIENT_GONE) != 0) {
+                        write("event: close\ndata: {}\n\n");
+                        break;
+                    }
+                }
+            } catch (IOException e) {
+                logger.fine("Event stream closed: " + e);
+            }
+            close();
+        }
+
+        private void writeEvents(JSONArray messages, long missed) throws IOException {
+            if (missed > 0) write("event: missed\ndata: {\"missed\":" + missed + "}\n\n");
+            for (int i = 0; i < messages.length(); i++) {
+                out.write(DATA);
+                JsonCodec.write(messages.get(i), out);
+                out.write(END_OF_EVENT);
+            }
+            out.flush();
+        }
+
+        private void write(String text) throws IOException {
+            out.write(text.getBytes(StandardCharsets.UTF_8));
+            out.flush();
+        }
+
+        private void close() {
+            synchronized (this) {
+                running = true;
+            }
+            if (heartbeat != null) heartbeat.cancel(false);
+            client.detachStream(this);
+            httpExchange.close();
+            recordResponse(httpExchange, 200);
+        }
+    }
+}
@@ -2,45 +2,74 @@ package chatroom.server.handlers;
 
 import chatroom.server.Account;
 import chatroom.server.Client;
+import chatroom.server.PasswordHasher;
+import chatroom.server.Presence;
 import com.sun.net.httpserver.HttpExchange;
 import org.json.JSONArray;
 import org.json.JSONObject;
 
+import java.io.IOException;
+import java.util.Comparator;
+import java.util.HashSet;
+import java.util.List;
+import java.util.Map;
+import java.util.concurrent.RejectedExecutionException;
+import java.util.logging.Logger;
+
 public class UserHandler  extends Handler {
+    private static final Logger logger = Logger.getLogger("");
+    private static final int MAX_PRESENCE_QUERY = 1000;
+    private static final int MAX_PRESENCE_CHANGES = 1000;
+
+    public UserHandler() {
+        super("/users", "/users/online", "/user/register", "/user/login", "/user/logout", "/user/online",
+                "/user/presence", "/user/presence/changes");
+    }
+
     /**
-     * The only valid GET-mapping for this handler is /users
+     * The valid GET-mappings for this handler are /users and /users/online. Both return
+     * one page of usernames, in order; the query parameters are "prefix", "after" (the
+     * last username of the previous page) and "limit". If there are more usernames,
+     * the response includes "next", the cursor for the following page.
      */
     @Override
     protected void handleGet(HttpExchange httpExchange, HandlerResponse response) {
-        String mapping = httpExchange.getRequestURI().toString(); // For this handler, will begin with "/users"
+        String mapping = httpExchange.getRequestURI().getPath(); // For this handler, will begin with "/users"
+        Map<String, String> query = readQuery(httpExchange);
+        String prefix = query.getOrDefault("prefix", "");
+        String after = query.get("after");
+        int limit = readLimit(query);
         if (mapping.equals("/users")) {
-            response.jsonOut.put("users", listUsers());
+            putPage(response, "users", Account.listAccounts(prefix, after, limit + 1), limit);
+            // In a cluster, the accounts are spread over the nodes; online users are known everywhere
+            gather(httpExchange, response, pages -> mergePages(response, "users", pages, limit,
+                    Comparator.comparing(Object::toString), Object::toString));
         } else if (mapping.equals("/users/online")) {
-            response.jsonOut.put("online", listUsersOnline());
+            putPage(response, "online", Client.listClients(prefix, after, limit + 1), limit);
         } else { // Unsupported request type
             response.jsonOut.put("Error", "Invalid request");
         }
     }
 
     @Override
-    protected void handlePost(HttpExchange httpExchange, JSONObject JSONin, HandlerResponse response) {
+    protected void handlePost(HttpExchange httpExchange, HandlerRequest request, HandlerResponse response) {
         String mapping = httpExchange.getRequestURI().toString(); // For this handler, will begin with "/user"
 
         // Read various strings that may be present (depending on the mapping)
-        String username = readString(JSONin, "username");
-        String password = readString(JSONin, "password");
-        String token = readString(JSONin, "token");
+        String username = request.username;
+        String password = request.password;
+        String token = request.token;
 
         // If anything at all goes wrong, we throw an exception and return an error
         try {
             switch (mapping) {
                 case "/user/register" -> {
                     if (username == null || password == null) throw new Exception("Invalid parameters");
-                    createUser(username, password, response);
+                    runOnHasher(httpExchange, response, r -> createUser(username, password, r));
                 }
                 case "/user/login" -> {
                     if (username == null || password == null) throw new Exception("Invalid parameters");
-                    loginUser(username, password, response);
+                    runOnHasher(httpExchange, response, r -> loginUser(username, password, r));
                 }
                 case "/user/logout" -> {
                     if (token == null ) throw new Exception("Missing token");
@@ -50,6 +79,14 @@ public class UserHandler  extends Handler {
                     if (token == null || username == null) throw new Exception("Invalid parameters");
                     userOnline(token, username, response);
                 }
+                case "/user/presence" -> {
+                    if (token == null || request.usernames == null) throw new Exception("Invalid parameters");
+                    queryPresence(token, request.usernames, response);
+                }
+                case "/user/presence/changes" -> {
+                    if (token == null || request.after == null) throw new Exception("Invalid parameters");
+                    presenceChanges(token, request.after, request.usernames, request.limit, response);
+                }
                 default -> {
                     throw new Exception("No such mapping");
                 }
@@ -59,16 +96,45 @@ public class UserHandler  extends Handler {
         }
     }
 
-    private JSONArray listUsers() {
-        JSONArray userArray = new JSONArray();
-        for (String username : Account.listAccounts()) userArray.put(username);
-        return userArray;
+    private interface HashingTask {
+        void run(HandlerResponse response) throws Exception;
     }
 
-    private JSONArray listUsersOnline() {
-        JSONArray userArray = new JSONArray();
-        for (String username : Client.listClients()) userArray.put(username);
-        return userArray;
+    /**
+     * Password hashing is expensive, so we run it on the hashing pool and defer the response.
+     * If the pool is overloaded, the request is refused right away.
+     */
+    private void runOnHasher(HttpExchange httpExchange, HandlerResponse response, HashingTask task) throws Exception {
+        try {
+            PasswordHasher.execute(() -> {
+                HandlerResponse deferredResponse = new HandlerResponse();
+                try {
+                    task.run(deferredResponse);
+                } catch (Exception e) {
+                    deferredResponse.jsonOut.put("Error", e.getMessage());
+                }
+                try {
+                    sendResponse(httpExchange, deferredResponse);
+                } catch (IOException e) {
+                    logger.fine("Response failed: " + e);
+                }
+            });
+            response.deferred = true;
+        } catch (RejectedExecutionException e) {
+            response.statusCode = 503;
+            throw new Exception("Server busy, please try again");
+        }
+    }
+
+    /**
+     * The page was read with one extra entry, which tells us whether there is a next page
+     */
+    private void putPage(HandlerResponse response, String key, List<String> usernames, int limit) {
+        if (usernames.size() > limit) {
+            usernames = usernames.subList(0, limit);
+            response.jsonOut.put("next", usernames.get(limit - 1));
+        }
+        response.jsonOut.put(key, new JSONArray(usernames));
     }
 
     private void createUser(String username, String password, HandlerResponse response) throws Exception {
@@ -78,7 +144,7 @@ public class UserHandler  extends Handler {
             throw new Exception("Username already in use");
         } else {
             Account newAccount = new Account(username, password);
-            Account.add(newAccount);
+            if (!Account.add(newAccount)) throw new Exception("Username already in use"); // Lost a race
             response.jsonOut.put("username", username);
         }
     }
@@ -103,10 +169,45 @@ public class UserHandler  extends Handler {
         response.jsonOut.put("logout", true);
     }
 
+    private void queryPresence(String token, List<String> usernames, HandlerResponse response) throws Exception {
+        Client client = Client.findByToken(token);
+        if (client == null) throw new Exception("Invalid token");
+        if (usernames.size() > MAX_PRESENCE_QUERY) throw new Exception("Too many usernames (at most " + MAX_PRESENCE_QUERY + ")");
+        long cursor = Presence.cursor(); // Before the query, so that no change is missed
+        response.jsonOut.put("presence", Presence.query(usernames));
+        response.jsonOut.put("cursor", cursor);
+    }
+
+    /**
+     * Report the changes since the cursor; if these are no longer available, the client
+     * must query the presence again ("resync")
+     */
+    private void presenceChanges(String token, long after, List<String> usernames, Integer limit, HandlerResponse response) throws Exception {
+        Client client = Client.findByToken(token);
+        if (client == null) throw new Exception("Invalid token");
+        int pageSize = (limit == null || limit <= 0) ? MAX_PRESENCE_CHANGES : Math.min(limit, MAX_PRESENCE_CHANGES);
+        Presence.Page page = Presence.changesAfter(after, (usernames == null) ? null : new HashSet<>(usernames), pageSize);
+        if (page.reset()) {
+            response.jsonOut.put("resync", true);
+            response.jsonOut.put("cursor", page.cursor());
+        } else {
+            JSONArray changeArray = new JSONArray();
+            for (Presence.Change change : page.changes()) {
+                changeArray.put(new JSONObject()
+                        .put("username", change.username())
+                        .put("online", change.online())
+                        .put("cursor", change.cursor()));
+            }
+            response.jsonOut.put("changes", changeArray);
+            // Continue after the last change read (which may have been filtered out)
+            response.jsonOut.put("cursor", page.cursor());
+        }
+    }
+
     private void userOnline(String token, String username, HandlerResponse response) throws Exception {
         Client client = Client.findByToken(token);
         if (client == null) throw new Exception("Invalid token");
-        response.jsonOut.put("online", Client.findByUsername(username) != null);
+        response.jsonOut.put("online", Client.isOnline(username));
     }
 }
 
@@ -0,0 +1,46 @@
+package chatroom.server.nio;
+
+import java.nio.ByteBuffer;
+import java.util.concurrent.ConcurrentLinkedQueue;
+import java.util.concurrent.atomic.AtomicInteger;
+
+/**
+ * A pool of direct buffers of one size. Direct buffers are expensive to allocate and
+ * are only freed by the garbage collector, so we keep them: a connection takes a buffer
+ * while it has data to hold, and gives it back as soon as the data is gone. At most
+ * maxPooled buffers are kept; beyond that, released buffers are left to the collector.
+ */
+class BufferPool {
+    private final int bufferSize;
+    private final int maxPooled;
+    private final ConcurrentLinkedQueue<ByteBuffer> pool = new ConcurrentLinkedQueue<>();
+    private final AtomicInteger pooled = new AtomicInteger(0);
+
+    BufferPool(int bufferSize, int maxPooled) {
+        this.bufferSize = bufferSize;
+        this.maxPooled = maxPooled;
+    }
+
+    int bufferSize() {
+        return bufferSize;
+    }
+
+    /**
+     * A cleared buffer, from the pool if possible
+     */
+    ByteBuffer acquire() {
+        ByteBuffer buffer = pool.poll();
+        if (buffer == null) return ByteBuffer.allocateDirect(bufferSize);
+        pooled.decrementAndGet();
+        return buffer.clear();
+    }
+
+    void release(ByteBuffer buffer) {
+        if (!buffer.isDirect() || buffer.capacity() != bufferSize) return; // Not one of ours
+        if (pooled.incrementAndGet() <= maxPooled) {
+            pool.add(buffer);
+        } else {
+            pooled.decrementAndGet();
+        }
+    }
+}
@@ -0,0 +1,449 @@
+package chatroom.server.nio;
+
+import com.sun.net.httpserver.Filter;
+import com.sun.net.httpserver.Headers;
+import com.sun.net.httpserver.HttpHandler;
+
+import java.io.IOException;
+import java.io.InterruptedIOException;
+import java.net.InetSocketAddress;
+import java.net.URI;
+import java.net.URISyntaxException;
+import java.nio.ByteBuffer;
+import java.nio.channels.SelectionKey;
+import java.nio.channels.SocketChannel;
+import java.util.ArrayDeque;
+import java.util.concurrent.Executor;
+import java.util.concurrent.RejectedExecutionException;
+import java.util.logging.Logger;
+
+import static java.nio.charset.StandardCharsets.ISO_8859_1;
+
+/**
+ * One client connection. The reactor reads and parses requests, and hands them to the
+ * handlers one at a time: the next request is parsed only when the response to the
+ * previous one is complete, so that pipelined requests are answered in order.
+ *
+ * The handlers write their responses from their own threads, into buffers that the
+ * reactor writes to the channel. A handler that gets too far ahead of a slow client
+ * blocks until the client catches up, as it would with the JDK's server.
+ */
+class NioConnection {
+    private static final Logger logger = Logger.getLogger("");
+    private static final long MAX_QUEUED = 1024 * 1024; // Output bytes before writers block
+    private static final byte[] CONTINUE = "HTTP/1.1 100 Continue\r\n\r\n".getBytes(ISO_8859_1);
+    private static final ByteBuffer EMPTY = ByteBuffer.allocate(0);
+
+    private final Reactor reactor;
+    private final SocketChannel channel;
+    private final BufferPool buffers;
+    private final InetSocketAddress remoteAddress;
+    private final InetSocketAddress localAddress;
+    private SelectionKey key;
+
+    // Reactor thread only
+    private ByteBuffer input = null; // Data not parsed yet, in write mode; null when there is none
+    private int needed = 0; // Size of the next request, once its headers are in but its body is not
+    private boolean continueSent = false;
+    private NioHttpExchange current = null;
+    private boolean inputClosed = false;
+    private boolean closeAfterWrite = false;
+    private long lastActive = System.currentTimeMillis();
+
+    // Shared with the handler threads; guarded by output
+    private final ArrayDeque<ByteBuffer> output = new ArrayDeque<>(); // Ready to write, in read mode
+    private ByteBuffer tail = null; // Being filled, in write mode
+    private long queued = 0;
+    private boolean writeRequested = false;
+    private volatile boolean closed = false;
+
+    NioConnection(Reactor reactor, SocketChannel channel) throws IOException {
+        this.reactor = reactor;
+        this.channel = channel;
+        this.buffers = reactor.server().buffers();
+        this.remoteAddress = (InetSocketAddress) channel.getRemoteAddress();
+        this.localAddress = (InetSocketAddress) channel.getLocalAddress();
+    }
+
+    void register(SelectionKey key) {
+        this.key = key;
+    }
+
+    InetSocketAddress remoteAddress() {
+        return remoteAddress;
+    }
+
+    InetSocketAddress localAddress() {
+        return localAddress;
+    }
+
+    boolean stopping() {
+        return reactor.server().isStopped();
+    }
+
+    /**
+     * True if no request is in progress, and there has been no activity since the given time
+     */
+    boolean idleSince(long time) {
+        return current == null && lastActive < time;
+    }
+
+    void read() {
+        ByteBuffer target = (input != null) ? input : reactor.readBuffer.clear();
+        if (!target.hasRemaining()) {
+            // Full of pipelined requests: read on when the current request is done
+            key.interestOps(key.interestOps() & ~SelectionKey.OP_READ);
+            return;
+        }
+        int n;
+        try {
+            n = channel.read(target);
+        } catch (IOException e) {
+            close();
+            return;
+        }
+        if (n < 0) {
+            // The client will send no more requests, but may still wait for responses
+            inputClosed = true;
+            key.interestOps(key.interestOps() & ~SelectionKey.OP_READ);
+            if (current == null) shutdownAfterWrite();
+            return;
+        }
+        if (n == 0) return;
+        lastActive = System.currentTimeMillis();
+        process(target.flip());
+    }
+
+    /**
+     * Parse and dispatch the next request, if the previous one is complete, and keep
+     * whatever data is left for later
+     */
+    private void process(ByteBuffer data) {
+        while (current == null && !closeAfterWrite && data.hasRemaining()) {
+            if (!parse(data)) break;
+        }
+        keep(data);
+        if (current == null && inputClosed) shutdownAfterWrite();
+    }
+
+    private void keep(ByteBuffer data) {
+        if (closeAfterWrite) data.position(data.limit()); // Nothing more will be parsed
+        if (!data.hasRemaining()) {
+            if (input != null) {
+                buffers.release(input);
+                input = null;
+            }
+            return;
+        }
+        int size = Math.max(data.remaining(), needed);
+        if (data == input && size <= input.capacity()) {
+            input.compact();
+            return;
+        }
+        ByteBuffer buffer = (size <= buffers.bufferSize()) ? buffers.acquire() : ByteBuffer.allocate(size);
+        buffer.put(data);
+        if (data == input) buffers.release(input);
+        input = buffer;
+    }
+
+    /**
+     * Parse a request and dispatch it. Returns false if the request is incomplete, or is
+     * rejected.
+     */
+    private boolean parse(ByteBuffer data) {
+        int start = data.position();
+        int limit = data.limit();
+        int end = headerEnd(data, start, limit);
+        if (end < 0 || end - start > NioHttpServer.BUFFER_SIZE) {
+            if (end >= 0 || limit - start >= NioHttpServer.BUFFER_SIZE) sendError(431);
+            return false;
+        }
+
+        byte[] head = new byte[end - start];
+        data.get(start, head);
+        String[] lines = new String(head, ISO_8859_1).split("\r\n");
+        String[] requestLine = lines[0].split(" ");
+        if (requestLine.length != 3 || !requestLine[2].startsWith("HTTP/1.")) {
+            sendError(400);
+            return false;
+        }
+        Headers headers = new Headers();
+        for (int i = 1; i < lines.length; i++) {
+            int colon = lines[i].indexOf(':');
+            if (colon <= 0) {
+                sendError(400);
+                return false;
+            }
+            headers.add(lines[i].substring(0, colon).trim(), lines[i].substring(colon + 1).trim());
+        }
+        URI uri;
+        long length;
+        try {
+            uri = new URI(requestLine[1]);
+            String contentLength = headers.getFirst("Content-Length");
+            length = (contentLength == null) ? 0 : Long.parseLong(contentLength);
+        } catch (URISyntaxException | NumberFormatException e) {
+            sendError(400);
+            return false;
+        }
+        if (uri.getPath() == null || length < 0) {
+            sendError(400);
+            return false;
+        }
+        if (headers.containsKey("Transfer-Encoding")) {
+            sendError(411); // Request bodies need a Content-Length
+            return false;
+        }
+        if (length > NioHttpServer.MAX_BODY) {
+            sendError(413);
+            return false;
+        }
+
+        int total = (end - start) + (int) length;
+        if (limit - start < total) {
+            needed = total;
+            if (!continueSent && "100-continue".equalsIgnoreCase(headers.getFirst("Expect"))) {
+                continueSent = true;
+                try {
+                    append(CONTINUE, 0, CONTINUE.length);
+                    flush();
+                } catch (IOException e) {
+                    close();
+                }
+            }
+            return false;
+        }
+        byte[] body = new byte[(int) length];
+        data.position(end);
+        data.get(body);
+        needed = 0;
+        continueSent = false;
+
+        String connectionHeader = headers.getFirst("Connection");
+        boolean keepAlive = requestLine[2].equals("HTTP/1.0")
+                ? "keep-alive".equalsIgnoreCase(connectionHeader)
+                : !"close".equalsIgnoreCase(connectionHeader);
+        dispatch(new NioHttpExchange(this, requestLine[0], uri, requestLine[2], headers, body, keepAlive));
+        return true;
+    }
+
+    /**
+     * The index just past the blank line that ends the headers, or -1 if it has not arrived
+     */
+    private static int headerEnd(ByteBuffer data, int start, int limit) {
+        for (int i = start; i + 3 < limit; i++) {
+            if (data.get(i) == '\r' && data.get(i + 1) == '\n' && data.get(i + 2) == '\r' && data.get(i + 3) == '\n') {
+                return i + 4;
+            }
+        }
+        return -1;
+    }
+
+    private void dispatch(NioHttpExchange exchange) {
+        current = exchange;
+        reactor.started();
+        NioHttpServer.Context context = reactor.server().findContext(exchange.getRequestURI().getPath());
+        HttpHandler handler = (context == null) ? null : context.getHandler();
+        if (handler == null) {
+            exchange.respond(404);
+            return;
+        }
+        exchange.setContext(context);
+        Runnable task = () -> {
+            try {
+                if (context.getFilters().isEmpty()) {
+                    handler.handle(exchange);
+                } else {
+                    new Filter.Chain(context.getFilters(), handler).doFilter(exchange);
+                }
+            } catch (Throwable e) {
+                logger.warning("Handler failed: " + e);
+                abort();
+            }
+        };
+        Executor executor = reactor.server().getExecutor();
+        try {
+            if (executor == null) {
+                task.run();
+            } else {
+                executor.execute(task);
+            }
+        } catch (RejectedExecutionException e) {
+            exchange.respond(503);
+        }
+    }
+
+    /**
+     * The response to the current request is complete (called on the handler's thread)
+     */
+    void completed(boolean keepAlive) {
+        flush();
+        reactor.execute(() -> resume(keepAlive));
+    }
+
+    private void resume(boolean keepAlive) {
+        if (closed) return;
+        current = null;
+        reactor.finished();
+        lastActive = System.currentTimeMillis();
+        if (!keepAlive) {
+            shutdownAfterWrite();
+            return;
+        }
+        process((input != null) ? input.flip() : EMPTY);
+        if (!closed && !closeAfterWrite && !inputClosed) {
+            key.interestOps(key.interestOps() | SelectionKey.OP_READ);
+        }
+    }
+
+    /**
+     * The current request failed without a response: all we can do is close the connection
+     */
+    void abort() {
+        reactor.execute(this::close);
+    }
+
+    private void sendError(int statusCode) {
+        closeAfterWrite = true;
+        String response = "HTTP/1.1 " + statusCode + " " + NioHttpExchange.reason(statusCode)
+                + "\r\nContent-Length: 0\r\nConnection: close\r\n\r\n";
+        try {
+            byte[] bytes = response.getBytes(ISO_8859_1);
+            append(bytes, 0, bytes.length);
+            flush();
+        } catch (IOException e) {
+            close();
+            return;
+        }
+        shutdownAfterWrite();
+    }
+
+    /**
+     * Read no more requests, and close the connection once all output is written
+     */
+    private void shutdownAfterWrite() {
+        if (closed) return;
+        closeAfterWrite = true;
+        key.interestOps(key.interestOps() & ~SelectionKey.OP_READ);
+        boolean empty;
+        synchronized (output) {
+            empty = output.isEmpty() && tail == null;
+        }
+        if (empty) close();
+    }
+
+    /**
+     * Queue response data (any thread). Blocks while too much is queued already, unless
+     * called on the reactor thread.
+     */
+    void append(byte[] bytes, int offset, int length) throws IOException {
+        boolean reactorThread = reactor.inReactorThread();
+        synchronized (output) {
+            while (length > 0) {
+                if (tail == null) {
+                    while (queued > MAX_QUEUED && !closed && !reactorThread) {
+                        try {
+                            output.wait();
+                        } catch (InterruptedException e) {
+                            Thread.currentThread().interrupt();
+                            throw new InterruptedIOException("Interrupted while writing");
+                        }
+                    }
+                    if (closed) throw new IOException("Connection closed");
+                    tail = buffers.acquire();
+                }
+                int n = Math.min(length, tail.remaining());
+                tail.put(bytes, offset, n);
+                offset += n;
+                length -= n;
+                if (!tail.hasRemaining()) pushTail();
+            }
+            if (closed) throw new IOException("Connection closed");
+        }
+    }
+
+    private void pushTail() {
+        tail.flip();
+        queued += tail.remaining();
+        output.add(tail);
+        tail = null;
+    }
+
+    /**
+     * Have the reactor write everything queued so far (any thread)
+     */
+    void flush() {
+        boolean request;
+        synchronized (output) {
+            if (closed) return;
+            if (tail != null) pushTail();
+            request = !output.isEmpty() && !writeRequested;
+            if (request) writeRequested = true;
+        }
+        if (!request) return;
+        if (reactor.inReactorThread()) {
+            enableWrite();
+        } else {
+            reactor.execute(this::enableWrite);
+        }
+    }
+
+    private void enableWrite() {
+        if (closed) return;
+        key.interestOps(key.interestOps() | SelectionKey.OP_WRITE);
+        write(); // Usually the whole response fits in the socket buffer
+    }
+
+    void write() {
+        ByteBuffer[] pending;
+        synchronized (output) {
+            pending = output.toArray(new ByteBuffer[0]);
+        }
+        long written;
+        try {
+            written = channel.write(pending);
+        } catch (IOException e) {
+            close();
+            return;
+        }
+        boolean done;
+        synchronized (output) {
+            while (!output.isEmpty() && !output.peekFirst().hasRemaining()) buffers.release(output.pollFirst());
+            queued -= written;
+            output.notifyAll();
+            done = output.isEmpty();
+            if (done) {
+                writeRequested = false;
+                key.interestOps(key.interestOps() & ~SelectionKey.OP_WRITE);
+            }
+        }
+        if (done && closeAfterWrite) close();
+    }
+
+    void close() {
+        if (closed) return;
+        closed = true;
+        if (current != null) {
+            current = null;
+            reactor.finished();
+        }
+        try {
+            channel.close();
+        } catch (IOException e) {
+            // Closed anyway
+        }
+        reactor.closed(this);
+        if (input != null) {
+            buffers.release(input);
+            input = null;
+        }
+        synchronized (output) {
+            output.forEach(buffers::release);
+            output.clear();
+            if (tail != null) buffers.release(tail);
+            tail = null;
+            queued = 0;
+            output.notifyAll();
+        }
+    }
+}
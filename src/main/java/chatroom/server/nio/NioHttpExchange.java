@@ -0,0 +1,313 @@
+package chatroom.server.nio;
+
+import com.sun.net.httpserver.Headers;
+import com.sun.net.httpserver.HttpContext;
+import com.sun.net.httpserver.HttpExchange;
+import com.sun.net.httpserver.HttpPrincipal;
+
+import java.io.ByteArrayInputStream;
+import java.io.IOException;
+import java.io.InputStream;
+import java.io.OutputStream;
+import java.net.InetSocketAddress;
+import java.net.URI;
+import java.time.ZoneOffset;
+import java.time.ZonedDateTime;
+import java.time.format.DateTimeFormatter;
+import java.util.HashMap;
+import java.util.List;
+import java.util.Map;
+
+import static java.nio.charset.StandardCharsets.ISO_8859_1;
+
+/**
+ * A request on an NioConnection, as an HttpExchange for the handlers. The response is
+ * framed as the JDK's server would frame it: a positive length is sent as Content-Length,
+ * a length of 0 means a chunked body of unknown length, and -1 means no body. Filters may
+ * wrap the request and response bodies with setStreams, as with the JDK's server.
+ */
+class NioHttpExchange extends HttpExchange {
+    private enum Framing { FIXED, CHUNKED, UNTIL_CLOSE, NONE }
+
+    private static final byte[] CRLF = "\r\n".getBytes(ISO_8859_1);
+
+    private static volatile String date = "";
+    private static volatile long dateSecond = 0;
+
+    private final NioConnection connection;
+    private final String method;
+    private final URI uri;
+    private final String protocol;
+    private final Headers requestHeaders;
+    private final Headers responseHeaders = new Headers();
+    private InputStream requestBody;
+    private OutputStream responseBody = new ResponseBody(); // Possibly wrapped by a filter
+    private final Map<String, Object> attributes = new HashMap<>();
+    private HttpContext context;
+    private boolean keepAlive;
+    private int responseCode = -1;
+    private Framing framing = null; // Null until the headers are sent
+    private long length;
+    private long written = 0;
+    private boolean closed = false;
+
+    NioHttpExchange(NioConnection connection, String method, URI uri, String protocol, Headers requestHeaders, byte[] body, boolean keepAlive) {
+        this.connection = connection;
+        this.method = method;
+        this.uri = uri;
+        this.protocol = protocol;
+        this.requestHeaders = requestHeaders;
+        this.requestBody = new ByteArrayInputStream(body);
+        this.keepAlive = keepAlive;
+    }
+
+    void setContext(HttpContext context) {
+        this.context = context;
+    }
+
+    /**
+     * Answer with an empty response, without bothering a handler
+     */
+    void respond(int statusCode) {
+        try {
+            sendResponseHeaders(statusCode, -1);
+        } catch (IOException e) {
+            // The connection is gone; close() cleans up
+        }
+        close();
+    }
+
+    @Override
+    public synchronized void sendResponseHeaders(int rCode, long responseLength) throws IOException {
+        if (framing != null) throw new IOException("Response headers already sent");
+        responseCode = rCode;
+        if ("close".equalsIgnoreCase(responseHeaders.getFirst("Connection")) || connection.stopping()) keepAlive = false;
+        if (rCode == 204 || rCode == 304) responseLength = -1;
+
+        StringBuilder head = new StringBuilder(256);
+        head.append("HTTP/1.1 ").append(rCode).append(' ').append(reason(rCode)).append("\r\n");
+        head.append("Date: ").append(date()).append("\r\n");
+        if (responseLength > 0) {
+            framing = Framing.FIXED;
+            length = responseLength;
+            head.append("Content-Length: ").append(responseLength).append("\r\n");
+        } else if (responseLength == 0 && protocol.equals("HTTP/1.0")) {
+            framing = Framing.UNTIL_CLOSE; // HTTP/1.0 clients do not know chunked bodies
+            keepAlive = false;
+        } else if (responseLength == 0) {
+            framing = Framing.CHUNKED;
+            head.append("Transfer-Encoding: chunked\r\n");
+        } else {
+            framing = Framing.NONE;
+            if (rCode != 204 && rCode != 304) head.append("Content-Length: 0\r\n");
+        }
+        if (!keepAlive) {
+            head.append("Connection: close\r\n");
+        } else if (protocol.equals("HTTP/1.0")) {
+            head.append("Connection: keep-alive\r\n");
+        }
+        for (Map.Entry<String, List<String>> header : responseHeaders.entrySet()) {
+            if (header.getKey().equalsIgnoreCase("Connection")) continue;
+            for (String value : header.getValue()) head.append(header.getKey()).append(": ").append(value).append("\r\n");
+        }
+        head.append("\r\n");
+        byte[] bytes = head.toString().getBytes(ISO_8859_1);
+        connection.append(bytes, 0, bytes.length);
+    }
+
+    /**
+     * Close the response body, which completes the response; a filter's stream may still
+     * hold part of it
+     */
+    @Override
+    public void close() {
+        if (!(responseBody instanceof ResponseBody)) {
+            try {
+                responseBody.close(); // Ends with ResponseBody.close()
+            } catch (IOException e) {
+                // Whatever the filter could not write is lost; complete what we have
+            }
+        }
+        complete();
+    }
+
+    private void complete() {
+        synchronized (this) {
+            if (closed) return;
+            closed = true;
+            if (framing == null) {
+                connection.abort(); // No response at all
+                return;
+            }
+            try {
+                if (framing == Framing.CHUNKED) {
+                    byte[] last = "0\r\n\r\n".getBytes(ISO_8859_1);
+                    connection.append(last, 0, last.length);
+                } else if (framing == Framing.FIXED && written < length) {
+                    keepAlive = false; // The client will see a truncated body
+                } else if (framing == Framing.UNTIL_CLOSE) {
+                    keepAlive = false;
+                }
+            } catch (IOException e) {
+                connection.abort();
+                return;
+            }
+        }
+        connection.completed(keepAlive);
+    }
+
+    private class ResponseBody extends OutputStream {
+        @Override
+        public void write(int b) throws IOException {
+            write(new byte[]{(byte) b}, 0, 1);
+        }
+
+        @Override
+        public void write(byte[] bytes, int offset, int count) throws IOException {
+            synchronized (NioHttpExchange.this) {
+                if (framing == null) throw new IOException("Response headers not sent");
+                if (closed) throw new IOException("Exchange closed");
+                if (count == 0) return;
+                switch (framing) {
+                    case FIXED:
+                        if (written + count > length) throw new IOException("Response body longer than Content-Length");
+                        connection.append(bytes, offset, count);
+                        break;
+                    case CHUNKED:
+                        byte[] size = (Integer.toHexString(count) + "\r\n").getBytes(ISO_8859_1);
+                        connection.append(size, 0, size.length);
+                        connection.append(bytes, offset, count);
+                        connection.append(CRLF, 0, CRLF.length);
+                        break;
+                    case UNTIL_CLOSE:
+                        connection.append(bytes, offset, count);
+                        break;
+                    case NONE:
+                        throw new IOException("No response body expected");
+                }
+                written += count;
+            }
+        }
+
+        @Override
+        public void flush() {
+            connection.flush();
+        }
+
+        @Override
+        public void close() {
+            complete();
+        }
+    }
+
+    /**
+     * The current date for the Date header, formatted at most once per second
+     */
+    private static String date() {
+        long now = System.currentTimeMillis() / 1000;
+        if (now != dateSecond) {
+            date = DateTimeFormatter.RFC_1123_DATE_TIME.format(ZonedDateTime.now(ZoneOffset.UTC));
+            dateSecond = now;
+        }
+        return date;
+    }
+
+    static String reason(int statusCode) {
+        switch (statusCode) {
+            case 100: return "Continue";
+            case 200: return "OK";
+            case 204: return "No Content";
+            case 304: return "Not Modified";
+            case 307: return "Temporary Redirect";
+            case 400: return "Bad Request";
+            case 401: return "Unauthorized";
+            case 403: return "Forbidden";
+            case 404: return "Not Found";
+            case 405: return "Method Not Allowed";
+            case 411: return "Length Required";
+            case 413: return "Payload Too Large";
+            case 418: return "I'm a teapot";
+            case 429: return "Too Many Requests";
+            case 431: return "Request Header Fields Too Large";
+            case 500: return "Internal Server Error";
+            case 503: return "Service Unavailable";
+            default: return "Status " + statusCode;
+        }
+    }
+
+    @Override
+    public Headers getRequestHeaders() {
+        return requestHeaders;
+    }
+
+    @Override
+    public Headers getResponseHeaders() {
+        return responseHeaders;
+    }
+
+    @Override
+    public URI getRequestURI() {
+        return uri;
+    }
+
+    @Override
+    public String getRequestMethod() {
+        return method;
+    }
+
+    @Override
+    public HttpContext getHttpContext() {
+        return context;
+    }
+
+    @Override
+    public InputStream getRequestBody() {
+        return requestBody;
+    }
+
+    @Override
+    public OutputStream getResponseBody() {
+        return responseBody;
+    }
+
+    @Override
+    public InetSocketAddress getRemoteAddress() {
+        return connection.remoteAddress();
+    }
+
+    @Override
+    public int getResponseCode() {
+        return responseCode;
+    }
+
+    @Override
+    public InetSocketAddress getLocalAddress() {
+        return connection.localAddress();
+    }
+
+    @Override
+    public String getProtocol() {
+        return protocol;
+    }
+
+    @Override
+    public synchronized Object getAttribute(String name) {
+        return attributes.get(name);
+    }
+
+    @Override
+    public synchronized void setAttribute(String name, Object value) {
+        attributes.put(name, value);
+    }
+
+    @Override
+    public void setStreams(InputStream i, OutputStream o) {
+        if (i != null) requestBody = i;
+        if (o != null) responseBody = o;
+    }
+
+    @Override
+    public HttpPrincipal getPrincipal() {
+        return null;
+    }
+}
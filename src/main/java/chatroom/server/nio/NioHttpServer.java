@@ -0,0 +1,239 @@
+package chatroom.server.nio;
+
+import com.sun.net.httpserver.Authenticator;
+import com.sun.net.httpserver.Filter;
+import com.sun.net.httpserver.HttpContext;
+import com.sun.net.httpserver.HttpHandler;
+import com.sun.net.httpserver.HttpServer;
+
+import java.io.IOException;
+import java.net.BindException;
+import java.net.InetSocketAddress;
+import java.net.StandardSocketOptions;
+import java.nio.channels.ClosedChannelException;
+import java.nio.channels.ServerSocketChannel;
+import java.nio.channels.SocketChannel;
+import java.util.HashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.CopyOnWriteArrayList;
+import java.util.concurrent.Executor;
+import java.util.logging.Logger;
+
+/**
+ * An HTTP/1.1 server on java.nio, as an alternative to the JDK's built-in server. It is
+ * an HttpServer, and hands each request to the handlers as an HttpExchange, so that the
+ * handlers run unchanged on either server, and both can be benchmarked side by side.
+ *
+ * One acceptor thread accepts connections, and assigns them in turn to the reactors (by
+ * default, one per core). Each reactor owns a selector, and does all reading, parsing
+ * and writing for its connections; the handlers run on the executor. Connections are
+ * kept alive between requests, and pipelined requests are answered in order, one after
+ * the other. Data is held in direct buffers from a shared pool, and only while there is
+ * data to hold, so that idle connections cost little memory.
+ *
+ * Requests are limited in size: headers to 16KB, bodies to 1MB. Request bodies must have
+ * a Content-Length; chunked request bodies are not supported.
+ */
+public class NioHttpServer extends HttpServer {
+    private static final Logger logger = Logger.getLogger("");
+    static final int BUFFER_SIZE = 16 * 1024; // Also the maximum size of the request headers
+    static final int MAX_BODY = 1024 * 1024;
+
+    private final BufferPool buffers = new BufferPool(BUFFER_SIZE, 4096);
+    private final Reactor[] reactors;
+    private final Map<String, Context> contexts = new ConcurrentHashMap<>();
+    private ServerSocketChannel listener;
+    private volatile Executor executor;
+    private volatile boolean stopped = false;
+
+    /**
+     * Create a server bound to the given address, with the given number of reactors
+     */
+    public static NioHttpServer create(InetSocketAddress address, int backlog, int numReactors) throws IOException {
+        NioHttpServer server = new NioHttpServer(numReactors);
+        server.bind(address, backlog);
+        return server;
+    }
+
+    private NioHttpServer(int numReactors) {
+        reactors = new Reactor[numReactors];
+        for (int i = 0; i < numReactors; i++) reactors[i] = new Reactor(this, i);
+    }
+
+    @Override
+    public void bind(InetSocketAddress address, int backlog) throws IOException {
+        if (listener != null) throw new BindException("Already bound");
+        listener = ServerSocketChannel.open();
+        listener.setOption(StandardSocketOptions.SO_REUSEADDR, true);
+        listener.bind(address, backlog);
+    }
+
+    @Override
+    public void start() {
+        for (Reactor reactor : reactors) reactor.start();
+        Thread acceptor = new Thread(this::accept, "HttpAcceptor");
+        acceptor.setDaemon(true);
+        acceptor.start();
+        logger.info("NIO HTTP server with " + reactors.length + " reactors");
+    }
+
+    private void accept() {
+        int next = 0;
+        while (!stopped) {
+            try {
+                SocketChannel channel = listener.accept();
+                channel.configureBlocking(false);
+                channel.setOption(StandardSocketOptions.TCP_NODELAY, true);
+                reactors[next].register(channel);
+                next = (next + 1) % reactors.length;
+            } catch (ClosedChannelException e) {
+                return; // Stopped
+            } catch (IOException e) {
+                logger.warning("Accept failed: " + e);
+            }
+        }
+    }
+
+    @Override
+    public void setExecutor(Executor executor) {
+        this.executor = executor;
+    }
+
+    @Override
+    public Executor getExecutor() {
+        return executor;
+    }
+
+    /**
+     * Stop accepting connections, wait up to delay seconds for the current requests to
+     * finish, then close all connections
+     */
+    @Override
+    public void stop(int delay) {
+        stopped = true;
+        try {
+            listener.close();
+        } catch (IOException e) {
+            // Closing anyway
+        }
+        long end = System.currentTimeMillis() + delay * 1000L;
+        for (Reactor reactor : reactors) {
+            while (reactor.busy() && System.currentTimeMillis() < end) {
+                try {
+                    Thread.sleep(10);
+                } catch (InterruptedException e) {
+                    Thread.currentThread().interrupt();
+                    break;
+                }
+            }
+            reactor.stop();
+        }
+    }
+
+    boolean isStopped() {
+        return stopped;
+    }
+
+    @Override
+    public HttpContext createContext(String path, HttpHandler handler) {
+        Context context = new Context(path, handler);
+        if (contexts.putIfAbsent(path, context) != null) throw new IllegalArgumentException("Context already exists: " + path);
+        return context;
+    }
+
+    @Override
+    public HttpContext createContext(String path) {
+        return createContext(path, null);
+    }
+
+    @Override
+    public void removeContext(String path) {
+        if (contexts.remove(path) == null) throw new IllegalArgumentException("No such context: " + path);
+    }
+
+    @Override
+    public void removeContext(HttpContext context) {
+        contexts.remove(context.getPath(), context);
+    }
+
+    @Override
+    public InetSocketAddress getAddress() {
+        try {
+            return (InetSocketAddress) listener.getLocalAddress();
+        } catch (IOException e) {
+            return null;
+        }
+    }
+
+    /**
+     * The context whose path is the longest prefix of the given path, as in the JDK's server
+     */
+    Context findContext(String path) {
+        Context best = null;
+        for (Context context : contexts.values()) {
+            if (path.startsWith(context.path) && (best == null || context.path.length() > best.path.length())) best = context;
+        }
+        return best;
+    }
+
+    BufferPool buffers() {
+        return buffers;
+    }
+
+    class Context extends HttpContext {
+        private final String path;
+        private volatile HttpHandler handler;
+        private final Map<String, Object> attributes = new HashMap<>();
+        private final List<Filter> filters = new CopyOnWriteArrayList<>(); // Run before the handler, like the JDK's
+        private Authenticator authenticator;
+
+        Context(String path, HttpHandler handler) {
+            this.path = path;
+            this.handler = handler;
+        }
+
+        @Override
+        public HttpHandler getHandler() {
+            return handler;
+        }
+
+        @Override
+        public void setHandler(HttpHandler handler) {
+            this.handler = handler;
+        }
+
+        @Override
+        public String getPath() {
+            return path;
+        }
+
+        @Override
+        public HttpServer getServer() {
+            return NioHttpServer.this;
+        }
+
+        @Override
+        public Map<String, Object> getAttributes() {
+            return attributes;
+        }
+
+        @Override
+        public List<Filter> getFilters() {
+            return filters;
+        }
+
+        @Override
+        public Authenticator setAuthenticator(Authenticator auth) {
+            Authenticator old = authenticator;
+            authenticator = auth;
+            return old;
+        }
+
+        @Override
+        public Authenticator getAuthenticator() {
+            return authenticator;
+        }
+    }
+}
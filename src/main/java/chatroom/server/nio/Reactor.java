@@ -0,0 +1,147 @@
+package chatroom.server.nio;
+
+import java.io.IOException;
+import java.nio.ByteBuffer;
+import java.nio.channels.SelectionKey;
+import java.nio.channels.Selector;
+import java.nio.channels.SocketChannel;
+import java.util.ArrayList;
+import java.util.HashSet;
+import java.util.Iterator;
+import java.util.Queue;
+import java.util.Set;
+import java.util.concurrent.ConcurrentLinkedQueue;
+import java.util.logging.Logger;
+
+/**
+ * A selector thread, serving its share of the connections. Other threads never touch the
+ * selector or the connections' input: they queue a task, and the reactor runs it on its
+ * next round.
+ */
+class Reactor implements Runnable {
+    private static final Logger logger = Logger.getLogger("");
+    static final long IDLE_TIMEOUT = 60_000; // Milliseconds
+
+    private final NioHttpServer server;
+    private final Thread thread;
+    private final Selector selector;
+    private final Queue<Runnable> tasks = new ConcurrentLinkedQueue<>();
+    private final Set<NioConnection> connections = new HashSet<>(); // Reactor thread only
+    private volatile int busy = 0; // Connections with a request in progress
+    private volatile boolean stopped = false;
+
+    /**
+     * Every connection reads into this buffer; only the bytes left over after parsing are
+     * copied into a buffer of the connection's own
+     */
+    final ByteBuffer readBuffer = ByteBuffer.allocateDirect(NioHttpServer.BUFFER_SIZE);
+
+    Reactor(NioHttpServer server, int index) {
+        this.server = server;
+        this.thread = new Thread(this, "HttpReactor-" + index);
+        thread.setDaemon(true);
+        try {
+            this.selector = Selector.open();
+        } catch (IOException e) {
+            throw new IllegalStateException("Cannot open selector", e);
+        }
+    }
+
+    void start() {
+        thread.start();
+    }
+
+    void stop() {
+        stopped = true;
+        selector.wakeup();
+    }
+
+    boolean busy() {
+        return busy > 0;
+    }
+
+    boolean inReactorThread() {
+        return Thread.currentThread() == thread;
+    }
+
+    NioHttpServer server() {
+        return server;
+    }
+
+    /**
+     * Run the task on the reactor thread
+     */
+    void execute(Runnable task) {
+        tasks.add(task);
+        selector.wakeup();
+    }
+
+    void register(SocketChannel channel) {
+        execute(() -> {
+            try {
+                NioConnection connection = new NioConnection(this, channel);
+                connection.register(channel.register(selector, SelectionKey.OP_READ, connection));
+                connections.add(connection);
+            } catch (IOException e) {
+                logger.fine("Cannot register connection: " + e);
+                try {
+                    channel.close();
+                } catch (IOException ignored) {
+                    // Already broken
+                }
+            }
+        });
+    }
+
+    void closed(NioConnection connection) {
+        connections.remove(connection);
+    }
+
+    void started() {
+        busy++; // Reactor thread only; volatile for stop()
+    }
+
+    void finished() {
+        busy--;
+    }
+
+    @Override
+    public void run() {
+        long nextIdleCheck = System.currentTimeMillis() + 1000;
+        while (!stopped) {
+            try {
+                selector.select(1000);
+                Runnable task;
+                while ((task = tasks.poll()) != null) task.run();
+
+                Iterator<SelectionKey> keys = selector.selectedKeys().iterator();
+                while (keys.hasNext()) {
+                    SelectionKey key = keys.next();
+                    keys.remove();
+                    if (!key.isValid()) continue;
+                    NioConnection connection = (NioConnection) key.attachment();
+                    if (key.isReadable()) connection.read();
+                    if (key.isValid() && key.isWritable()) connection.write();
+                }
+
+                long now = System.currentTimeMillis();
+                if (now >= nextIdleCheck) {
+                    nextIdleCheck = now + 1000;
+                    for (NioConnection connection : new ArrayList<>(connections)) {
+                        if (connection.idleSince(now - IDLE_TIMEOUT)) connection.close();
+                    }
+                }
+            } catch (IOException e) {
+                logger.warning("HTTP reactor: " + e);
+            } catch (RuntimeException e) {
+                logger.severe("HTTP reactor: " + e);
+            }
+        }
+        for (NioConnection connection : new ArrayList<>(connections)) connection.close();
+        try {
+            selector.close();
+        } catch (IOException e) {
+            // Stopping anyway
+        }
+    }
+}
@@ -0,0 +1,68 @@
+package chatroom.server.store;
+
+import java.io.DataInputStream;
+import java.io.DataOutputStream;
+import java.io.IOException;
+import java.nio.charset.StandardCharsets;
+
+/**
+ * One record in the store. All entries share the same simple shape: a type, up to
+ * four strings and a number. The meaning of the fields depends on the type, as
+ * listed below. Replaying all entries in order rebuilds the server's state.
+ */
+public record Entry(Type type, String key, String a, String b, String c, long n) {
+    public enum Type {
+        ACCOUNT,         // key = username, a = salt (hex), b = hashed password, n = last login (ms)
+        ACCOUNT_REMOVED, // key = username
+        SESSION,         // key = token, a = username, n = last usage (ms)
+        SESSION_REMOVED, // key = token
+        MESSAGE,         // key = token of recipient, a = sender, b = message, n = chatroom id or -1
+        MAILBOX_DRAINED, // key = token, n = number of messages taken from the front (0: all)
+        ROOM,            // key = chatroom id, a = name, b = creator's username, c = creator's token
+        ROOM_REMOVED,    // key = chatroom id
+        MEMBER,          // key = chatroom id, a = token, n = id of the next unread message
+        MEMBER_REMOVED,  // key = chatroom id, a = token
+        ROOM_MESSAGE,    // key = chatroom id, a = sender, b = message, n = message id
+        CURSOR           // key = chatroom id, a = token, n = id of the next unread message
+    }
+
+    private static final Type[] types = Type.values();
+
+    public Entry(Type type, String key) {
+        this(type, key, null, null, null, 0);
+    }
+
+    public void write(DataOutputStream out) throws IOException {
+        out.writeByte(type.ordinal());
+        writeString(out, key);
+        writeString(out, a);
+        writeString(out, b);
+        writeString(out, c);
+        out.writeLong(n);
+    }
+
+    public static Entry read(DataInputStream in) throws IOException {
+        int type = in.readUnsignedByte();
+        if (type >= types.length) throw new IOException("Invalid entry type " + type);
+        return new Entry(types[type], readString(in), readString(in), readString(in), readString(in), in.readLong());
+    }
+
+    // Length -1 represents null
+    private static void writeString(DataOutputStream out, String s) throws IOException {
+        if (s == null) {
+            out.writeInt(-1);
+        } else {
+            byte[] bytes = s.getBytes(StandardCharsets.UTF_8);
+            out.writeInt(bytes.length);
+            out.write(bytes);
+        }
+    }
+
+    private static String readString(DataInputStream in) throws IOException {
+        int length = in.readInt();
+        if (length < 0) return null;
+        byte[] bytes = new byte[length];
+        in.readFully(bytes);
+        return new String(bytes, StandardCharsets.UTF_8);
+    }
+}
@@ -0,0 +1,353 @@
+package chatroom.server.store;
+
+import java.io.*;
+import java.nio.ByteBuffer;
+import java.nio.channels.FileChannel;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.nio.file.StandardCopyOption;
+import java.nio.file.StandardOpenOption;
+import java.util.List;
+import java.util.TreeMap;
+import java.util.concurrent.locks.Condition;
+import java.util.concurrent.locks.ReentrantLock;
+import java.util.function.Consumer;
+import java.util.logging.Logger;
+import java.util.stream.Stream;
+import java.util.zip.CRC32;
+
+/**
+ * A store on local disk, consisting of an append-only log, split into segments
+ * ("wal-00000001.log", ...) and snapshots ("snapshot-00000005.dat" contains the
+ * state as of the start of segment 5).
+ *
+ * Each record is framed as [length][CRC32][entry]. Appended entries are collected
+ * in memory; a flusher thread writes them and forces them to disk. While one batch
+ * is being forced, the next one collects, so that many concurrent appends share a
+ * single fsync (group commit).
+ *
+ * On recovery, a record with a bad checksum or a truncated record at the end of a
+ * segment (from a crash during a write) ends that segment; the garbage is cut off.
+ * A snapshot is complete before it gets its name, so a damaged snapshot is not the
+ * result of a crash; recovery then fails, rather than start from part of the state.
+ */
+public class LogStore implements Store {
+    private static final Logger logger = Logger.getLogger("");
+    private static final long SEGMENT_SIZE = 64L * 1024 * 1024;
+    private static final int MAX_RECORD = 16 * 1024 * 1024;
+
+    private final Path directory;
+
+    // The current segment; guarded by channelLock
+    private final Object channelLock = new Object();
+    private FileChannel channel;
+    private long segment;
+
+    // Appended entries, waiting for the flusher; guarded by lock. The flusher waits for
+    // appends on one condition, appenders wait for durability on the other.
+    private final ReentrantLock lock = new ReentrantLock();
+    private final Condition appendedCondition = lock.newCondition();
+    private final Condition durableCondition = lock.newCondition();
+    private Buffer pending = new Buffer();
+    private Buffer flushing = new Buffer();
+    private final Buffer scratch = new Buffer();
+    private final DataOutputStream scratchOut = new DataOutputStream(scratch);
+    private final CRC32 crc = new CRC32();
+    private long appended = 0;
+    private long durable = 0;
+    private IOException failure;
+    private boolean closed = false;
+
+    private final Thread flusher;
+
+    /**
+     * Open the store in the given directory; new entries go to a new segment, after
+     * all existing ones. Call recover() before appending, to load the existing state.
+     */
+    public LogStore(Path directory) throws IOException {
+        this.directory = directory;
+        Files.createDirectories(directory);
+        long last = 0;
+        for (long n : files("wal-", ".log").keySet()) last = Math.max(last, n);
+        for (long n : files("snapshot-", ".dat").keySet()) last = Math.max(last, n);
+        openSegment(last + 1);
+
+        flusher = new Thread(this::flush, "LogFlusher");
+        flusher.setDaemon(true);
+        flusher.start();
+    }
+
+    @Override
+    public long append(Entry entry) throws IOException {
+        lock.lock();
+        try {
+            if (failure != null) throw failure;
+            scratch.reset();
+            entry.write(scratchOut);
+            crc.reset();
+            crc.update(scratch.array(), 0, scratch.size());
+            boolean wasEmpty = pending.size() == 0;
+            writeInt(pending, scratch.size());
+            writeInt(pending, (int) crc.getValue());
+            pending.write(scratch.array(), 0, scratch.size());
+            if (wasEmpty) appendedCondition.signal(); // Otherwise, the flusher knows already
+            return ++appended;
+        } finally {
+            lock.unlock();
+        }
+    }
+
+    @Override
+    public void awaitDurable(long sequence) throws IOException {
+        lock.lock();
+        try {
+            while (durable < sequence && failure == null) {
+                try {
+                    durableCondition.await();
+                } catch (InterruptedException e) {
+                    Thread.currentThread().interrupt();
+                    throw new InterruptedIOException();
+                }
+            }
+            if (failure != null) throw failure;
+        } finally {
+            lock.unlock();
+        }
+    }
+
+    @Override
+    public long rollSegment() throws IOException {
+        awaitDurable(appendedSoFar());
+        synchronized (channelLock) {
+            openSegment(segment + 1);
+            return segment;
+        }
+    }
+
+    @Override
+    public void writeSnapshot(long segment, List<Entry> state) throws IOException {
+        Path tmp = directory.resolve(String.format("snapshot-%08d.tmp", segment));
+        try (FileOutputStream file = new FileOutputStream(tmp.toFile());
+             DataOutputStream out = new DataOutputStream(new BufferedOutputStream(file, 1 << 16))) {
+            Buffer buffer = new Buffer();
+            DataOutputStream bufferOut = new DataOutputStream(buffer);
+            CRC32 checksum = new CRC32();
+            for (Entry entry : state) {
+                buffer.reset();
+                entry.write(bufferOut);
+                checksum.reset();
+                checksum.update(buffer.array(), 0, buffer.size());
+                out.writeInt(buffer.size());
+                out.writeInt((int) checksum.getValue());
+                out.write(buffer.array(), 0, buffer.size());
+            }
+            out.flush();
+            file.getFD().sync();
+        }
+        Files.move(tmp, directory.resolve(String.format("snapshot-%08d.dat", segment)), StandardCopyOption.ATOMIC_MOVE);
+
+        // Compaction: everything older is contained in the new snapshot
+        for (var file : files("wal-", ".log").entrySet()) {
+            if (file.getKey() < segment) Files.delete(file.getValue());
+        }
+        for (var file : files("snapshot-", ".dat").entrySet()) {
+            if (file.getKey() < segment) Files.delete(file.getValue());
+        }
+        logger.fine("Snapshot " + segment + " written with " + state.size() + " entries");
+    }
+
+    @Override
+    public void recover(Consumer<Entry> replay) throws IOException {
+        long start = 0;
+        long count = 0;
+        long startTime = System.currentTimeMillis();
+        TreeMap<Long, Path> snapshots = files("snapshot-", ".dat");
+        if (!snapshots.isEmpty()) {
+            start = snapshots.lastKey();
+            count += replayFile(snapshots.lastEntry().getValue(), replay, false);
+        }
+        for (var file : files("wal-", ".log").entrySet()) {
+            if (file.getKey() >= start && file.getKey() < segment) count += replayFile(file.getValue(), replay, true);
+        }
+        logger.info("Recovered " + count + " entries in " + (System.currentTimeMillis() - startTime) + "ms");
+    }
+
+    @Override
+    public void close() throws IOException {
+        lock.lock();
+        try {
+            closed = true;
+            appendedCondition.signal();
+        } finally {
+            lock.unlock();
+        }
+        try {
+            flusher.join();
+        } catch (InterruptedException e) {
+            Thread.currentThread().interrupt();
+        }
+        synchronized (channelLock) {
+            channel.close();
+        }
+    }
+
+    private long appendedSoFar() {
+        lock.lock();
+        try {
+            return appended;
+        } finally {
+            lock.unlock();
+        }
+    }
+
+    /**
+     * The flusher thread: write whatever has been appended, force it to disk, repeat
+     */
+    private void flush() {
+        while (true) {
+            Buffer batch;
+            long sequence;
+            lock.lock();
+            try {
+                while (pending.size() == 0 && !closed) {
+                    try {
+                        appendedCondition.await();
+                    } catch (InterruptedException e) {
+                        return;
+                    }
+                }
+                if (pending.size() == 0) return; // Closed, and nothing left to write
+                batch = pending;
+                pending = flushing;
+                flushing = batch;
+                sequence = appended;
+            } finally {
+                lock.unlock();
+            }
+            try {
+                synchronized (channelLock) {
+                    ByteBuffer bytes = ByteBuffer.wrap(batch.array(), 0, batch.size());
+                    while (bytes.hasRemaining()) channel.write(bytes);
+                    channel.force(false);
+                    if (channel.size() > SEGMENT_SIZE) openSegment(segment + 1);
+                }
+                batch.reset();
+                lock.lock();
+                try {
+                    durable = sequence; // Only now, after the fsync
+                    durableCondition.signalAll();
+                } finally {
+                    lock.unlock();
+                }
+            } catch (IOException e) {
+                logger.severe("Unable to write log: " + e);
+                lock.lock();
+                try {
+                    failure = e;
+                    durableCondition.signalAll();
+                } finally {
+                    lock.unlock();
+                }
+                return;
+            }
+        }
+    }
+
+    // Must hold channelLock (or be in the constructor)
+    private void openSegment(long number) throws IOException {
+        if (channel != null) channel.close();
+        segment = number;
+        channel = FileChannel.open(directory.resolve(String.format("wal-%08d.log", number)),
+                StandardOpenOption.CREATE, StandardOpenOption.WRITE, StandardOpenOption.TRUNCATE_EXISTING);
+    }
+
+    /**
+     * Replay all valid records of one file, returning their number. A damaged tail is cut off,
+     * if truncate is set; otherwise, it is an error.
+     */
+    private long replayFile(Path path, Consumer<Entry> replay, boolean truncate) throws IOException {
+        long count = 0;
+        long valid = 0;
+        boolean damaged = false;
+        CRC32 checksum = new CRC32();
+        byte[] record = new byte[256];
+        try (DataInputStream in = new DataInputStream(new BufferedInputStream(Files.newInputStream(path), 1 << 16))) {
+            while (true) {
+                int length;
+                try {
+                    length = in.readInt();
+                } catch (EOFException e) {
+                    break; // Clean end of file
+                }
+                int expected = in.readInt();
+                if (length < 0 || length > MAX_RECORD) {
+                    damaged = true;
+                    break;
+                }
+                if (record.length < length) record = new byte[Math.max(length, record.length * 2)];
+                in.readFully(record, 0, length);
+                checksum.reset();
+                checksum.update(record, 0, length);
+                if ((int) checksum.getValue() != expected) {
+                    damaged = true;
+                    break;
+                }
+                replay.accept(Entry.read(new DataInputStream(new ByteArrayInputStream(record, 0, length))));
+                valid += 8 + length;
+                count++;
+            }
+        } catch (EOFException e) {
+            damaged = true; // Truncated record
+        }
+        if (damaged && !truncate) {
+            throw new IOException("Damaged record in " + path.getFileName() + " after " + count + " entries");
+        }
+        if (damaged) {
+            logger.warning("Damaged record in " + path.getFileName() + " after " + count + " entries; truncating");
+            try (FileChannel file = FileChannel.open(path, StandardOpenOption.WRITE)) {
+                file.truncate(valid);
+            }
+        }
+        return count;
+    }
+
+    /**
+     * Find the files with the given prefix and suffix, sorted by their number
+     */
+    private TreeMap<Long, Path> files(String prefix, String suffix) throws IOException {
+        TreeMap<Long, Path> result = new TreeMap<>();
+        try (Stream<Path> paths = Files.list(directory)) {
+            paths.forEach(path -> {
+                String name = path.getFileName().toString();
+                if (name.startsWith(prefix) && name.endsWith(suffix)) {
+                    try {
+                        result.put(Long.parseLong(name.substring(prefix.length(), name.length() - suffix.length())), path);
+                    } catch (NumberFormatException e) {
+                        // Not one of our files
+                    }
+                }
+            });
+        }
+        return result;
+    }
+
+    private static void writeInt(Buffer buffer, int value) {
+        buffer.write(value >>> 24);
+        buffer.write(value >>> 16);
+        buffer.write(value >>> 8);
+        buffer.write(value);
+    }
+
+    /**
+     * A ByteArrayOutputStream that gives access to its array, to avoid copying
+     */
+    private static class Buffer extends ByteArrayOutputStream {
+        Buffer() {
+            super(1 << 16);
+        }
+
+        byte[] array() {
+            return buf;
+        }
+    }
+}
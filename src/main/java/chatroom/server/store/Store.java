@@ -0,0 +1,42 @@
+package chatroom.server.store;
+
+import java.io.Closeable;
+import java.io.IOException;
+import java.util.List;
+import java.util.function.Consumer;
+
+/**
+ * Durable storage for the server's state, as a sequence of entries. Entries are
+ * appended as the state changes. From time to time, the complete state is written
+ * as a snapshot, which replaces everything logged before it.
+ */
+public interface Store extends Closeable {
+    /**
+     * Append an entry, returning its sequence number. The entry may not be durable yet.
+     */
+    long append(Entry entry) throws IOException;
+
+    /**
+     * Wait until all entries up to the given sequence number are durable
+     */
+    void awaitDurable(long sequence) throws IOException;
+
+    /**
+     * Start a new log segment, returning its number. The caller must ensure that no
+     * entries are appended concurrently; a snapshot for this segment will contain
+     * everything logged before it.
+     */
+    long rollSegment() throws IOException;
+
+    /**
+     * Write the complete state, taken after the start of the given segment, and discard all
+     * older segments and snapshots. The state contains everything logged before the segment,
+     * and maybe some of its entries as well; replaying them again must not change it.
+     */
+    void writeSnapshot(long segment, List<Entry> state) throws IOException;
+
+    /**
+     * Replay the latest snapshot and all later entries, oldest first
+     */
+    void recover(Consumer<Entry> replay) throws IOException;
+}
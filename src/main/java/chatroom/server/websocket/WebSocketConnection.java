@@ -0,0 +1,602 @@
+package chatroom.server.websocket;
+
+import chatroom.server.Chatroom;
+import chatroom.server.Client;
+import chatroom.server.Cluster;
+import chatroom.server.MessageListener;
+import chatroom.server.Metrics;
+import chatroom.server.handlers.Handler;
+import org.json.JSONArray;
+import org.json.JSONObject;
+
+import java.io.ByteArrayOutputStream;
+import java.io.DataOutputStream;
+import java.io.IOException;
+import java.net.InetSocketAddress;
+import java.nio.BufferUnderflowException;
+import java.nio.ByteBuffer;
+import java.nio.channels.SelectionKey;
+import java.nio.channels.SocketChannel;
+import java.nio.charset.StandardCharsets;
+import java.security.MessageDigest;
+import java.security.NoSuchAlgorithmException;
+import java.util.ArrayList;
+import java.util.Base64;
+import java.util.HashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.Queue;
+import java.util.concurrent.ConcurrentLinkedQueue;
+import java.util.concurrent.RejectedExecutionException;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicBoolean;
+import java.util.concurrent.atomic.AtomicLong;
+import java.util.logging.Logger;
+
+/**
+ * One WebSocket connection. The network side (handshake, frames) runs on the selector
+ * thread; requests run on the server's executor, one at a time.
+ *
+ * Every request is one binary message: [byte op][int requestId][arguments], where
+ * strings are written as [unsigned short length][UTF-8 bytes]. The operations are
+ *
+ *   AUTH      (1): token          -- must come first; once per connection
+ *   SEND      (2): username, message
+ *   SEND_ROOM (3): int chatroomId, message
+ *   JOIN      (4): int chatroomId
+ *   LEAVE     (5): int chatroomId
+ *
+ * Each request is answered by RESULT (64): [int requestId][byte 0, or 1 for an error],
+ * followed by the error message; a successful JOIN is followed by the number of members
+ * (unsigned short) and their names. Messages for the client are pushed as MESSAGE (65):
+ * [int chatroomId, or -1][long messageId, or -1][username][chatroomName, or ""][message].
+ * If messages were lost before they could be pushed (overwritten in the chatroom, or too
+ * long for a string), MISSED (66): [long count] comes first. When the session ends
+ * (logout or expiry), the server closes the connection.
+ *
+ * The server's rate limits apply: AUTH counts as a request for "/websocket/auth", SEND and
+ * SEND_ROOM as requests for "/chat/send", like their HTTP counterparts.
+ */
+class WebSocketConnection implements MessageListener {
+    private static final Logger logger = Logger.getLogger("");
+    private static final String GUID = "258EAFA5-E914-47DA-95CA-C5AB0DC85B11";
+    private static final int MAX_HANDSHAKE = 8192;
+    private static final int MAX_MESSAGE = 64 * 1024;
+    private static final int MAX_QUEUED = 256 * 1024; // Output bytes; beyond this, messages wait in the mailbox
+    private static final long CLOSE_TIMEOUT = TimeUnit.SECONDS.toNanos(5); // For the client to read our close frame
+
+    // Requests
+    private static final byte AUTH = 1;
+    private static final byte SEND = 2;
+    private static final byte SEND_ROOM = 3;
+    private static final byte JOIN = 4;
+    private static final byte LEAVE = 5;
+    // Responses
+    private static final byte RESULT = 64;
+    private static final byte MESSAGE = 65;
+    private static final byte MISSED = 66;
+
+    // Frame opcodes
+    private static final int CONTINUATION = 0x0;
+    private static final int TEXT = 0x1;
+    private static final int BINARY = 0x2;
+    private static final int CLOSE = 0x8;
+    private static final int PING = 0x9;
+    private static final int PONG = 0xA;
+
+    private static final Metrics.Counter messages = Metrics.counter("chat_websocket_messages_total",
+            "WebSocket messages, by direction", "direction");
+
+    private static final String AUTH_MAPPING = "/websocket/auth";
+    private static final String SEND_MAPPING = "/chat/send";
+
+    private final WebSocketServer server;
+    private final SocketChannel channel;
+    private final String address; // The client's, for rate limits
+    private SelectionKey key;
+
+    // Selector thread only
+    private ByteBuffer in = ByteBuffer.allocate(4096);
+    private boolean handshakeDone = false;
+    private ByteArrayOutputStream fragments; // A message that arrives in several frames
+    private int needed = 0; // Bytes needed for the next frame, if more than the buffer holds
+    private final long openedAt = System.nanoTime();
+    private long lastRead = openedAt;
+    private boolean pingSent = false;
+
+    private final Queue<ByteBuffer> out = new ConcurrentLinkedQueue<>();
+    private final AtomicLong queuedBytes = new AtomicLong(0);
+    private final AtomicBoolean writeRequested = new AtomicBoolean(false);
+    private final AtomicBoolean closing = new AtomicBoolean(false); // Claimed by the first close, from any thread
+    private volatile boolean closeAfterWrite = false; // Once the closing output is queued
+    private volatile long closingSince;
+    private final AtomicBoolean closed = new AtomicBoolean(false); // Set while holding out
+
+    private final Queue<byte[]> requests = new ConcurrentLinkedQueue<>();
+    private final AtomicBoolean processing = new AtomicBoolean(false);
+    private final AtomicBoolean drainScheduled = new AtomicBoolean(false);
+    private final AtomicBoolean drainDeferred = new AtomicBoolean(false);
+    private volatile Client client; // Set by AUTH
+
+    WebSocketConnection(WebSocketServer server, SocketChannel channel) throws IOException {
+        this.server = server;
+        this.channel = channel;
+        this.address = ((InetSocketAddress) channel.getRemoteAddress()).getAddress().getHostAddress();
+    }
+
+    void register(SelectionKey key) {
+        this.key = key;
+    }
+
+    // ----- Selector thread: reading -----
+
+    void read() {
+        try {
+            int n = channel.read(in);
+            if (n < 0) {
+                close();
+                return;
+            }
+            lastRead = System.nanoTime();
+            pingSent = false;
+            in.flip();
+            boolean more = !closing.get() && (handshakeDone || handshake());
+            while (more && !closing.get()) more = decodeFrame();
+            if (closing.get()) in.position(in.limit()); // Ignore anything else the client sends
+            in.compact();
+            if (in.capacity() < needed) {
+                ByteBuffer bigger = ByteBuffer.allocate(needed);
+                in.flip();
+                bigger.put(in);
+                in = bigger;
+                needed = 0;
+            }
+        } catch (IOException e) {
+            logger.fine("WebSocket read failed: " + e);
+            close();
+        }
+    }
+
+    /**
+     * Answer the HTTP upgrade request, once it is complete
+     */
+    private boolean handshake() {
+        int end = -1;
+        for (int i = in.position(); i + 3 < in.limit(); i++) {
+            if (in.get(i) == '\r' && in.get(i + 1) == '\n' && in.get(i + 2) == '\r' && in.get(i + 3) == '\n') {
+                end = i;
+                break;
+            }
+        }
+        if (end < 0) {
+            if (in.remaining() >= MAX_HANDSHAKE) {
+                reject("431 Request Header Fields Too Large");
+            } else if (in.remaining() == in.capacity()) {
+                needed = MAX_HANDSHAKE;
+            }
+            return false;
+        }
+        byte[] bytes = new byte[end - in.position()];
+        in.get(bytes);
+        in.position(end + 4);
+
+        String[] lines = new String(bytes, StandardCharsets.ISO_8859_1).split("\r\n");
+        Map<String, String> headers = new HashMap<>();
+        for (int i = 1; i < lines.length; i++) {
+            int pos = lines[i].indexOf(':');
+            if (pos > 0) headers.put(lines[i].substring(0, pos).trim().toLowerCase(), lines[i].substring(pos + 1).trim());
+        }
+        String webSocketKey = headers.get("sec-websocket-key");
+        if (!lines[0].startsWith("GET ") || !"websocket".equalsIgnoreCase(headers.get("upgrade")) || webSocketKey == null) {
+            reject("400 Bad Request");
+            return false;
+        }
+        if (!"13".equals(headers.get("sec-websocket-version"))) {
+            reject("426 Upgrade Required\r\nSec-WebSocket-Version: 13");
+            return false;
+        }
+        String response = "HTTP/1.1 101 Switching Protocols\r\n"
+                + "Upgrade: websocket\r\n"
+                + "Connection: Upgrade\r\n"
+                + "Sec-WebSocket-Accept: " + accept(webSocketKey) + "\r\n\r\n";
+        enqueue(ByteBuffer.wrap(response.getBytes(StandardCharsets.ISO_8859_1)));
+        handshakeDone = true;
+        return true;
+    }
+
+    private void reject(String status) {
+        if (!closing.compareAndSet(false, true)) return;
+        String response = "HTTP/1.1 " + status + "\r\nConnection: close\r\nContent-Length: 0\r\n\r\n";
+        enqueue(ByteBuffer.wrap(response.getBytes(StandardCharsets.ISO_8859_1)));
+        closingSince = System.nanoTime();
+        closeAfterWrite = true;
+    }
+
+    private static String accept(String webSocketKey) {
+        try {
+            MessageDigest sha1 = MessageDigest.getInstance("SHA-1");
+            byte[] digest = sha1.digest((webSocketKey + GUID).getBytes(StandardCharsets.ISO_8859_1));
+            return Base64.getEncoder().encodeToString(digest);
+        } catch (NoSuchAlgorithmException e) {
+            throw new IllegalStateException(e); // Every JDK has SHA-1
+        }
+    }
+
+    /**
+     * Decode one frame from the buffer, if it is complete. Frames from the client must be
+     * masked; control frames must not be fragmented, and carry at most 125 bytes.
+     */
+    private boolean decodeFrame() {
+        int start = in.position();
+        if (in.remaining() < 2) return false;
+        int b0 = in.get(start) & 0xff;
+        int b1 = in.get(start + 1) & 0xff;
+        long length = b1 & 0x7f;
+        int header = 2;
+        if (length == 126) {
+            if (in.remaining() < 4) return false;
+            length = in.getShort(start + 2) & 0xffff;
+            header = 4;
+        } else if (length == 127) {
+            if (in.remaining() < 10) return false;
+            length = in.getLong(start + 2);
+            header = 10;
+        }
+        if ((b1 & 0x80) == 0) {
+            sendClose(1002, "Frames must be masked");
+            return false;
+        }
+        if ((b0 & 0x08) != 0 && ((b0 & 0x80) == 0 || length > 125)) {
+            sendClose(1002, "Invalid control frame");
+            return false;
+        }
+        if (length < 0 || length > MAX_MESSAGE) {
+            sendClose(1009, "Message too large");
+            return false;
+        }
+        header += 4;
+        if (in.remaining() < header + length) {
+            needed = header + (int) length;
+            return false;
+        }
+        byte[] payload = new byte[(int) length];
+        in.position(start + header);
+        in.get(payload);
+        for (int i = 0; i < payload.length; i++) payload[i] ^= in.get(start + header - 4 + (i & 3));
+        handleFrame((b0 & 0x80) != 0, b0 & 0x0f, payload);
+        return true;
+    }
+
+    private void handleFrame(boolean fin, int opcode, byte[] payload) {
+        switch (opcode) {
+            case BINARY, CONTINUATION -> {
+                if ((opcode == BINARY) == (fragments != null)) {
+                    sendClose(1002, "Unexpected frame");
+                } else if (fin && fragments == null) {
+                    received(payload);
+                } else {
+                    if (fragments == null) fragments = new ByteArrayOutputStream();
+                    fragments.writeBytes(payload);
+                    if (fragments.size() > MAX_MESSAGE) {
+                        sendClose(1009, "Message too large");
+                    } else if (fin) {
+                        received(fragments.toByteArray());
+                        fragments = null;
+                    }
+                }
+            }
+            case TEXT -> sendClose(1003, "Binary messages only");
+            case PING -> enqueue(frame(PONG, payload));
+            case PONG -> { }
+            case CLOSE -> sendClose(1000, "");
+            default -> sendClose(1002, "Unknown opcode");
+        }
+    }
+
+    /**
+     * Enforce the deadlines: the handshake and AUTH within authTimeout of connecting, and
+     * something from the client (if only a pong) at least every idleTimeout
+     */
+    void checkTimeouts(long now, long authTimeout, long idleTimeout) {
+        if (closeAfterWrite) {
+            if (now - closingSince > CLOSE_TIMEOUT) close(); // The client does not read
+        } else if (!handshakeDone && now - openedAt > authTimeout) {
+            close();
+        } else if (client == null && now - openedAt > authTimeout) {
+            sendClose(1008, "Authentication timeout");
+        } else if (now - lastRead > idleTimeout) {
+            sendClose(1001, "Idle timeout");
+        } else if (!pingSent && now - lastRead > idleTimeout / 2) {
+            enqueue(frame(PING, new byte[0]));
+            pingSent = true;
+        }
+    }
+
+    // ----- Selector thread: writing -----
+
+    void enableWrite() {
+        if (key.isValid()) key.interestOps(SelectionKey.OP_READ | SelectionKey.OP_WRITE);
+    }
+
+    void write() {
+        try {
+            ByteBuffer buffer;
+            while ((buffer = out.peek()) != null) {
+                int n = channel.write(buffer);
+                queuedBytes.addAndGet(-n);
+                if (buffer.hasRemaining()) return; // Socket buffer full; wait until writable
+                out.poll();
+            }
+            if (closeAfterWrite && out.isEmpty()) {
+                close();
+                return;
+            }
+            key.interestOps(SelectionKey.OP_READ);
+            writeRequested.set(false);
+            if (!out.isEmpty() && writeRequested.compareAndSet(false, true)) enableWrite(); // Queued meanwhile
+            if (drainDeferred.compareAndSet(true, false)) messagesAvailable(client);
+        } catch (IOException e) {
+            logger.fine("WebSocket write failed: " + e);
+            close();
+        }
+    }
+
+    /**
+     * Queue output for the selector thread; any thread may call this
+     */
+    private void enqueue(ByteBuffer buffer) {
+        enqueue(List.of(buffer));
+    }
+
+    /**
+     * Queue several buffers at once; returns false, if the connection has been closed
+     */
+    private boolean enqueue(List<ByteBuffer> buffers) {
+        synchronized (out) {
+            if (closed.get()) return false;
+            for (ByteBuffer buffer : buffers) {
+                queuedBytes.addAndGet(buffer.remaining());
+                out.add(buffer);
+            }
+        }
+        if (writeRequested.compareAndSet(false, true)) server.requestWrite(this);
+        return true;
+    }
+
+    /**
+     * Send a close frame, and close the connection once it has been written. Only the
+     * first call sends anything; the selector thread and the executor may both call this.
+     */
+    private void sendClose(int code, String reason) {
+        if (!closing.compareAndSet(false, true)) return;
+        byte[] text = reason.getBytes(StandardCharsets.UTF_8);
+        ByteBuffer payload = ByteBuffer.allocate(2 + text.length).putShort((short) code).put(text);
+        enqueue(frame(CLOSE, payload.array()));
+        closingSince = System.nanoTime();
+        closeAfterWrite = true;
+    }
+
+    private static ByteBuffer frame(int opcode, byte[] payload) {
+        int header = (payload.length < 126) ? 2 : (payload.length < 65536) ? 4 : 10;
+        ByteBuffer frame = ByteBuffer.allocate(header + payload.length);
+        frame.put((byte) (0x80 | opcode));
+        if (payload.length < 126) {
+            frame.put((byte) payload.length);
+        } else if (payload.length < 65536) {
+            frame.put((byte) 126).putShort((short) payload.length);
+        } else {
+            frame.put((byte) 127).putLong(payload.length);
+        }
+        return frame.put(payload).flip();
+    }
+
+    void close() {
+        synchronized (out) {
+            if (!closed.compareAndSet(false, true)) return;
+        }
+        key.cancel();
+        try {
+            channel.close();
+        } catch (IOException e) {
+            // Closing anyway
+        }
+        Client c = client;
+        if (c != null) c.detachStream(this);
+        server.closed(this);
+    }
+
+    // ----- Executor: requests -----
+
+    // A complete message has arrived; requests are executed one at a time
+    private void received(byte[] message) {
+        messages.inc("in");
+        requests.add(message);
+        if (processing.compareAndSet(false, true)) execute(this::process);
+    }
+
+    private void process() {
+        do {
+            byte[] request;
+            while ((request = requests.poll()) != null) handle(request);
+            processing.set(false);
+        } while (!requests.isEmpty() && processing.compareAndSet(false, true));
+    }
+
+    private void execute(Runnable task) {
+        try {
+            server.executor().execute(task);
+        } catch (RejectedExecutionException e) {
+            sendClose(1013, "Server busy, please try again");
+        }
+    }
+
+    private void handle(byte[] message) {
+        ByteBuffer request = ByteBuffer.wrap(message);
+        int requestId = 0;
+        try {
+            byte op = request.get();
+            requestId = request.getInt();
+            if (op == AUTH) {
+                checkRateLimit(AUTH_MAPPING, null);
+                authenticate(readString(request));
+                sendResult(requestId, null);
+                return;
+            }
+            Client client = this.client;
+            if (client == null) throw new Exception("Not authenticated");
+            switch (op) {
+                case SEND -> {
+                    checkRateLimit(SEND_MAPPING, client.getToken());
+                    String username = readString(request);
+                    String text = readString(request);
+                    switch (Client.deliver(username, client.getName(), List.of(text)).get(0)) {
+                        case INVALID_USERNAME -> throw new Exception("Invalid username");
+                        case MAILBOX_FULL -> throw new Exception("Mailbox full");
+                        case DELIVERED -> sendResult(requestId, null);
+                    }
+                }
+                case SEND_ROOM -> {
+                    checkRateLimit(SEND_MAPPING, client.getToken());
+                    int chatroomId = request.getInt();
+                    String text = readString(request);
+                    if (!Chatroom.sendTo(chatroomId, client.getName(), List.of(text))) throw new Exception("Invalid chatroomId");
+                    sendResult(requestId, null);
+                }
+                case JOIN -> {
+                    List<String> members = Chatroom.join(request.getInt(), client);
+                    if (members == null) throw new Exception("Invalid chatroomId");
+                    sendResult(requestId, members);
+                }
+                case LEAVE -> {
+                    Chatroom.leaveChatroom(request.getInt(), client);
+                    sendResult(requestId, null);
+                }
+                default -> throw new Exception("Unknown operation");
+            }
+        } catch (BufferUnderflowException e) {
+            sendError(requestId, "Invalid request");
+        } catch (Exception e) {
+            sendError(requestId, e.getMessage());
+        }
+    }
+
+    private void checkRateLimit(String mapping, String token) throws Exception {
+        long wait = Handler.rateLimit(mapping, address, token);
+        if (wait > 0) throw new Exception("Too many requests, retry after " + ((wait + 999) / 1000) + "s");
+    }
+
+    private void authenticate(String token) throws Exception {
+        if (client != null) throw new Exception("Already authenticated");
+        if (Cluster.nodeOfToken(token) != Cluster.self()) {
+            throw new Exception("Wrong node, connect to node " + Cluster.nodeOfToken(token));
+        }
+        Client c = Client.findByToken(token);
+        if (c == null) throw new Exception("Invalid token");
+        client = c;
+        c.attachStream(this);
+    }
+
+    private void sendResult(int requestId, List<String> members) throws IOException {
+        Encoder result = new Encoder();
+        result.data.writeByte(RESULT);
+        result.data.writeInt(requestId);
+        result.data.writeByte(0);
+        if (members != null) {
+            result.data.writeShort(members.size());
+            for (String member : members) result.writeString(member);
+        }
+        send(result);
+    }
+
+    private void sendError(int requestId, String error) {
+        try {
+            Encoder result = new Encoder();
+            result.data.writeByte(RESULT);
+            result.data.writeInt(requestId);
+            result.data.writeByte(1);
+            result.writeString(error == null ? "Error" : error);
+            send(result);
+        } catch (IOException e) {
+            logger.fine("WebSocket error result failed: " + e); // Cannot happen in memory
+        }
+    }
+
+    private void send(Encoder message) {
+        messages.inc("out");
+        enqueue(frame(BINARY, message.bytes.toByteArray()));
+    }
+
+    private static String readString(ByteBuffer request) {
+        byte[] bytes = new byte[request.getShort() & 0xffff];
+        request.get(bytes);
+        return new String(bytes, StandardCharsets.UTF_8);
+    }
+
+    private static class Encoder {
+        final ByteArrayOutputStream bytes = new ByteArrayOutputStream(64);
+        final DataOutputStream data = new DataOutputStream(bytes);
+
+        // A string longer than its length field can say is refused, not cut off (which might split a character)
+        void writeString(String s) throws IOException {
+            byte[] utf8 = s.getBytes(StandardCharsets.UTF_8);
+            if (utf8.length > 0xffff) throw new IllegalArgumentException("String too long");
+            data.writeShort(utf8.length);
+            data.write(utf8);
+        }
+    }
+
+    // ----- Pushing messages -----
+
+    @Override
+    public void messagesAvailable(Client client) {
+        if (drainScheduled.compareAndSet(false, true)) execute(this::drain);
+    }
+
+    @Override
+    public void clientClosed(Client client) {
+        sendClose(1000, "Session closed");
+    }
+
+    /**
+     * Push the client's messages. If the client reads too slowly, the messages remain in
+     * its mailbox until the output has been written; if the connection has been closed,
+     * they go back to the mailbox, for the client's next poll or stream.
+     */
+    private void drain() {
+        drainScheduled.set(false);
+        if (closed.get()) return;
+        if (queuedBytes.get() > MAX_QUEUED) {
+            drainDeferred.set(true);
+            return;
+        }
+        client.deliverMessages(this::push);
+    }
+
+    private void push(JSONArray jsonMessages, long missed) throws IOException {
+        List<ByteBuffer> frames = new ArrayList<>(jsonMessages.length() + 1);
+        for (int i = 0; i < jsonMessages.length(); i++) {
+            JSONObject msg = jsonMessages.getJSONObject(i);
+            Encoder message = new Encoder();
+            message.data.writeByte(MESSAGE);
+            message.data.writeInt(msg.optInt("chatroomId", -1));
+            message.data.writeLong(msg.optLong("messageId", -1));
+            try {
+                message.writeString(msg.optString("username"));
+                message.writeString(msg.optString("chatroomName"));
+                message.writeString(msg.optString("message"));
+            } catch (IllegalArgumentException e) {
+                missed++; // Too long for this protocol
+                continue;
+            }
+            frames.add(frame(BINARY, message.bytes.toByteArray()));
+        }
+        if (missed > 0) {
+            Encoder message = new Encoder();
+            message.data.writeByte(MISSED);
+            message.data.writeLong(missed);
+            frames.add(0, frame(BINARY, message.bytes.toByteArray()));
+        }
+        if (!enqueue(frames)) throw new IOException("Connection closed");
+        messages.add("out", frames.size());
+    }
+}
@@ -0,0 +1,143 @@
+package chatroom.server.websocket;
+
+import chatroom.server.Metrics;
+
+import java.io.IOException;
+import java.net.InetSocketAddress;
+import java.net.StandardSocketOptions;
+import java.nio.channels.SelectionKey;
+import java.nio.channels.Selector;
+import java.nio.channels.ServerSocketChannel;
+import java.nio.channels.SocketChannel;
+import java.util.Iterator;
+import java.util.Queue;
+import java.util.Set;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.ConcurrentLinkedQueue;
+import java.util.concurrent.Executor;
+import java.util.concurrent.TimeUnit;
+import java.util.logging.Logger;
+
+/**
+ * A WebSocket endpoint, for clients that want to avoid the overhead of a full HTTP request
+ * per action. After the handshake, a client authenticates once with its token; from then
+ * on, requests and their results travel as compact binary messages, and the client's
+ * messages are pushed to it as they arrive (see WebSocketConnection for the encoding).
+ *
+ * One selector thread does all network I/O: it accepts connections, reads and decodes
+ * frames, and writes whatever the connections have queued. The requests themselves are
+ * executed on the server's executor, in order per connection, so that a slow request
+ * (e.g., one that waits for another node of the cluster) never stalls the selector.
+ *
+ * Connections are limited in number, and in time: a connection must complete the
+ * handshake and authenticate within the auth timeout, and one that has been silent for
+ * half the idle timeout is pinged, and closed if it stays silent for the whole of it.
+ * The selector thread checks these deadlines about once per second.
+ */
+public class WebSocketServer implements Runnable {
+    private static final Logger logger = Logger.getLogger("");
+    private static final long SWEEP_INTERVAL = 1000; // ms
+    private static final Metrics.Counter rejected = Metrics.counter("chat_websocket_rejected_total",
+            "WebSocket connections refused because too many were open", null);
+
+    private final Selector selector;
+    private final ServerSocketChannel listener;
+    private final Executor executor;
+    private final int maxConnections;
+    private final long authTimeout; // ns
+    private final long idleTimeout; // ns
+    private long nextSweep = 0;
+    private final Set<WebSocketConnection> connections = ConcurrentHashMap.newKeySet();
+    private final Queue<WebSocketConnection> writeRequests = new ConcurrentLinkedQueue<>();
+
+    /**
+     * Listen on the given port, executing requests on the given executor. At most
+     * maxConnections are open at a time; the timeouts are in seconds.
+     */
+    public static WebSocketServer start(int port, Executor executor, int maxConnections, int authTimeout, int idleTimeout) throws IOException {
+        WebSocketServer server = new WebSocketServer(port, executor, maxConnections, authTimeout, idleTimeout);
+        Thread selectorThread = new Thread(server, "WebSocketSelector");
+        selectorThread.setDaemon(true);
+        selectorThread.start();
+        Metrics.gauge("chat_websocket_connections", "Open WebSocket connections", server.connections::size);
+        logger.info("WebSocket port is " + port);
+        return server;
+    }
+
+    private WebSocketServer(int port, Executor executor, int maxConnections, int authTimeout, int idleTimeout) throws IOException {
+        this.executor = executor;
+        this.maxConnections = maxConnections;
+        this.authTimeout = TimeUnit.SECONDS.toNanos(authTimeout);
+        this.idleTimeout = TimeUnit.SECONDS.toNanos(idleTimeout);
+        this.selector = Selector.open();
+        this.listener = ServerSocketChannel.open();
+        listener.bind(new InetSocketAddress(port));
+        listener.configureBlocking(false);
+        listener.register(selector, SelectionKey.OP_ACCEPT);
+    }
+
+    @Override
+    public void run() {
+        while (true) {
+            try {
+                selector.select(SWEEP_INTERVAL);
+                // Connections that have queued output since the last round
+                WebSocketConnection connection;
+                while ((connection = writeRequests.poll()) != null) connection.enableWrite();
+
+                Iterator<SelectionKey> keys = selector.selectedKeys().iterator();
+                while (keys.hasNext()) {
+                    SelectionKey key = keys.next();
+                    keys.remove();
+                    if (!key.isValid()) continue;
+                    if (key.isAcceptable()) {
+                        accept();
+                    } else {
+                        connection = (WebSocketConnection) key.attachment();
+                        if (key.isReadable()) connection.read();
+                        if (key.isValid() && key.isWritable()) connection.write();
+                    }
+                }
+                long now = System.nanoTime();
+                if (now - nextSweep >= 0) {
+                    for (WebSocketConnection c : connections) c.checkTimeouts(now, authTimeout, idleTimeout);
+                    nextSweep = now + TimeUnit.MILLISECONDS.toNanos(SWEEP_INTERVAL);
+                }
+            } catch (IOException e) {
+                logger.warning("WebSocket selector: " + e);
+            }
+        }
+    }
+
+    private void accept() throws IOException {
+        SocketChannel channel = listener.accept();
+        if (channel == null) return;
+        if (connections.size() >= maxConnections) {
+            logger.fine("Too many WebSocket connections; refusing " + channel.getRemoteAddress());
+            rejected.inc();
+            channel.close();
+            return;
+        }
+        channel.configureBlocking(false);
+        channel.setOption(StandardSocketOptions.TCP_NODELAY, true);
+        WebSocketConnection connection = new WebSocketConnection(this, channel);
+        connection.register(channel.register(selector, SelectionKey.OP_READ, connection));
+        connections.add(connection);
+    }
+
+    /**
+     * A connection has queued output: the selector thread will start writing it
+     */
+    void requestWrite(WebSocketConnection connection) {
+        writeRequests.add(connection);
+        selector.wakeup();
+    }
+
+    void closed(WebSocketConnection connection) {
+        connections.remove(connection);
+    }
+
+    Executor executor() {
+        return executor;
+    }
+}
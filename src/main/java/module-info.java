@@ -1,5 +1,6 @@
 module ch.fhnw.richards.chatserver {
     requires java.logging;
+    requires java.management;
     requires jdk.httpserver;
     requires org.json;
     exports chatroom.server;
@@ -0,0 +1,67 @@
+package chatroom.server;
+
+import org.junit.jupiter.api.Test;
+
+import java.util.ArrayList;
+import java.util.List;
+
+import static org.junit.jupiter.api.Assertions.*;
+
+class ExpiryWheelTest {
+	private static class Item {
+		final String name;
+		volatile long deadline;
+
+		Item(String name, long deadline) {
+			this.name = name;
+			this.deadline = deadline;
+		}
+	}
+
+	private final List<String> expired = new ArrayList<>();
+	private final ExpiryWheel<Item> wheel = new ExpiryWheel<>(1000, 16, item -> item.deadline, item -> expired.add(item.name));
+	private final long start = System.currentTimeMillis();
+
+	@Test
+	void expiresItemsWhenDue() {
+		wheel.schedule(new Item("a", start + 2000));
+		wheel.schedule(new Item("b", start + 5000));
+		assertEquals(0, wheel.advance(start + 1000, 100));
+		assertEquals(1, wheel.advance(start + 3000, 100));
+		assertEquals(List.of("a"), expired);
+		assertEquals(1, wheel.advance(start + 6000, 100));
+		assertEquals(List.of("a", "b"), expired);
+	}
+
+	@Test
+	void skipsCancelledItems() {
+		Item a = new Item("a", start + 2000);
+		wheel.schedule(a);
+		wheel.schedule(new Item("b", start + 2000));
+		wheel.cancel(a);
+		wheel.cancel(a); // Twice is harmless
+		assertEquals(1, wheel.advance(start + 3000, 100));
+		assertEquals(List.of("b"), expired);
+	}
+
+	@Test
+	void movesItemsWhoseDeadlineMovedAndDropsStaleEntries() {
+		Item a = new Item("a", start + 2000);
+		wheel.schedule(a);
+		a.deadline = start + 40_000; // More than a turn of the wheel later
+		assertEquals(0, wheel.advance(start + 3000, 100));
+		wheel.schedule(a); // Scheduled again: only the latest entry counts
+		assertEquals(0, wheel.advance(start + 39_000, 100));
+		assertEquals(1, wheel.advance(start + 41_000, 100));
+		assertEquals(List.of("a"), expired);
+		assertEquals(0, wheel.advance(start + 100_000, 100));
+	}
+
+	@Test
+	void stopsAtTheBudget() {
+		for (int i = 0; i < 10; i++) wheel.schedule(new Item("i" + i, start + 1000));
+		assertEquals(4, wheel.advance(start + 2000, 4));
+		assertEquals(6, wheel.advance(start + 2000, 100));
+		assertEquals(10, expired.size());
+	}
+}
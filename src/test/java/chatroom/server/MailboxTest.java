@@ -0,0 +1,92 @@
+package chatroom.server;
+
+import org.junit.jupiter.api.Test;
+
+import java.util.ArrayList;
+import java.util.List;
+
+import static org.junit.jupiter.api.Assertions.*;
+
+class MailboxTest {
+	private static Mailbox.Message message(int i) {
+		return new Mailbox.Message(i % 2 == 0 ? null : i, "user" + i, "message " + i + " é😀", i);
+	}
+
+	private static List<Mailbox.Message> messages(int from, int to) {
+		List<Mailbox.Message> messages = new ArrayList<>();
+		for (int i = from; i < to; i++) messages.add(message(i));
+		return messages;
+	}
+
+	@Test
+	void spillsBeyondCapacityAndDrainsInOrder() {
+		Mailbox mailbox = new Mailbox(3, Mailbox.Overflow.SPILL, 1024 * 1024);
+		for (int i = 0; i < 10; i++) assertTrue(mailbox.offer(message(i)));
+		assertEquals(10, mailbox.depth());
+		assertEquals(messages(0, 10), mailbox.peek());
+
+		assertEquals(messages(0, 10), mailbox.drain());
+		assertTrue(mailbox.isEmpty());
+		assertEquals(0, mailbox.depth());
+		assertEquals(0, mailbox.dropped());
+	}
+
+	@Test
+	void refillsAfterSpillInOrder() {
+		Mailbox mailbox = new Mailbox(2, Mailbox.Overflow.SPILL, 1024 * 1024);
+		for (int i = 0; i < 5; i++) mailbox.offer(message(i));
+		assertEquals(messages(0, 5), mailbox.drain());
+
+		// Spilling stopped with the drain; the queue fills up again first
+		for (int i = 5; i < 9; i++) mailbox.offer(message(i));
+		assertEquals(messages(5, 9), mailbox.drain());
+		assertEquals(List.of(), mailbox.drain());
+	}
+
+	@Test
+	void requeuedMessagesComeBeforeSpilledOnes() {
+		Mailbox mailbox = new Mailbox(2, Mailbox.Overflow.SPILL, 1024 * 1024);
+		for (int i = 0; i < 4; i++) mailbox.offer(message(i));
+		List<Mailbox.Message> undelivered = mailbox.drain();
+		for (int i = 4; i < 8; i++) mailbox.offer(message(i));
+		mailbox.requeue(undelivered);
+		assertEquals(messages(0, 8), mailbox.drain());
+	}
+
+	@Test
+	void rejectsBeyondSpillLimit() {
+		Mailbox mailbox = new Mailbox(1, Mailbox.Overflow.SPILL, 100);
+		assertTrue(mailbox.offer(message(0)));
+		int spilled = 0;
+		while (mailbox.offer(message(spilled + 1))) spilled++;
+		assertTrue(spilled > 0);
+		assertEquals(1, mailbox.dropped());
+		assertEquals(messages(0, spilled + 1), mailbox.drain());
+	}
+
+	@Test
+	void closeDiscardsSpill() {
+		Mailbox mailbox = new Mailbox(1, Mailbox.Overflow.SPILL, 1024 * 1024);
+		for (int i = 0; i < 3; i++) mailbox.offer(message(i));
+		mailbox.close();
+		assertEquals(1, mailbox.depth());
+		assertEquals(messages(0, 1), mailbox.drain());
+	}
+
+	@Test
+	void dropOldestKeepsNewest() {
+		Mailbox mailbox = new Mailbox(3, Mailbox.Overflow.DROP_OLDEST, 0);
+		for (int i = 0; i < 5; i++) assertTrue(mailbox.offer(message(i)));
+		assertEquals(2, mailbox.dropped());
+		assertEquals(messages(2, 5), mailbox.drain());
+	}
+
+	@Test
+	void rejectKeepsOldest() {
+		Mailbox mailbox = new Mailbox(3, Mailbox.Overflow.REJECT, 0);
+		for (int i = 0; i < 3; i++) assertTrue(mailbox.offer(message(i)));
+		assertFalse(mailbox.offer(message(3)));
+		assertEquals(1, mailbox.dropped());
+		assertEquals(messages(0, 3), mailbox.drain());
+	}
+}
@@ -0,0 +1,229 @@
+package chatroom.server.handlers;
+
+import org.json.JSONArray;
+import org.json.JSONException;
+import org.json.JSONObject;
+import org.junit.jupiter.api.Test;
+
+import java.io.ByteArrayInputStream;
+import java.io.ByteArrayOutputStream;
+import java.io.IOException;
+import java.math.BigDecimal;
+import java.math.BigInteger;
+import java.util.List;
+
+import static java.nio.charset.StandardCharsets.UTF_8;
+import static org.junit.jupiter.api.Assertions.*;
+
+class JsonCodecTest {
+    private static JSONObject read(String json) throws IOException {
+        return JsonCodec.read(new ByteArrayInputStream(json.getBytes(UTF_8)));
+    }
+
+    private static HandlerRequest readRequest(String json) throws IOException {
+        return JsonCodec.readRequest(new ByteArrayInputStream(json.getBytes(UTF_8)));
+    }
+
+    private static byte[] string(int... bytes) {
+        byte[] json = new byte[bytes.length + 8];
+        System.arraycopy(new byte[] { '{', '"', 's', '"', ':', '"' }, 0, json, 0, 6);
+        for (int i = 0; i < bytes.length; i++) json[6 + i] = (byte) bytes[i];
+        json[json.length - 2] = '"';
+        json[json.length - 1] = '}';
+        return json;
+    }
+
+    private static String write(Object value) throws IOException {
+        ByteArrayOutputStream out = new ByteArrayOutputStream();
+        JsonCodec.write(value, out);
+        return out.toString(UTF_8);
+    }
+
+    private static Object number(String json) throws IOException {
+        return read("{\"n\":" + json + "}").get("n");
+    }
+
+    @Test
+    void roundTripsEscapes() throws IOException {
+        String text = "quote \" backslash \\ slash / newline \n tab \t return \r backspace \b formfeed \f nul \u0000 bell \u0007";
+        String json = write(new JSONObject().put("message", text));
+        assertFalse(json.contains("\n"));
+        assertEquals(text, read(json).getString("message"));
+        assertEquals(text, new JSONObject(json).getString("message")); // Readable by org.json, too
+    }
+
+    @Test
+    void decodesEscapes() throws IOException {
+        JSONObject obj = read("{\"s\":\"\\\"\\\\\\/\\b\\f\\n\\r\\t\\u0041\\u00e9\"}");
+        assertEquals("\"\\/\b\f\n\r\tAé", obj.getString("s"));
+    }
+
+    @Test
+    void roundTripsUtf8AndSurrogatePairs() throws IOException {
+        String text = "é ü € 中文 😀 𝄞";
+        String json = write(new JSONObject().put("message", text));
+        assertArrayEquals(("{\"message\":\"" + text + "\"}").getBytes(UTF_8), json.getBytes(UTF_8));
+        assertEquals(text, read(json).getString("message"));
+    }
+
+    @Test
+    void decodesEscapedSurrogatePair() throws IOException {
+        assertEquals("😀", read("{\"s\":\"\\ud83d\\ude00\"}").getString("s"));
+    }
+
+    @Test
+    void replacesUnpairedSurrogate() throws IOException {
+        assertEquals("\"a?b\"", write("a\ud83db"));
+        assertEquals("\"a?\"", write("a\ude00"));
+    }
+
+    @Test
+    void rejectsInvalidUtf8() {
+        byte[] bytes = { '{', '"', 's', '"', ':', '"', (byte) 0xC0, (byte) 0x80, '"', '}' };
+        assertThrows(JSONException.class, () -> JsonCodec.read(new ByteArrayInputStream(bytes)));
+    }
+
+    @Test
+    void rejectsOverlongAndSurrogateAndOutOfRangeUtf8() {
+        int[][] invalid = {
+                { 0xE0, 0x80, 0xAF }, // '/' in three bytes
+                { 0xE0, 0x9F, 0xBF }, // U+07FF in three bytes
+                { 0xF0, 0x8F, 0xBF, 0xBF }, // U+FFFF in four bytes
+                { 0xED, 0xA0, 0x80 }, // U+D800, a surrogate
+                { 0xED, 0xBF, 0xBF }, // U+DFFF
+                { 0xF4, 0x90, 0x80, 0x80 }, // U+110000
+        };
+        for (int[] bytes : invalid) {
+            assertThrows(JSONException.class, () -> JsonCodec.read(new ByteArrayInputStream(string(bytes))));
+        }
+    }
+
+    @Test
+    void acceptsTheLimitsOfUtf8() throws IOException {
+        assertEquals("\u0800", JsonCodec.read(new ByteArrayInputStream(string(0xE0, 0xA0, 0x80))).getString("s"));
+        assertEquals("\ud7ff\ue000", JsonCodec.read(new ByteArrayInputStream(string(0xED, 0x9F, 0xBF, 0xEE, 0x80, 0x80))).getString("s"));
+        assertEquals(new String(Character.toChars(0x10000)), JsonCodec.read(new ByteArrayInputStream(string(0xF0, 0x90, 0x80, 0x80))).getString("s"));
+        assertEquals(new String(Character.toChars(0x10FFFF)), JsonCodec.read(new ByteArrayInputStream(string(0xF4, 0x8F, 0xBF, 0xBF))).getString("s"));
+    }
+
+    @Test
+    void rejectsDuplicateKeys() {
+        assertThrows(JSONException.class, () -> read("{\"a\":1,\"a\":2}"));
+        assertThrows(JSONException.class, () -> read("{\"a\":{\"b\":1,\"b\":1}}"));
+        assertThrows(JSONException.class, () -> readRequest("{\"token\":\"x\",\"token\":\"y\"}"));
+        assertThrows(JSONException.class, () -> readRequest("{\"token\":1,\"token\":\"y\"}"));
+        assertThrows(JSONException.class, () -> readRequest("{\"other\":1,\"other\":2}"));
+        assertThrows(JSONException.class, () -> readRequest("{\"messages\":[{\"message\":\"a\",\"message\":\"b\"}]}"));
+    }
+
+    @Test
+    void readsRequestFields() throws IOException {
+        HandlerRequest request = readRequest("{\"token\":\"t\",\"username\":\"bob\",\"message\":\"hi\\n\",\"chatroomId\":7,"
+                + "\"clients\":[\"a\",\"b\"],\"after\":12345678901,\"limit\":5,\"unknown\":{\"x\":[1,2]}}");
+        assertEquals("t", request.token);
+        assertEquals("bob", request.username);
+        assertEquals("hi\n", request.message);
+        assertEquals(7, request.chatroomId);
+        assertEquals(List.of("a", "b"), request.clients);
+        assertEquals(12345678901L, request.after);
+        assertEquals(5, request.limit);
+        assertNull(request.password);
+        assertNull(request.usernames);
+        assertNull(request.messages);
+    }
+
+    @Test
+    void readsFieldsOfTheWrongTypeAsNull() throws IOException {
+        HandlerRequest request = readRequest("{\"token\":5,\"chatroomId\":\"7\",\"timeout\":1.5,\"limit\":12345678901,"
+                + "\"clients\":[\"a\",2],\"usernames\":\"a\",\"messages\":{}}");
+        assertNull(request.token);
+        assertNull(request.chatroomId);
+        assertNull(request.timeout);
+        assertNull(request.limit);
+        assertNull(request.clients);
+        assertNull(request.usernames);
+        assertNull(request.messages);
+    }
+
+    @Test
+    void readsBatchesAndWritesRequestsBack() throws IOException {
+        String json = "{\"token\":\"t\",\"messages\":[{\"username\":\"bob\",\"message\":\"hi\"},5,{\"chatroomId\":3,\"message\":\"yo\"}]}";
+        HandlerRequest request = readRequest(json);
+        assertEquals(3, request.messages.size());
+        assertEquals("bob", request.messages.get(0).username);
+        assertNull(request.messages.get(1));
+        assertEquals(3, request.messages.get(2).chatroomId);
+        String written = new String(JsonCodec.toBytes(request), UTF_8);
+        assertEquals("{\"token\":\"t\",\"messages\":[{\"username\":\"bob\",\"message\":\"hi\"},null,{\"message\":\"yo\",\"chatroomId\":3}]}", written);
+    }
+
+    @Test
+    void rejectsMalformedRequests() {
+        for (String invalid : new String[] { "", "[]", "{\"token\"}", "{\"token\":\"t\",}", "{\"clients\":[\"a\",]}", "{\"messages\":[{]}" }) {
+            assertThrows(JSONException.class, () -> readRequest(invalid), invalid);
+        }
+        String deep = "{\"messages\":[{\"messages\":".repeat(20) + "[]" + "}]".repeat(20) + "}";
+        assertThrows(JSONException.class, () -> readRequest(deep));
+    }
+
+    @Test
+    void readsNumbersOfEverySize() throws IOException {
+        assertEquals(0, number("0"));
+        assertEquals(-1, number("-1"));
+        assertEquals(Integer.MAX_VALUE, number("2147483647"));
+        assertEquals(2147483648L, number("2147483648"));
+        assertEquals(Integer.MIN_VALUE, number("-2147483648"));
+        assertEquals(Long.MAX_VALUE, number("9223372036854775807"));
+        assertEquals(Long.MIN_VALUE, number("-9223372036854775808"));
+        assertEquals(new BigInteger("9223372036854775808"), number("9223372036854775808"));
+        assertEquals(new BigInteger("-123456789012345678901234567890"), number("-123456789012345678901234567890"));
+        assertEquals(1.5, number("1.5"));
+        assertEquals(-0.25, number("-0.25"));
+        assertEquals(1e10, number("1E10"));
+        assertEquals(2.5e-3, number("2.5e-3"));
+        assertEquals(new BigDecimal("1e400"), number("1e400"));
+    }
+
+    @Test
+    void rejectsInvalidNumbers() {
+        for (String invalid : new String[] { "01", "-", "+1", "1.", ".5", "1e", "1e+", "--1", "1-2", "1.2.3", "0x10" }) {
+            assertThrows(JSONException.class, () -> number(invalid), invalid);
+        }
+    }
+
+    @Test
+    void writesNumbers() throws IOException {
+        JSONArray numbers = new JSONArray()
+                .put(0).put(-7).put(Long.MAX_VALUE).put(new BigInteger("123456789012345678901234567890"))
+                .put(1.5).put(new BigDecimal("1e400"));
+        String json = write(numbers);
+        assertEquals("[0,-7,9223372036854775807,123456789012345678901234567890,1.5,1E+400]", json);
+        JSONArray back = read("{\"a\":" + json + "}").getJSONArray("a");
+        assertEquals(new BigInteger("123456789012345678901234567890"), back.get(3));
+        assertEquals(Long.MAX_VALUE, back.get(2));
+        assertEquals(new BigDecimal("1E+400"), back.get(5));
+    }
+
+    @Test
+    void roundTripsNestedValues() throws IOException {
+        JSONObject obj = new JSONObject()
+                .put("a", new JSONArray().put(1).put("two").put(true).put(JSONObject.NULL).put(new JSONObject()))
+                .put("b", new JSONObject().put("c", new JSONArray()))
+                .put("d", false);
+        JSONObject back = read(write(obj));
+        assertTrue(obj.similar(back));
+    }
+
+    @Test
+    void rejectsMalformedDocuments() {
+        for (String invalid : new String[] { "", "[]", "{", "{\"a\"}", "{\"a\":1,}", "{\"a\":1} x", "{\"a\":tru}", "{a:1}" }) {
+            assertThrows(JSONException.class, () -> read(invalid), invalid);
+        }
+    }
+
+    @Test
+    void rejectsDeepNesting() {
+        String json = "{\"a\":" + "[".repeat(100) + "]".repeat(100) + "}";
+        assertThrows(JSONException.class, () -> read(json));
+    }
+}
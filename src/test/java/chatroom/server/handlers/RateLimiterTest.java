@@ -0,0 +1,128 @@
+package chatroom.server.handlers;
+
+import org.junit.jupiter.api.Test;
+
+import java.util.ArrayList;
+import java.util.List;
+import java.util.concurrent.CountDownLatch;
+import java.util.concurrent.atomic.AtomicInteger;
+import java.util.concurrent.atomic.AtomicLong;
+
+import static org.junit.jupiter.api.Assertions.*;
+
+class RateLimiterTest {
+    private final AtomicLong nanos = new AtomicLong(1_000_000_000L);
+
+    private RateLimiter limiter(String rules, int tableSize) {
+        return RateLimiter.parse(rules, tableSize, nanos::get);
+    }
+
+    private void advanceMillis(long millis) {
+        nanos.addAndGet(millis * 1_000_000);
+    }
+
+    @Test
+    void allowsBurstThenRefuses() {
+        RateLimiter limiter = limiter("/chat/send:token:1/5", 1024);
+        RateLimiter.Limit limit = limiter.limitFor(RateLimiter.Kind.TOKEN, "/chat/send");
+        for (int i = 0; i < 5; i++) assertEquals(0, limiter.acquire(RateLimiter.Kind.TOKEN, limit, "a"));
+        long wait = limiter.acquire(RateLimiter.Kind.TOKEN, limit, "a");
+        assertTrue(wait > 0 && wait <= 1000, "wait " + wait);
+    }
+
+    @Test
+    void refillsAtTheRateUpToTheBurst() {
+        RateLimiter limiter = limiter("*:ip:2/4", 1024);
+        RateLimiter.Limit limit = limiter.limitFor(RateLimiter.Kind.IP, "/anything");
+        for (int i = 0; i < 4; i++) assertEquals(0, limiter.acquire(RateLimiter.Kind.IP, limit, "10.0.0.1"));
+        assertNotEquals(0, limiter.acquire(RateLimiter.Kind.IP, limit, "10.0.0.1"));
+
+        advanceMillis(500); // One token at 2 per second
+        assertEquals(0, limiter.acquire(RateLimiter.Kind.IP, limit, "10.0.0.1"));
+        assertNotEquals(0, limiter.acquire(RateLimiter.Kind.IP, limit, "10.0.0.1"));
+
+        advanceMillis(60_000); // Full again, but no more than the burst
+        for (int i = 0; i < 4; i++) assertEquals(0, limiter.acquire(RateLimiter.Kind.IP, limit, "10.0.0.1"));
+        assertNotEquals(0, limiter.acquire(RateLimiter.Kind.IP, limit, "10.0.0.1"));
+    }
+
+    @Test
+    void keepsFractionsOfTokensBetweenFrequentRequests() {
+        RateLimiter limiter = limiter("*:ip:7.5/1", 1024); // A token every 133.3 ms
+        RateLimiter.Limit limit = limiter.limitFor(RateLimiter.Kind.IP, "/anything");
+        int granted = 0;
+        for (int ms = 0; ms < 10_000; ms++) {
+            if (limiter.acquire(RateLimiter.Kind.IP, limit, "10.0.0.1") == 0) granted++;
+            advanceMillis(1);
+        }
+        assertEquals(75, granted);
+    }
+
+    @Test
+    void keepsBucketsPerKeyAndMapping() {
+        RateLimiter limiter = limiter("/user/login:ip:1/1,*:ip:1/1", 1024);
+        RateLimiter.Limit login = limiter.limitFor(RateLimiter.Kind.IP, "/user/login");
+        RateLimiter.Limit other = limiter.limitFor(RateLimiter.Kind.IP, "/chat/poll");
+        assertNull(limiter.limitFor(RateLimiter.Kind.TOKEN, "/chat/poll"));
+        assertEquals(0, limiter.acquire(RateLimiter.Kind.IP, login, "10.0.0.1"));
+        assertNotEquals(0, limiter.acquire(RateLimiter.Kind.IP, login, "10.0.0.1"));
+        assertEquals(0, limiter.acquire(RateLimiter.Kind.IP, login, "10.0.0.2"));
+        assertEquals(0, limiter.acquire(RateLimiter.Kind.IP, other, "10.0.0.1"));
+    }
+
+    @Test
+    void grantsNoMoreThanTheBurstUnderContention() throws InterruptedException {
+        RateLimiter limiter = limiter("*:token:0.001/1000", 1024); // The clock stands still: no refill
+        RateLimiter.Limit limit = limiter.limitFor(RateLimiter.Kind.TOKEN, "/chat/send");
+        AtomicInteger granted = new AtomicInteger();
+        CountDownLatch start = new CountDownLatch(1);
+        List<Thread> threads = new ArrayList<>();
+        for (int t = 0; t < 8; t++) {
+            Thread thread = new Thread(() -> {
+                try {
+                    start.await();
+                } catch (InterruptedException e) {
+                    return;
+                }
+                for (int i = 0; i < 500; i++) {
+                    if (limiter.acquire(RateLimiter.Kind.TOKEN, limit, "shared") == 0) granted.incrementAndGet();
+                }
+            });
+            thread.start();
+            threads.add(thread);
+        }
+        start.countDown();
+        for (Thread thread : threads) thread.join();
+        assertEquals(1000, granted.get());
+    }
+
+    @Test
+    void refusesWhenFullAndReusesIdleSlots() {
+        RateLimiter limiter = limiter("*:ip:1/5", 16); // 32 slots; a bucket is full again after 5 seconds
+        RateLimiter.Limit limit = limiter.limitFor(RateLimiter.Kind.IP, "/ping");
+        String refused = null;
+        int admitted = 0;
+        for (int i = 0; i < 1000 && refused == null; i++) {
+            String key = "10.0." + (i / 256) + "." + (i % 256);
+            if (limiter.acquire(RateLimiter.Kind.IP, limit, key) == 0) {
+                admitted++;
+            } else {
+                refused = key;
+            }
+        }
+        assertNotNull(refused, "a full table refuses new keys");
+        assertTrue(admitted <= 32, "admitted " + admitted);
+
+        advanceMillis(5_001); // All buckets are idle now, so their slots may be reused
+        assertEquals(0, limiter.acquire(RateLimiter.Kind.IP, limit, refused));
+        for (int i = 0; i < 4; i++) assertEquals(0, limiter.acquire(RateLimiter.Kind.IP, limit, refused));
+        assertNotEquals(0, limiter.acquire(RateLimiter.Kind.IP, limit, refused)); // A fresh bucket, not a leftover
+    }
+
+    @Test
+    void rejectsInvalidRules() {
+        for (String invalid : new String[] { "", "*:ip", "*:ip:1", "*:ip:0/5", "*:ip:1/0", "*:user:1/5", "*:ip:x/5", "*:ip:NaN/5", "*:ip:1e-9/5" }) {
+            assertThrows(IllegalArgumentException.class, () -> RateLimiter.parse(invalid, 1024), invalid);
+        }
+    }
+}
@@ -0,0 +1,131 @@
+package chatroom.server.store;
+
+import org.junit.jupiter.api.Test;
+import org.junit.jupiter.api.io.TempDir;
+
+import java.io.IOException;
+import java.io.RandomAccessFile;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.nio.file.StandardOpenOption;
+import java.util.ArrayList;
+import java.util.List;
+import java.util.stream.Stream;
+
+import static org.junit.jupiter.api.Assertions.*;
+
+class LogStoreTest {
+    @TempDir
+    Path directory;
+
+    private static Entry entry(int i) {
+        return new Entry(Entry.Type.MESSAGE, "token" + i, "user" + i, "message " + i + " é😀", null, i);
+    }
+
+    private static List<Entry> entries(int from, int to) {
+        List<Entry> entries = new ArrayList<>();
+        for (int i = from; i < to; i++) entries.add(entry(i));
+        return entries;
+    }
+
+    private void write(List<Entry> entries) throws IOException {
+        try (LogStore store = new LogStore(directory)) {
+            store.recover(entry -> { });
+            long sequence = 0;
+            for (Entry entry : entries) sequence = store.append(entry);
+            store.awaitDurable(sequence);
+        }
+    }
+
+    private List<Entry> recover() throws IOException {
+        List<Entry> recovered = new ArrayList<>();
+        try (LogStore store = new LogStore(directory)) {
+            store.recover(recovered::add);
+        }
+        return recovered;
+    }
+
+    private Path file(String prefix) throws IOException {
+        try (Stream<Path> paths = Files.list(directory)) {
+            return paths.filter(p -> p.getFileName().toString().startsWith(prefix) && Files.isRegularFile(p))
+                    .filter(p -> {
+                        try {
+                            return Files.size(p) > 0;
+                        } catch (IOException e) {
+                            return false;
+                        }
+                    })
+                    .findFirst().orElseThrow();
+        }
+    }
+
+    @Test
+    void replaysAppendedEntries() throws IOException {
+        write(entries(0, 100));
+        assertEquals(entries(0, 100), recover());
+        assertEquals(entries(0, 100), recover()); // Recovery does not lose anything
+    }
+
+    @Test
+    void cutsOffTornWrite() throws IOException {
+        write(entries(0, 10));
+        Path log = file("wal-");
+        long size = Files.size(log);
+        // Half a record: its length, checksum and part of the entry
+        Files.write(log, new byte[] { 0, 0, 0, 100, 1, 2, 3, 4, 5, 6 }, StandardOpenOption.APPEND);
+
+        assertEquals(entries(0, 10), recover());
+        assertEquals(size, Files.size(log));
+    }
+
+    @Test
+    void stopsAtRecordWithBadChecksum() throws IOException {
+        write(entries(0, 5));
+        Path log = file("wal-");
+        long size = Files.size(log);
+        long recordSize = size / 5; // All records have the same size
+        try (RandomAccessFile file = new RandomAccessFile(log.toFile(), "rw")) {
+            long offset = 2 * recordSize + 12; // Inside the entry of the third record
+            file.seek(offset);
+            int b = file.read();
+            file.seek(offset);
+            file.write(b ^ 0xFF);
+        }
+
+        assertEquals(entries(0, 2), recover());
+        assertEquals(2 * recordSize, Files.size(log));
+    }
+
+    @Test
+    void replaysSnapshotThenLaterSegments() throws IOException {
+        try (LogStore store = new LogStore(directory)) {
+            store.recover(entry -> { });
+            long sequence = 0;
+            for (Entry entry : entries(0, 5)) sequence = store.append(entry);
+            store.awaitDurable(sequence);
+            long segment = store.rollSegment();
+            for (Entry entry : entries(5, 8)) sequence = store.append(entry);
+            store.awaitDurable(sequence);
+            store.writeSnapshot(segment, entries(100, 103));
+        }
+        List<Entry> expected = entries(100, 103);
+        expected.addAll(entries(5, 8));
+        assertEquals(expected, recover());
+    }
+
+    @Test
+    void failsOnCorruptSnapshot() throws IOException {
+        try (LogStore store = new LogStore(directory)) {
+            store.recover(entry -> { });
+            store.writeSnapshot(store.rollSegment(), entries(0, 5));
+        }
+        Path snapshot = file("snapshot-");
+        long size = Files.size(snapshot);
+        try (RandomAccessFile file = new RandomAccessFile(snapshot.toFile(), "rw")) {
+            file.setLength(size - 3);
+        }
+
+        assertThrows(IOException.class, this::recover);
+        assertEquals(size - 3, Files.size(snapshot)); // Left as it is
+    }
+}